@@ -0,0 +1,83 @@
+//
+// JabRef PDFTasks Plugin
+// Copyright (C) 2011--2015  Karl Wette
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+//
+
+package net.sf.jabref.plugins.pdftasks;
+
+
+import net.sf.jabref.BibtexDatabase;
+import net.sf.jabref.BibtexEntry;
+import net.sf.jabref.GUIGlobals;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+// PDFTasks PDF directory histogram benchmarks
+// - building the histogram of a database with 'entries' entries, and keeping it up to date
+//   when the file field of an entry changes
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class PDFDirHistogramBenchmark {
+
+    @Param({ "1000", "10000" })
+    public int entries;
+
+    private BibtexDatabase db;
+    private PDFDirHistogram hist;
+    private BibtexEntry entry;
+    private String[] entry_files;
+    private int toggle = 0;
+
+    @Setup
+    public void setup() {
+        PDFTaskBenchData.initPreferences();
+        db = PDFTaskBenchData.database(entries, 2, 20);
+        hist = new PDFDirHistogram(db);
+        entry = db.getEntryByKey(PDFTaskBenchData.key(0));
+        entry_files = new String[] { PDFTaskBenchData.fileField(0, 2, 20), PDFTaskBenchData.fileField(1, 2, 20) };
+    }
+
+    @Benchmark
+    public String build() {
+        PDFDirHistogram h = new PDFDirHistogram(db);
+        db.removeDatabaseChangeListener(h);
+        return h.getMajorityDirectory();
+    }
+
+    @Benchmark
+    public String changeEntry() {
+        toggle ^= 1;
+        entry.setField(GUIGlobals.FILE_FIELD, entry_files[toggle]);
+        return hist.getMajorityDirectory();
+    }
+
+}
+
+// Local Variables:
+// mode: java
+// c-basic-offset: 4
+// tab-width: 4
+// End:
@@ -0,0 +1,115 @@
+//
+// JabRef PDFTasks Plugin
+// Copyright (C) 2011--2015  Karl Wette
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+//
+
+package net.sf.jabref.plugins.pdftasks;
+
+
+import net.sf.jabref.BibtexDatabase;
+import net.sf.jabref.BibtexEntry;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.TimeUnit;
+
+// PDFTasks PDF document information benchmarks
+// - erasing and writing document information and XMP, checking whether it is up to date, and
+//   reading it, for generated small (1 page), medium (50 pages), and large (500 pages) PDF files
+// - each invocation starts from a fresh copy of the generated PDF file
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class PDFDocInfoBenchmark {
+
+    @Param({ "small", "medium", "large" })
+    public String size;
+
+    private File template;
+    private File written;
+    private File pdf_file;
+    private BibtexDatabase db;
+    private BibtexEntry entry;
+
+    @Setup
+    public void setup() throws Exception {
+        PDFTaskBenchData.initPreferences();
+        int pages = size.equals("small") ? 1 : size.equals("medium") ? 50 : 500;
+        template = File.createTempFile("pdftasks-bench", ".pdf");
+        PDFTaskBenchData.writePDF(template, pages, 4000);
+        db = new BibtexDatabase();
+        entry = PDFTaskBenchData.entry(0, null);
+        db.insertEntry(entry);
+        written = File.createTempFile("pdftasks-bench-written", ".pdf");
+        Files.copy(template.toPath(), written.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        PDFDocInfo.write(written, entry, db, true, false);
+        pdf_file = File.createTempFile("pdftasks-bench-work", ".pdf");
+    }
+
+    @Setup(Level.Invocation)
+    public void copyTemplate() throws IOException {
+        Files.copy(template.toPath(), pdf_file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    @TearDown
+    public void tearDown() {
+        template.delete();
+        written.delete();
+        pdf_file.delete();
+    }
+
+    @Benchmark
+    public File eraseAndWrite() throws Exception {
+        PDFDocInfo.write(pdf_file, entry, db, true, false);
+        return pdf_file;
+    }
+
+    @Benchmark
+    public File writeIncremental() throws Exception {
+        PDFDocInfo.write(pdf_file, entry, db, false, true);
+        return pdf_file;
+    }
+
+    @Benchmark
+    public boolean isUpToDate() {
+        return PDFDocInfo.isUpToDate(written, entry, db, true);
+    }
+
+    @Benchmark
+    public PDFMetadata readMetadata() throws IOException {
+        return PDFMetadata.read(written);
+    }
+
+}
+
+// Local Variables:
+// mode: java
+// c-basic-offset: 4
+// tab-width: 4
+// End:
@@ -0,0 +1,88 @@
+//
+// JabRef PDFTasks Plugin
+// Copyright (C) 2011--2015  Karl Wette
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+//
+
+package net.sf.jabref.plugins.pdftasks;
+
+
+import net.sf.jabref.gui.FileListTableModel;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// PDFTasks file field benchmarks
+// - parsing and serialising a file field with 'links' PDF file links, with JabRef's
+//   FileListTableModel and with PDFFileField
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class PDFFileFieldBenchmark {
+
+    @Param({ "1", "5", "20" })
+    public int links;
+
+    private String files_str;
+    private FileListTableModel files;
+    private List<PDFFileField.Link> links_list;
+
+    @Setup
+    public void setup() {
+        PDFTaskBenchData.initPreferences();
+        files_str = PDFTaskBenchData.fileField(0, links, 10);
+        files = new FileListTableModel();
+        files.setContent(files_str);
+        links_list = PDFFileField.parse(files_str);
+    }
+
+    @Benchmark
+    public FileListTableModel parse() {
+        FileListTableModel files = new FileListTableModel();
+        files.setContent(files_str);
+        return files;
+    }
+
+    @Benchmark
+    public String serialise() {
+        return files.getStringRepresentation();
+    }
+
+    @Benchmark
+    public List<PDFFileField.Link> parseLinks() {
+        return PDFFileField.parse(files_str);
+    }
+
+    @Benchmark
+    public String serialiseLinks() {
+        return PDFFileField.serialize(links_list);
+    }
+
+}
+
+// Local Variables:
+// mode: java
+// c-basic-offset: 4
+// tab-width: 4
+// End:
@@ -0,0 +1,104 @@
+//
+// JabRef PDFTasks Plugin
+// Copyright (C) 2011--2015  Karl Wette
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+//
+
+package net.sf.jabref.plugins.pdftasks;
+
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+// PDFTasks path benchmarks
+// - relativePath() and absoluteFile() of PDF files 'depth' directories below a base directory,
+//   both uncached and with a warm PDFPathCache, as used by the PDF tasks
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class PDFPathBenchmark {
+
+    @Param({ "1", "4", "8" })
+    public int depth;
+
+    private File base;
+    private File pdf_file;
+    private String pdf_path;
+    private final PDFPathCache paths = new PDFPathCache();
+
+    @Setup
+    public void setup() throws IOException {
+        base = Files.createTempDirectory("pdftasks-bench").toFile();
+        File dir = base;
+        StringBuilder path = new StringBuilder();
+        for (int i = 0; i < depth; ++i) {
+            dir = new File(dir, "dir" + i);
+            path.append("dir").append(i).append(File.separatorChar);
+        }
+        dir.mkdirs();
+        pdf_file = new File(dir, "Author2015.pdf");
+        pdf_file.createNewFile();
+        pdf_path = path + pdf_file.getName();
+    }
+
+    @TearDown
+    public void tearDown() {
+        File dir = pdf_file.getParentFile();
+        pdf_file.delete();
+        while (dir != null && !dir.equals(base.getParentFile())) {
+            dir.delete();
+            dir = dir.getParentFile();
+        }
+    }
+
+    @Benchmark
+    public String relativePath() {
+        return PDFTaskEngine.relativePath(pdf_file, base);
+    }
+
+    @Benchmark
+    public File absoluteFile() {
+        return PDFTaskEngine.absoluteFile(pdf_path, base);
+    }
+
+    @Benchmark
+    public String relativePathCached() {
+        return paths.relativePath(pdf_file, base);
+    }
+
+    @Benchmark
+    public File absoluteFileCached() {
+        return paths.absoluteFile(pdf_path, base);
+    }
+
+}
+
+// Local Variables:
+// mode: java
+// c-basic-offset: 4
+// tab-width: 4
+// End:
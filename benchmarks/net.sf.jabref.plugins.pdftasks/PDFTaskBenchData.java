@@ -0,0 +1,156 @@
+//
+// JabRef PDFTasks Plugin
+// Copyright (C) 2011--2015  Karl Wette
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+//
+
+package net.sf.jabref.plugins.pdftasks;
+
+import net.sf.jabref.BibtexDatabase;
+import net.sf.jabref.BibtexEntry;
+import net.sf.jabref.BibtexEntryType;
+import net.sf.jabref.GUIGlobals;
+import net.sf.jabref.Globals;
+import net.sf.jabref.JabRefPreferences;
+
+import org.apache.pdfbox.exceptions.COSVisitorException;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.common.PDStream;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+// PDFTasks benchmark data class
+// - generates reproducible synthetic Bibtex entries, databases, and PDF files for benchmarks
+final class PDFTaskBenchData {
+
+    private PDFTaskBenchData() {
+    }
+
+    // initialise JabRef preferences, which are needed for PDF file types and XMP
+    static void initPreferences() {
+        if (Globals.prefs == null) {
+            Globals.prefs = JabRefPreferences.getInstance();
+        }
+    }
+
+    // return a file field with 'n' PDF file links, spread over 'n_dirs' directories
+    static String fileField(int i, int n, int n_dirs) {
+        StringBuilder sb = new StringBuilder();
+        for (int j = 0; j < n; ++j) {
+            if (j > 0) {
+                sb.append(';');
+            }
+            String desc = j == 0 ? "" : "part " + j;
+            sb.append(desc).append(":pdfs/dir").append((i + j) % n_dirs).append('/').append(key(i));
+            if (j > 0) {
+                sb.append("_part_").append(j);
+            }
+            sb.append(".pdf:PDF");
+        }
+        return sb.toString();
+    }
+
+    // return the Bibtex key of entry 'i'
+    static String key(int i) {
+        return String.format("Author%05d:%04d", i, 1950 + i % 70);
+    }
+
+    // return a Bibtex entry 'i' with typical fields, and file field 'files'
+    static BibtexEntry entry(int i, String files) {
+        Random rnd = new Random(i);
+        BibtexEntry entry = new BibtexEntry("bench" + i, BibtexEntryType.ARTICLE);
+        entry.setField(BibtexEntry.KEY_FIELD, key(i));
+        entry.setField("author", "Author" + i + ", A. and Coauthor" + rnd.nextInt(1000) + ", B. and Other, C.");
+        entry.setField("title", "On the synthetic benchmarking of entry " + i + " with " + rnd.nextInt(100) + " parameters");
+        entry.setField("journal", "Journal of Benchmarks " + rnd.nextInt(20));
+        entry.setField("year", Integer.toString(1950 + i % 70));
+        entry.setField("volume", Integer.toString(1 + rnd.nextInt(100)));
+        entry.setField("pages", (1 + rnd.nextInt(500)) + "--" + (501 + rnd.nextInt(500)));
+        entry.setField("abstract", words(rnd, 150));
+        if (files != null) {
+            entry.setField(GUIGlobals.FILE_FIELD, files);
+        }
+        return entry;
+    }
+
+    // return a Bibtex database of 'n' entries, each with 'n_links' PDF file links spread over 'n_dirs' directories
+    static BibtexDatabase database(int n, int n_links, int n_dirs) {
+        BibtexDatabase db = new BibtexDatabase();
+        for (int i = 0; i < n; ++i) {
+            db.insertEntry(entry(i, fileField(i, n_links, n_dirs)));
+        }
+        return db;
+    }
+
+    // write a PDF file with 'pages' pages, each with about 'page_bytes' bytes of content
+    static void writePDF(File pdf_file, int pages, int page_bytes) throws IOException {
+        Random rnd = new Random(pages);
+        PDDocument document = new PDDocument();
+        try {
+            for (int p = 0; p < pages; ++p) {
+                PDPage page = new PDPage();
+                PDStream contents = new PDStream(document);
+                OutputStream os = contents.createOutputStream();
+                try {
+                    StringBuilder sb = new StringBuilder("BT /F1 10 Tf 72 720 Td 12 TL\n");
+                    while (sb.length() < page_bytes) {
+                        sb.append('(').append(words(rnd, 12)).append(") '\n");
+                    }
+                    sb.append("ET\n");
+                    os.write(sb.toString().getBytes(StandardCharsets.ISO_8859_1));
+                }
+                finally {
+                    os.close();
+                }
+                page.setContents(contents);
+                document.addPage(page);
+            }
+            document.save(pdf_file.getPath());
+        }
+        catch (COSVisitorException e) {
+            throw new IOException(e);
+        }
+        finally {
+            document.close();
+        }
+    }
+
+    // return 'n' pseudo-random words
+    static String words(Random rnd, int n) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < n; ++i) {
+            if (i > 0) {
+                sb.append(' ');
+            }
+            int len = 2 + rnd.nextInt(8);
+            for (int j = 0; j < len; ++j) {
+                sb.append((char) ('a' + rnd.nextInt(26)));
+            }
+        }
+        return sb.toString();
+    }
+
+}
+
+// Local Variables:
+// mode: java
+// c-basic-offset: 4
+// tab-width: 4
+// End:
@@ -0,0 +1,250 @@
+//
+// JabRef PDFTasks Plugin
+// Copyright (C) 2011--2015  Karl Wette
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+//
+
+package net.sf.jabref.plugins.pdftasks;
+
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+// PDFTasks load-test generator class
+// - writes a synthetic Bibtex database 'library.bib' to a directory, with file links to generated
+//   PDF files of a given size and number of pages, spread over several subdirectories of 'pdfs'
+// - PDF files are named 'paper-<n>.pdf', so that renaming them after their Bibtex keys moves every file
+// - PDF files are written directly, without PDFBox, so that large corpora can be generated quickly;
+//   each has a unique title, so that no two files have the same content
+public final class PDFTaskLoadGen {
+
+    private static final String usage =
+        "usage: PDFTaskLoadGen [options] <directory>\n" +
+        "  --entries=<n>     number of Bibtex entries (default 10000)\n" +
+        "  --links=<n>       number of PDF file links per entry (default 1)\n" +
+        "  --dirs=<n>        number of PDF file directories (default 20)\n" +
+        "  --pdf-size=<n>    approximate size of each PDF file in bytes (default 100000)\n" +
+        "  --pages=<n>       number of pages in each PDF file (default 10)\n";
+
+    private PDFTaskLoadGen() {
+    }
+
+    public static void main(String[] args) throws IOException {
+        int entries = 10000;
+        int links = 1;
+        int dirs = 20;
+        int pdf_size = 100000;
+        int pages = 10;
+        File dir = null;
+        try {
+            for (String arg : args) {
+                String value = arg.indexOf('=') > 0 ? arg.substring(arg.indexOf('=') + 1) : null;
+                if (arg.startsWith("--entries=")) {
+                    entries = Integer.parseInt(value);
+                }
+                else if (arg.startsWith("--links=")) {
+                    links = Integer.parseInt(value);
+                }
+                else if (arg.startsWith("--dirs=")) {
+                    dirs = Integer.parseInt(value);
+                }
+                else if (arg.startsWith("--pdf-size=")) {
+                    pdf_size = Integer.parseInt(value);
+                }
+                else if (arg.startsWith("--pages=")) {
+                    pages = Integer.parseInt(value);
+                }
+                else if (!arg.startsWith("--") && dir == null) {
+                    dir = new File(arg);
+                }
+                else {
+                    throw new IllegalArgumentException("invalid argument: " + arg);
+                }
+            }
+            if (dir == null) {
+                throw new IllegalArgumentException("no directory given");
+            }
+            if (entries < 1 || links < 1 || dirs < 1 || pages < 1 || pdf_size < 0) {
+                throw new IllegalArgumentException("invalid value");
+            }
+        }
+        catch (IllegalArgumentException e) {
+            System.err.print("PDFTaskLoadGen: " + e.getMessage() + "\n" + usage);
+            System.exit(2);
+        }
+        long start = System.nanoTime();
+        long bytes = generate(dir, entries, links, dirs, pdf_size, pages);
+        double secs = (System.nanoTime() - start) / 1e9;
+        System.out.println(String.format("generated: %d entries, %d PDF files, %.1f MB in %.1f s",
+                                         entries, entries * links, bytes / 1048576.0, secs));
+    }
+
+    // generate the database and PDF files in 'dir'; returns the total size of the PDF files
+    static long generate(File dir, int entries, int links, int dirs, int pdf_size, int pages) throws IOException {
+        File pdfs_dir = new File(dir, "pdfs");
+        for (int d = 0; d < dirs; ++d) {
+            File pdf_dir = new File(pdfs_dir, "dir" + d);
+            if (!pdf_dir.isDirectory() && !pdf_dir.mkdirs()) {
+                throw new IOException("Could not create directory '" + pdf_dir.getPath() + "'");
+            }
+        }
+        long bytes = 0;
+        Writer bib = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(new File(dir, "library.bib")),
+                                                               StandardCharsets.UTF_8));
+        try {
+            int n = 0;
+            for (int i = 0; i < entries; ++i) {
+                Random rnd = new Random(i);
+                List<String> files = new ArrayList<String>();
+                for (int j = 0; j < links; ++j, ++n) {
+                    String link = "pdfs/dir" + (n % dirs) + "/paper-" + n + ".pdf";
+                    bytes += writePDF(new File(dir, link), "Paper " + n, pdf_size, pages, rnd);
+                    files.add((j == 0 ? "" : "Part " + j) + ":" + link + ":PDF");
+                }
+                bib.write(String.format("@article{Author%06d:%04d,\n", i, 1950 + i % 70));
+                bib.write("  author = {Author" + i + ", A. and Coauthor" + rnd.nextInt(1000) + ", B.},\n");
+                bib.write("  title = {On the synthetic load testing of entry " + i + "},\n");
+                bib.write("  journal = {Journal of Load Tests " + rnd.nextInt(20) + "},\n");
+                bib.write("  year = {" + (1950 + i % 70) + "},\n");
+                bib.write("  volume = {" + (1 + rnd.nextInt(100)) + "},\n");
+                bib.write("  abstract = {" + words(rnd, 100) + "},\n");
+                bib.write("  file = {" + join(files, ";") + "}\n");
+                bib.write("}\n\n");
+            }
+        }
+        finally {
+            bib.close();
+        }
+        return bytes;
+    }
+
+    // write a PDF file with title 'title', 'pages' pages, and about 'pdf_size' bytes; returns its size
+    static long writePDF(File pdf_file, String title, int pdf_size, int pages, Random rnd) throws IOException {
+        CountingOutputStream os = new CountingOutputStream(new BufferedOutputStream(new FileOutputStream(pdf_file), 65536));
+        try {
+            int n_obj = 3 + 2 * pages;
+            long[] offsets = new long[n_obj + 1];
+            os.print("%PDF-1.4\n%\u00e2\u00e3\u00cf\u00d3\n");
+
+            // catalog, page tree, and document information
+            offsets[1] = os.count;
+            os.print("1 0 obj\n<< /Type /Catalog /Pages 2 0 R >>\nendobj\n");
+            offsets[2] = os.count;
+            StringBuilder kids = new StringBuilder();
+            for (int p = 0; p < pages; ++p) {
+                kids.append(4 + 2 * p).append(" 0 R ");
+            }
+            os.print("2 0 obj\n<< /Type /Pages /Kids [ " + kids + "] /Count " + pages + " >>\nendobj\n");
+            offsets[3] = os.count;
+            os.print("3 0 obj\n<< /Title (" + title + ") /Producer (PDFTasks load test) >>\nendobj\n");
+
+            // pages, with content padded to the requested size
+            int page_bytes = Math.max(0, pdf_size / pages - 200);
+            for (int p = 0; p < pages; ++p) {
+                StringBuilder content = new StringBuilder("BT /F1 10 Tf 72 720 Td 12 TL\n");
+                while (content.length() < page_bytes) {
+                    content.append('(').append(words(rnd, 10)).append(") '\n");
+                }
+                content.append("ET\n");
+                offsets[4 + 2 * p] = os.count;
+                os.print((4 + 2 * p) + " 0 obj\n<< /Type /Page /Parent 2 0 R /MediaBox [ 0 0 612 792 ] /Contents " +
+                         (5 + 2 * p) + " 0 R >>\nendobj\n");
+                offsets[5 + 2 * p] = os.count;
+                os.print((5 + 2 * p) + " 0 obj\n<< /Length " + content.length() + " >>\nstream\n" +
+                         content + "\nendstream\nendobj\n");
+            }
+
+            // cross-reference table and trailer
+            long xref = os.count;
+            os.print("xref\n0 " + (n_obj + 1) + "\n0000000000 65535 f \n");
+            for (int i = 1; i <= n_obj; ++i) {
+                os.print(String.format("%010d 00000 n \n", offsets[i]));
+            }
+            os.print("trailer\n<< /Size " + (n_obj + 1) + " /Root 1 0 R /Info 3 0 R >>\nstartxref\n" + xref + "\n%%EOF\n");
+        }
+        finally {
+            os.close();
+        }
+        return os.count;
+    }
+
+    // output stream which counts the number of bytes written
+    private static final class CountingOutputStream
+        extends OutputStream
+    {
+        private final OutputStream os;
+        long count = 0;
+        CountingOutputStream(OutputStream os) {
+            this.os = os;
+        }
+        void print(String s) throws IOException {
+            write(s.getBytes(StandardCharsets.ISO_8859_1));
+        }
+        public void write(int b) throws IOException {
+            os.write(b);
+            ++count;
+        }
+        public void write(byte[] b, int off, int len) throws IOException {
+            os.write(b, off, len);
+            count += len;
+        }
+        public void close() throws IOException {
+            os.close();
+        }
+    }
+
+    private static String join(List<String> strs, String sep) {
+        StringBuilder sb = new StringBuilder();
+        for (String s : strs) {
+            if (sb.length() > 0) {
+                sb.append(sep);
+            }
+            sb.append(s);
+        }
+        return sb.toString();
+    }
+
+    // return 'n' pseudo-random words
+    private static String words(Random rnd, int n) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < n; ++i) {
+            if (i > 0) {
+                sb.append(' ');
+            }
+            int len = 2 + rnd.nextInt(8);
+            for (int j = 0; j < len; ++j) {
+                sb.append((char) ('a' + rnd.nextInt(26)));
+            }
+        }
+        return sb.toString();
+    }
+
+}
+
+// Local Variables:
+// mode: java
+// c-basic-offset: 4
+// tab-width: 4
+// End:
@@ -0,0 +1,296 @@
+//
+// JabRef PDFTasks Plugin
+// Copyright (C) 2011--2015  Karl Wette
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+//
+
+package net.sf.jabref.plugins.pdftasks;
+
+
+import net.sf.jabref.BibtexDatabase;
+import net.sf.jabref.BibtexEntry;
+import net.sf.jabref.Globals;
+import net.sf.jabref.JabRefPreferences;
+import net.sf.jabref.MetaData;
+import net.sf.jabref.export.FileActions;
+import net.sf.jabref.export.SaveSession;
+import net.sf.jabref.imports.OpenDatabaseAction;
+import net.sf.jabref.imports.ParserResult;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+// PDFTasks load-test driver class
+// - runs the PDF task engine over a database generated by PDFTaskLoadGen, generating it first if
+//   needed, and reports the wall time of each phase (load, plan, execute, save), the throughput
+//   of the engine (plan and execute) in PDF files and megabytes per second, and the peak heap usage
+// - runs without prompts: plans are always executed, and journals of previous runs are rolled back
+public final class PDFTaskLoadTest {
+
+    private static final String usage =
+        "usage: PDFTaskLoadTest [options] <directory>\n" +
+        "  --entries=<n>          number of Bibtex entries to generate, if needed (default 10000)\n" +
+        "  --pdf-size=<n>         size of generated PDF files in bytes (default 100000)\n" +
+        "  --pages=<n>            number of pages in generated PDF files (default 10)\n" +
+        "  --dirs=<n>             number of generated PDF file directories (default 20)\n" +
+        "  --rename               rename PDF files after their Bibtex keys\n" +
+        "  --move=<dir>           move PDF files to <dir>, relative to <directory>\n" +
+        "  --write                write Bibtex entries to PDF document information\n" +
+        "  --erase                erase previous document information first\n" +
+        "  --incremental          append document information as an incremental update\n" +
+        "  --no-skip-up-to-date   write PDF files whose document information is up to date\n" +
+        "  --no-skip-unchanged    process PDF files unchanged since the last run\n" +
+        "  --threads=<n>          process PDF files in parallel with <n> threads\n";
+
+    private PDFTaskLoadTest() {
+    }
+
+    public static void main(String[] args) throws Exception {
+
+        // parse command line
+        PDFTaskEngine.Options options = new PDFTaskEngine.Options();
+        options.rename_pdfs = false;
+        options.move_to_pdf_dir = false;
+        options.write_pdf_docinfo = false;
+        String pdf_dir = null;
+        int entries = 10000;
+        int pdf_size = 100000;
+        int pages = 10;
+        int dirs = 20;
+        File dir = null;
+        try {
+            for (String arg : args) {
+                String value = arg.indexOf('=') > 0 ? arg.substring(arg.indexOf('=') + 1) : null;
+                if (arg.startsWith("--entries=")) {
+                    entries = Integer.parseInt(value);
+                }
+                else if (arg.startsWith("--pdf-size=")) {
+                    pdf_size = Integer.parseInt(value);
+                }
+                else if (arg.startsWith("--pages=")) {
+                    pages = Integer.parseInt(value);
+                }
+                else if (arg.startsWith("--dirs=")) {
+                    dirs = Integer.parseInt(value);
+                }
+                else if (arg.equals("--rename")) {
+                    options.rename_pdfs = true;
+                }
+                else if (arg.startsWith("--move=")) {
+                    options.move_to_pdf_dir = true;
+                    pdf_dir = value;
+                }
+                else if (arg.equals("--write")) {
+                    options.write_pdf_docinfo = true;
+                }
+                else if (arg.equals("--erase")) {
+                    options.erase_pdf_docinfo = true;
+                }
+                else if (arg.equals("--incremental")) {
+                    options.incremental_update = true;
+                }
+                else if (arg.equals("--no-skip-up-to-date")) {
+                    options.skip_up_to_date = false;
+                }
+                else if (arg.equals("--no-skip-unchanged")) {
+                    options.skip_unchanged = false;
+                }
+                else if (arg.startsWith("--threads=")) {
+                    options.parallel_threads = Integer.parseInt(value);
+                }
+                else if (!arg.startsWith("--") && dir == null) {
+                    dir = new File(arg).getAbsoluteFile();
+                }
+                else {
+                    throw new IllegalArgumentException("invalid argument: " + arg);
+                }
+            }
+            if (dir == null) {
+                throw new IllegalArgumentException("no directory given");
+            }
+        }
+        catch (IllegalArgumentException e) {
+            System.err.print("PDFTaskLoadTest: " + e.getMessage() + "\n" + usage);
+            System.exit(2);
+        }
+        Map<String, Double> phases = new LinkedHashMap<String, Double>();
+
+        // generate database and PDF files, if needed
+        File db_file = new File(dir, "library.bib");
+        if (!db_file.isFile()) {
+            long start = System.nanoTime();
+            PDFTaskLoadGen.generate(dir, entries, 1, dirs, pdf_size, pages);
+            phases.put("generate", (System.nanoTime() - start) / 1e9);
+        }
+        long pdf_bytes = directorySize(dir.toPath());
+
+        // start sampling heap usage
+        HeapSampler heap = new HeapSampler();
+        heap.start();
+
+        // load database
+        long start = System.nanoTime();
+        if (Globals.prefs == null) {
+            Globals.prefs = JabRefPreferences.getInstance();
+        }
+        ParserResult pr = OpenDatabaseAction.loadDatabase(db_file, Globals.prefs.get("defaultEncoding"));
+        BibtexDatabase db = pr.getDatabase();
+        MetaData db_meta = pr.getMetaData();
+        db_meta.setFile(db_file);
+        BibtexEntry[] db_entries = db.getEntries().toArray(new BibtexEntry[0]);
+        phases.put("load", (System.nanoTime() - start) / 1e9);
+
+        // run engine; the plan phase ends when the plan is reviewed
+        if (options.move_to_pdf_dir) {
+            options.pdf_dir = PDFTaskEngine.absoluteFile(pdf_dir, dir);
+        }
+        final long[] plan_end = { 0 };
+        final int[] files = { 0 };
+        final boolean[] changed = { false };
+        PDFTaskEngine engine = new PDFTaskEngine(db, db_file, PDFTaskEngine.fileDirectories(db_meta, db_file),
+                                                 db_entries, options, new PDFTaskEngine.Listener() {
+                public void progress(int done, String status) {
+                }
+                public void message(String message) {
+                }
+                public boolean isCancelled() {
+                    return false;
+                }
+                public boolean isDryRun() {
+                    return false;
+                }
+                public PDFTaskEngine.Recovery chooseRecovery(int move_count, int write_count) {
+                    return PDFTaskEngine.Recovery.ROLL_BACK;
+                }
+                public PDFTaskEngine.Review reviewPlan(PDFTaskPlan plan, int move_count, int write_count) {
+                    plan_end[0] = System.nanoTime();
+                    files[0] = plan.getItems().size();
+                    return PDFTaskEngine.Review.PROCEED;
+                }
+                public void setFields(List<PDFFieldChange> changes) {
+                    if (PDFFieldChange.apply(changes)) {
+                        changed[0] = true;
+                    }
+                }
+            });
+        long engine_start = System.nanoTime();
+        engine.run();
+        long engine_end = System.nanoTime();
+        if (plan_end[0] > 0) {
+            phases.put("plan", (plan_end[0] - engine_start) / 1e9);
+            phases.put("execute", (engine_end - plan_end[0]) / 1e9);
+        }
+        else {
+            phases.put("plan", (engine_end - engine_start) / 1e9);
+        }
+        double engine_secs = (engine_end - engine_start) / 1e9;
+
+        // save database
+        start = System.nanoTime();
+        if (changed[0]) {
+            SaveSession session = FileActions.saveDatabase(db, db_meta, db_file, Globals.prefs,
+                                                           false, false, pr.getEncoding(), false);
+            session.commit();
+        }
+        phases.put("save", (System.nanoTime() - start) / 1e9);
+        heap.finish();
+
+        // report results
+        System.out.println(String.format("entries:          %d", db_entries.length));
+        System.out.println(String.format("pdf_files:        %d (%.1f MB)", files[0], pdf_bytes / 1048576.0));
+        System.out.println(String.format("moved:            %d", engine.getMovedCount()));
+        System.out.println(String.format("written:          %d", engine.getWrittenCount()));
+        System.out.println(String.format("up_to_date:       %d", engine.getUpToDateCount()));
+        System.out.println(String.format("unchanged:        %d", engine.getUnchangedCount()));
+        System.out.println(String.format("problems:         %d", engine.getProblemCount()));
+        System.out.println(String.format("errors:           %d", engine.getErrors().size()));
+        for (Map.Entry<String, Double> e : phases.entrySet()) {
+            System.out.println(String.format("time_%-12s%.3f s", e.getKey() + ":", e.getValue()));
+        }
+        System.out.println(String.format("files_per_sec:    %.1f", files[0] / engine_secs));
+        System.out.println(String.format("mb_per_sec:       %.1f", pdf_bytes / 1048576.0 / engine_secs));
+        System.out.println(String.format("peak_heap:        %.1f MB", heap.peak.get() / 1048576.0));
+        System.out.print(engine.getStats().summary());
+        for (String error : engine.getErrors()) {
+            System.err.println(error);
+        }
+
+    }
+
+    // return the total size of the PDF files in 'dir'
+    private static long directorySize(Path dir) throws IOException {
+        final long[] size = { 0 };
+        Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                    if (file.toString().endsWith(".pdf")) {
+                        size[0] += attrs.size();
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        return size[0];
+    }
+
+    // thread which samples the used heap every 10 milliseconds, and records its peak
+    private static final class HeapSampler
+        extends Thread
+    {
+        final AtomicLong peak = new AtomicLong();
+        private volatile boolean finished = false;
+        HeapSampler() {
+            super("PDFTaskLoadTest heap sampler");
+            setDaemon(true);
+        }
+        public void run() {
+            while (!finished) {
+                sample();
+                try {
+                    Thread.sleep(10);
+                }
+                catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+        void finish() throws InterruptedException {
+            finished = true;
+            join();
+            sample();
+        }
+        private void sample() {
+            Runtime rt = Runtime.getRuntime();
+            long used = rt.totalMemory() - rt.freeMemory();
+            if (used > peak.get()) {
+                peak.set(used);
+            }
+        }
+    }
+
+}
+
+// Local Variables:
+// mode: java
+// c-basic-offset: 4
+// tab-width: 4
+// End:
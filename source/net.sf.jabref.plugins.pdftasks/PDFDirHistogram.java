@@ -0,0 +1,172 @@
+//
+// JabRef PDFTasks Plugin
+// Copyright (C) 2011--2015  Karl Wette
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+//
+
+package net.sf.jabref.plugins.pdftasks;
+
+import net.sf.jabref.BibtexDatabase;
+import net.sf.jabref.BibtexEntry;
+import net.sf.jabref.DatabaseChangeEvent;
+import net.sf.jabref.DatabaseChangeListener;
+import net.sf.jabref.GUIGlobals;
+import net.sf.jabref.Globals;
+import net.sf.jabref.external.ExternalFileType;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// PDFTasks PDF directory histogram class
+// - counts the number of PDF file links in a Bibtex database in each directory, and is kept up to date
+//   by listening for changes to the database, so that the database need only be scanned once
+// - PDF files in the subdirectories of a PDF directory layout are counted in the PDF directory
+// - does not keep a reference to the database, so that it may be cached per database in a weak map
+final class PDFDirHistogram
+    implements DatabaseChangeListener
+{
+
+    // number of PDF file links in each directory
+    private final Map<String, Integer> dir_count = new HashMap<String, Integer>();
+
+    // file field and PDF file directories of each Bibtex entry, by entry ID
+    private final Map<String, String> entry_files = new HashMap<String, String>();
+    private final Map<String, List<String>> entry_dirs = new HashMap<String, List<String>>();
+
+    // cached directory where the majority of PDF files are stored
+    private String majority_dir = null;
+    private boolean majority_valid = false;
+
+    public PDFDirHistogram(BibtexDatabase db) {
+
+        // scan all entries in database
+        ExternalFileType pdf_type = Globals.prefs.getExternalFileTypeByExt("pdf");
+        for (BibtexEntry entry : db.getEntries()) {
+            add(entry, pdf_type);
+        }
+
+        // listen for changes to database
+        db.addDatabaseChangeListener(this);
+
+    }
+
+    public synchronized void databaseChanged(DatabaseChangeEvent e) {
+        BibtexEntry entry = e.getEntry();
+        if (entry == null) {
+            return;
+        }
+        switch (e.getType()) {
+        case ADDED_ENTRY:
+            add(entry, Globals.prefs.getExternalFileTypeByExt("pdf"));
+            break;
+        case REMOVED_ENTRY:
+            remove(entry);
+            break;
+        case CHANGED_ENTRY: {
+            // only rescan entry if its file field has changed
+            String files = entry.getField(GUIGlobals.FILE_FIELD);
+            String old_files = entry_files.get(entry.getId());
+            if (files == null ? old_files != null : !files.equals(old_files)) {
+                remove(entry);
+                add(entry, Globals.prefs.getExternalFileTypeByExt("pdf"));
+            }
+            break;
+        }
+        default:
+            break;
+        }
+    }
+
+    // return the directory where the majority of PDF files are stored, or null if there are none
+    public synchronized String getMajorityDirectory() {
+        if (!majority_valid) {
+            majority_dir = null;
+            int majority_count = 0;
+            for (Map.Entry<String, Integer> e : dir_count.entrySet()) {
+                if (e.getValue() > majority_count) {
+                    majority_count = e.getValue();
+                    majority_dir = e.getKey();
+                }
+            }
+            majority_valid = true;
+        }
+        return majority_dir;
+    }
+
+    // add the PDF file links of 'entry' to the histogram
+    private void add(BibtexEntry entry, ExternalFileType pdf_type) {
+
+        // get file links for this Bibtex entry
+        String files_str = entry.getField(GUIGlobals.FILE_FIELD);
+        List<PDFFileField.Link> files = PDFFileField.parse(files_str);
+
+        String key = entry.getCiteKey();
+        List<String> dirs = new ArrayList<String>();
+        for (PDFFileField.Link file_entry : files) {
+
+            // skip if this is not a PDF file link
+            if (!file_entry.hasType(pdf_type))
+                continue;
+
+            // parent directory of PDF file, or its parent if the PDF file is in the subdirectory
+            // for this Bibtex entry of a PDF directory layout
+            File pdf_parent = new File(file_entry.link).getParentFile();
+            if (pdf_parent != null && key != null && PDFTaskEngine.Layout.isSubdirectory(pdf_parent.getName(), key)) {
+                pdf_parent = pdf_parent.getParentFile();
+            }
+            String pdf_dir = pdf_parent != null ? pdf_parent.getPath() : null;
+
+            // add to map and increment count
+            Integer count = dir_count.get(pdf_dir);
+            dir_count.put(pdf_dir, count == null ? 1 : count + 1);
+            dirs.add(pdf_dir);
+
+        }
+
+        entry_files.put(entry.getId(), files_str);
+        entry_dirs.put(entry.getId(), dirs);
+        majority_valid = false;
+
+    }
+
+    // remove the PDF file links of 'entry' from the histogram
+    private void remove(BibtexEntry entry) {
+        entry_files.remove(entry.getId());
+        List<String> dirs = entry_dirs.remove(entry.getId());
+        if (dirs == null) {
+            return;
+        }
+        for (String pdf_dir : dirs) {
+            int count = dir_count.get(pdf_dir) - 1;
+            if (count > 0) {
+                dir_count.put(pdf_dir, count);
+            }
+            else {
+                dir_count.remove(pdf_dir);
+            }
+        }
+        majority_valid = false;
+    }
+
+}
+
+// Local Variables:
+// mode: java
+// c-basic-offset: 4
+// tab-width: 4
+// End:
@@ -0,0 +1,349 @@
+//
+// JabRef PDFTasks Plugin
+// Copyright (C) 2011--2015  Karl Wette
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+//
+
+package net.sf.jabref.plugins.pdftasks;
+
+import net.sf.jabref.BibtexDatabase;
+import net.sf.jabref.BibtexEntry;
+import net.sf.jabref.util.EncryptionNotSupportedException;
+import net.sf.jabref.util.XMPSchemaBibtex;
+import net.sf.jabref.util.XMPUtil;
+
+import org.apache.pdfbox.cos.COSDictionary;
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.exceptions.COSVisitorException;
+import org.apache.pdfbox.io.RandomAccessFile;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDDocumentCatalog;
+import org.apache.pdfbox.pdmodel.PDDocumentInformation;
+import org.apache.pdfbox.pdmodel.common.PDMetadata;
+import org.jempbox.impl.XMLUtil;
+import org.jempbox.xmp.XMPMetadata;
+import org.jempbox.xmp.XMPSchema;
+import org.jempbox.xmp.XMPSchemaDublinCore;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import javax.xml.transform.TransformerException;
+
+// PDFTasks PDF document information class
+// - writes the PDF document information dictionary and XMP metadata for a Bibtex entry
+//   in a single load/modify/save pass over the PDF file; the XMP metadata written is the
+//   same as that written by XMPUtil.writeXMP()
+// - changes may either be saved by rewriting the whole PDF file, or be appended to the
+//   PDF file as an incremental update containing only the changed objects; note that
+//   with an incremental update, previous document information remains in the PDF file
+//   as part of its earlier revision, even if it was erased
+// - PDF files larger than a given threshold are loaded in low-memory mode, where PDFBox
+//   keeps the contents of the streams it parses in a scratch file instead of on the heap
+final class PDFDocInfo {
+
+    private PDFDocInfo() {
+    }
+
+    // write document information for 'entry' to 'pdf_file', optionally erasing previous information first,
+    // and either rewriting 'pdf_file' or appending an incremental update to it
+    public static void write(File pdf_file, BibtexEntry entry, BibtexDatabase db, boolean erase, boolean incremental)
+        throws IOException, TransformerException, COSVisitorException
+    {
+        write(pdf_file, entry, db, erase, incremental, 0, new PDFTaskStats());
+    }
+
+    // as write() above, loading 'pdf_file' in low-memory mode if it is larger than 'low_memory_threshold' bytes
+    // (unless zero), and recording the time taken to load, erase, write XMP to, and save 'pdf_file' in 'stats'
+    public static void write(File pdf_file, BibtexEntry entry, BibtexDatabase db, boolean erase, boolean incremental,
+                             long low_memory_threshold, PDFTaskStats stats)
+        throws IOException, TransformerException, COSVisitorException
+    {
+
+        // create scratch file for low-memory mode
+        long length = pdf_file.length();
+        File scratch_file = null;
+        RandomAccessFile scratch = null;
+        if (low_memory_threshold > 0 && length > low_memory_threshold) {
+            scratch_file = File.createTempFile("pdftasks", ".scratch");
+            scratch = new RandomAccessFile(scratch_file, "rw");
+        }
+
+        // open PDF file
+        long start = stats.start();
+        PDDocument document;
+        try {
+            document = scratch != null ? PDDocument.load(pdf_file, scratch) : PDDocument.load(pdf_file);
+        }
+        catch (IOException e) {
+            closeScratch(scratch, scratch_file);
+            throw e;
+        }
+        stats.stop(PDFTaskStats.Phase.LOAD, start);
+        stats.addBytesRead(length);
+        try {
+
+            // cannot modify encrypted PDF files
+            if (document.isEncrypted()) {
+                throw new EncryptionNotSupportedException("PDF file '" + pdf_file.getPath() + "' is encrypted");
+            }
+
+            // modify document information
+            write(document, entry, db, erase, stats);
+
+            // save PDF file
+            start = stats.start();
+            if (incremental) {
+                saveIncremental(document, pdf_file);
+                stats.addBytesWritten(pdf_file.length() - length);
+            }
+            else {
+                document.save(pdf_file.getPath());
+                stats.addBytesWritten(pdf_file.length());
+            }
+            stats.stop(PDFTaskStats.Phase.SAVE, start);
+
+        }
+        finally {
+            document.close();
+            closeScratch(scratch, scratch_file);
+        }
+
+    }
+
+    // close and remove scratch file 'scratch_file', if any, opened as 'scratch'
+    private static void closeScratch(RandomAccessFile scratch, File scratch_file) throws IOException {
+        if (scratch != null) {
+            try {
+                scratch.close();
+            }
+            finally {
+                if (!scratch_file.delete()) {
+                    scratch_file.deleteOnExit();
+                }
+            }
+        }
+    }
+
+    // write document information for 'entry' to an open 'document', optionally erasing previous information first
+    public static void write(PDDocument document, BibtexEntry entry, BibtexDatabase db, boolean erase)
+        throws IOException, TransformerException
+    {
+        write(document, entry, db, erase, new PDFTaskStats());
+    }
+
+    // as write() above, recording the time taken to erase and write XMP to 'document' in 'stats'
+    public static void write(PDDocument document, BibtexEntry entry, BibtexDatabase db, boolean erase, PDFTaskStats stats)
+        throws IOException, TransformerException
+    {
+
+        // resolve strings in Bibtex entry, as done by XMPUtil.writeXMP()
+        if (db != null) {
+            entry = db.resolveForStrings(entry, false);
+        }
+
+        // erase document information and XML metadata
+        PDDocumentCatalog catalog = document.getDocumentCatalog();
+        if (erase) {
+            long start = stats.start();
+            document.setDocumentInformation(new PDDocumentInformation());
+            catalog.setMetadata(null);
+            stats.stop(PDFTaskStats.Phase.ERASE, start);
+        }
+
+        // write PDF document information dictionary
+        long start = stats.start();
+        XMPUtil.writeDocumentInformation(document, entry, null);
+
+        // write XMP metadata
+        byte[] xmp = buildXMP(catalog.getMetadata(), entry);
+        catalog.setMetadata(new PDMetadata(document, new ByteArrayInputStream(xmp), false));
+        stats.stop(PDFTaskStats.Phase.XMP, start);
+
+    }
+
+    // return whether the document information in 'pdf_file' is already that which write() would write for 'entry'
+    // - only the document information dictionary and XMP metadata stream are read from 'pdf_file'
+    // - the XMP metadata is compared by the Bibtex entry stored in its Bibtex schema; the Dublin Core
+    //   schema is only checked for presence, since it is derived from the same Bibtex entry
+    public static boolean isUpToDate(File pdf_file, BibtexEntry entry, BibtexDatabase db, boolean erase) {
+        try {
+
+            // read existing document information
+            PDFMetadata metadata = PDFMetadata.read(pdf_file);
+            if (metadata.encrypted || metadata.info == null || metadata.xmp == null) {
+                return false;
+            }
+
+            // resolve strings in Bibtex entry, as done by write()
+            if (db != null) {
+                entry = db.resolveForStrings(entry, false);
+            }
+
+            // compare document information dictionary with that written to a new document
+            // - if not erasing, previous document information may remain alongside that written
+            Map<String, String> info = new HashMap<String, String>();
+            PDDocument scratch = new PDDocument();
+            try {
+                XMPUtil.writeDocumentInformation(scratch, entry, null);
+                COSDictionary dict = scratch.getDocumentInformation().getDictionary();
+                for (COSName key : dict.keySet()) {
+                    info.put(key.getName(), dict.getString(key));
+                }
+            }
+            finally {
+                scratch.close();
+            }
+            if (erase ? !metadata.info.equals(info) : !metadata.info.entrySet().containsAll(info.entrySet())) {
+                return false;
+            }
+
+            // parse existing XMP metadata
+            XMPMetadata meta = new XMPMetadata(XMLUtil.parse(new ByteArrayInputStream(metadata.xmp)));
+            meta.addXMLNSMapping(XMPSchemaBibtex.NAMESPACE, XMPSchemaBibtex.class);
+            List<?> dc_schemas = meta.getSchemasByNamespaceURI(XMPSchemaDublinCore.NAMESPACE);
+            List<?> bibtex_schemas = meta.getSchemasByNamespaceURI(XMPSchemaBibtex.NAMESPACE);
+            if (dc_schemas.size() != 1 || bibtex_schemas.size() != 1) {
+                return false;
+            }
+
+            // if erasing, there should be no other schemas
+            if (erase && meta.getSchemas().size() != 2) {
+                return false;
+            }
+
+            // compare Bibtex entry stored in Bibtex schema with that written to new XMP metadata
+            XMPMetadata new_meta = new XMPMetadata();
+            XMPSchemaBibtex new_bibtex_schema = new XMPSchemaBibtex(new_meta);
+            new_meta.addSchema(new_bibtex_schema);
+            new_bibtex_schema.setBibtexEntry(entry, null);
+            return sameFields(((XMPSchemaBibtex) bibtex_schemas.get(0)).getBibtexEntry(),
+                              new_bibtex_schema.getBibtexEntry());
+
+        }
+        catch (IOException e) {
+            return false;
+        }
+    }
+
+    // return whether Bibtex entries 'a' and 'b' have the same type and fields
+    private static boolean sameFields(BibtexEntry a, BibtexEntry b) {
+        String a_type = a.getType() == null ? null : a.getType().getName();
+        String b_type = b.getType() == null ? null : b.getType().getName();
+        if (a_type == null ? b_type != null : !a_type.equals(b_type)) {
+            return false;
+        }
+        if (!a.getAllFields().equals(b.getAllFields())) {
+            return false;
+        }
+        for (String field : a.getAllFields()) {
+            String a_value = a.getField(field);
+            String b_value = b.getField(field);
+            if (a_value == null ? b_value != null : !a_value.equals(b_value)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // append changes to an open 'document' to 'pdf_file', from which it was loaded, as an incremental update
+    private static void saveIncremental(PDDocument document, File pdf_file)
+        throws IOException, COSVisitorException
+    {
+
+        // flag the objects changed by write() as needing to be updated:
+        // the trailer (which refers to the document information dictionary),
+        // the document information dictionary, the catalog, and the XMP metadata stream
+        document.getDocument().getTrailer().setNeedToBeUpdate(true);
+        document.getDocumentInformation().getDictionary().setNeedToBeUpdate(true);
+        PDDocumentCatalog catalog = document.getDocumentCatalog();
+        catalog.getCOSDictionary().setNeedToBeUpdate(true);
+        PDMetadata metadata = catalog.getMetadata();
+        if (metadata != null) {
+            metadata.getStream().setNeedToBeUpdate(true);
+        }
+
+        // append incremental update section to the end of the PDF file
+        // - only the flagged objects, a new cross-reference section, and a new trailer are written
+        FileInputStream input = new FileInputStream(pdf_file);
+        try {
+            OutputStream output = new BufferedOutputStream(new FileOutputStream(pdf_file, true));
+            try {
+                document.saveIncremental(input, output);
+            }
+            finally {
+                output.close();
+            }
+        }
+        finally {
+            input.close();
+        }
+
+    }
+
+    // build XMP metadata for 'entry', replacing any Dublin Core and Bibtex schemas in existing metadata 'meta_raw'
+    private static byte[] buildXMP(PDMetadata meta_raw, BibtexEntry entry)
+        throws IOException, TransformerException
+    {
+
+        // parse existing XMP metadata, if any
+        XMPMetadata meta;
+        if (meta_raw != null) {
+            meta = new XMPMetadata(XMLUtil.parse(meta_raw.createInputStream()));
+        }
+        else {
+            meta = new XMPMetadata();
+        }
+        meta.addXMLNSMapping(XMPSchemaBibtex.NAMESPACE, XMPSchemaBibtex.class);
+
+        // remove existing Dublin Core and Bibtex schemas
+        for (String ns : new String[] { XMPSchemaDublinCore.NAMESPACE, XMPSchemaBibtex.NAMESPACE }) {
+            for (Object schema : meta.getSchemasByNamespaceURI(ns)) {
+                ((XMPSchema) schema).getElement().getParentNode().removeChild(((XMPSchema) schema).getElement());
+            }
+        }
+
+        // add Dublin Core schema
+        XMPSchemaDublinCore dc_schema = new XMPSchemaDublinCore(meta);
+        XMPUtil.writeToDCSchema(dc_schema, entry, null);
+        meta.addSchema(dc_schema);
+
+        // add Bibtex schema
+        XMPSchemaBibtex bibtex_schema = new XMPSchemaBibtex(meta);
+        meta.addSchema(bibtex_schema);
+        bibtex_schema.setBibtexEntry(entry, null);
+
+        // serialise XMP metadata
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        meta.save(os);
+        return os.toByteArray();
+
+    }
+
+}
+
+// Local Variables:
+// mode: java
+// c-basic-offset: 4
+// tab-width: 4
+// End:
@@ -0,0 +1,492 @@
+//
+// JabRef PDFTasks Plugin
+// Copyright (C) 2011--2015  Karl Wette
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+//
+
+package net.sf.jabref.plugins.pdftasks;
+
+import net.sf.jabref.BibtexEntry;
+import net.sf.jabref.GUIGlobals;
+import net.sf.jabref.Globals;
+import net.sf.jabref.external.ExternalFileType;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+// PDFTasks duplicate PDF file class
+// - finds PDF files linked from Bibtex entries which have identical contents, and PDF files which
+//   are linked from more than one Bibtex entry
+// - PDF files are first grouped by size, and only PDF files which have the same size as another
+//   are hashed; hashing is done in parallel, with memory-mapped I/O, and content hashes are cached
+//   in the processing index by path, size, and modification time, so that later scans are cheap
+// - PDF files are identified by their canonical paths, and paths which are the same file (e.g. a symbolic
+//   link and its target) are treated as one PDF file, so that removing one cannot break the other
+// - groups of identical PDF files may be collapsed to a single canonical PDF file: links to the other
+//   PDF files are changed to the canonical PDF file, and the other PDF files are then removed; since
+//   the removed PDF files cannot be restored, the changes to links should not be undoable
+final class PDFDuplicates {
+
+    // a PDF file link of a Bibtex entry
+    static final class LinkRef {
+        final BibtexEntry entry;
+        final int file_index;
+        final String link;
+        final String description;
+        final File file;
+        LinkRef(BibtexEntry entry, int file_index, String link, String description, File file) {
+            this.entry = entry;
+            this.file_index = file_index;
+            this.link = link;
+            this.description = description;
+            this.file = file;
+        }
+    }
+
+    // a group of identical PDF files, and the links to them; the first PDF file is canonical
+    static final class Group {
+        final long size;
+        final List<File> files = new ArrayList<File>();
+        final List<LinkRef> links = new ArrayList<LinkRef>();
+        Group(long size) {
+            this.size = size;
+        }
+    }
+
+    // listener for progress, and for changes to the Bibtex database
+    interface Listener {
+
+        // report that 'done' of the PDF files have been hashed, with status 'status'
+        void progress(int done, String status);
+
+        // return whether the user has cancelled
+        boolean isCancelled();
+
+        // set fields of Bibtex entries as given by 'changes', where they have changed, and mark the
+        // database as changed; all changes of a collapse are passed at once
+        void setFields(List<PDFFieldChange> changes);
+
+    }
+
+    // default number of threads for hashing
+    static final int DEFAULT_THREADS = 2 * Runtime.getRuntime().availableProcessors();
+
+    private final List<File> db_dirs;
+    private final PDFLinkResolver resolver;
+    private final PDFTaskIndex index;
+    private final PDFPathCache paths = new PDFPathCache();
+    private final ExternalFileType pdf_type;
+    private final int threads;
+
+    // PDF files identified so far, by real path
+    private final Map<Path, File> real_files = new HashMap<Path, File>();
+
+    // modification times of PDF files when they were hashed
+    private final Map<File, Long> mtimes = new HashMap<File, Long>();
+
+    private final List<String> errors = new ArrayList<String>();
+    private int hashed_count = 0;
+    private boolean cancelled = false;
+
+    // find duplicates of PDF files linked relative to 'db_dirs' and resolved with 'resolver';
+    // content hashes are cached in 'index', if not null
+    public PDFDuplicates(List<File> db_dirs, PDFLinkResolver resolver, PDFTaskIndex index, int threads) {
+        this.db_dirs = db_dirs;
+        this.resolver = resolver;
+        this.index = index;
+        this.pdf_type = Globals.prefs.getExternalFileTypeByExt("pdf");
+        this.threads = threads;
+    }
+
+    // errors which occurred
+    public List<String> getErrors() {
+        return errors;
+    }
+
+    // number of PDF files whose contents were compared
+    public int getHashedCount() {
+        return hashed_count;
+    }
+
+    // whether finding duplicates was cancelled
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    // count the PDF file links of 'entries'
+    public static int countLinks(Collection<BibtexEntry> entries) {
+        ExternalFileType pdf_type = Globals.prefs.getExternalFileTypeByExt("pdf");
+        int count = 0;
+        for (BibtexEntry entry : entries) {
+            for (PDFFileField.Link file_entry : PDFFileField.parse(entry.getField(GUIGlobals.FILE_FIELD))) {
+                if (file_entry.hasType(pdf_type)) {
+                    ++count;
+                }
+            }
+        }
+        return count;
+    }
+
+    // find groups of identical PDF files linked from 'entries', and PDF files linked from more than one entry;
+    // progress is reported first for resolving links, then for comparing PDF files, each out of the link count
+    public List<Group> find(Collection<BibtexEntry> entries, Listener listener) {
+
+        // resolve PDF file links, and group them by PDF file
+        Map<File, List<LinkRef>> file_links = new LinkedHashMap<File, List<LinkRef>>();
+        int link_count = 0;
+        for (BibtexEntry entry : entries) {
+            if (listener.isCancelled()) {
+                cancelled = true;
+                return Collections.emptyList();
+            }
+            List<PDFFileField.Link> files = PDFFileField.parse(entry.getField(GUIGlobals.FILE_FIELD));
+            for (int i = 0; i < files.size(); ++i) {
+                PDFFileField.Link file_entry = files.get(i);
+                if (!file_entry.hasType(pdf_type)) {
+                    continue;
+                }
+                if (link_count++ % 100 == 0) {
+                    listener.progress(link_count - 1, "Resolving PDF links...");
+                }
+                File pdf_file = identify(resolver.resolve(file_entry.link));
+                if (pdf_file == null) {
+                    continue;
+                }
+                List<LinkRef> links = file_links.get(pdf_file);
+                if (links == null) {
+                    links = new ArrayList<LinkRef>();
+                    file_links.put(pdf_file, links);
+                }
+                links.add(new LinkRef(entry, i, file_entry.link, file_entry.description, pdf_file));
+            }
+        }
+
+        // group PDF files by size; only PDF files with the same size as another can be identical
+        Map<Long, List<File>> size_files = new HashMap<Long, List<File>>();
+        for (File pdf_file : file_links.keySet()) {
+            long size = pdf_file.length();
+            List<File> same_size = size_files.get(size);
+            if (same_size == null) {
+                same_size = new ArrayList<File>(1);
+                size_files.put(size, same_size);
+            }
+            same_size.add(pdf_file);
+        }
+        List<File> candidates = new ArrayList<File>();
+        for (List<File> same_size : size_files.values()) {
+            if (same_size.size() > 1) {
+                candidates.addAll(same_size);
+            }
+        }
+
+        // hash candidate PDF files in parallel
+        Map<File, String> hashes = hash(candidates, link_count, listener);
+        if (cancelled) {
+            return Collections.emptyList();
+        }
+
+        // group PDF files by content hash; PDF files which were not hashed are in groups by themselves
+        Map<String, Group> hash_groups = new LinkedHashMap<String, Group>();
+        for (Map.Entry<File, List<LinkRef>> e : file_links.entrySet()) {
+            File pdf_file = e.getKey();
+            String hash = hashes.get(pdf_file);
+            String group_key = hash != null ? hash : "\0" + pdf_file.getPath();
+            Group group = hash_groups.get(group_key);
+            if (group == null) {
+                group = new Group(pdf_file.length());
+                hash_groups.put(group_key, group);
+            }
+            group.files.add(pdf_file);
+            group.links.addAll(e.getValue());
+        }
+
+        // return groups of more than one PDF file, or of a PDF file linked from more than one entry
+        List<Group> groups = new ArrayList<Group>();
+        for (Group group : hash_groups.values()) {
+            Set<BibtexEntry> group_entries = new HashSet<BibtexEntry>();
+            for (LinkRef ref : group.links) {
+                group_entries.add(ref.entry);
+            }
+            if (group.files.size() > 1 || group_entries.size() > 1) {
+                sortCanonicalFirst(group);
+                groups.add(group);
+            }
+        }
+        return groups;
+
+    }
+
+    // collapse each group of identical PDF files in 'groups' to its canonical PDF file, changing
+    // links to the other PDF files, then removing them; returns the number of PDF files removed
+    public int collapse(List<Group> groups, Listener listener) {
+
+        // determine new links, for PDF files which have not changed since they were hashed
+        Map<BibtexEntry, Map<Integer, String[]>> entry_changes = new LinkedHashMap<BibtexEntry, Map<Integer, String[]>>();
+        Map<File, List<LinkRef>> redundant = new LinkedHashMap<File, List<LinkRef>>();
+        for (Group group : groups) {
+            if (group.files.size() < 2) {
+                continue;
+            }
+            File canonical = group.files.get(0);
+            String new_link = paths.relativePath(canonical, db_dirs.get(0));
+            if (new_link == null) {
+                new_link = canonical.getPath();
+            }
+            for (LinkRef ref : group.links) {
+                if (ref.file.equals(canonical)) {
+                    continue;
+                }
+                if (!isUnchanged(ref.file)) {
+                    errors.add("PDF file '" + ref.file.getPath() + "' has changed since it was compared, " +
+                               "and was not removed.");
+                    continue;
+                }
+                Map<Integer, String[]> changes = entry_changes.get(ref.entry);
+                if (changes == null) {
+                    changes = new HashMap<Integer, String[]>();
+                    entry_changes.put(ref.entry, changes);
+                }
+                changes.put(ref.file_index, new String[] { ref.link, new_link });
+                List<LinkRef> refs = redundant.get(ref.file);
+                if (refs == null) {
+                    refs = new ArrayList<LinkRef>();
+                    redundant.put(ref.file, refs);
+                }
+                refs.add(ref);
+            }
+        }
+
+        // change links of Bibtex entries; links which become the same as an earlier link are removed
+        Set<File> still_linked = new HashSet<File>();
+        List<PDFFieldChange> field_changes = new ArrayList<PDFFieldChange>();
+        for (Map.Entry<BibtexEntry, Map<Integer, String[]>> e : entry_changes.entrySet()) {
+            BibtexEntry entry = e.getKey();
+            List<PDFFileField.Link> files = PDFFileField.parse(entry.getField(GUIGlobals.FILE_FIELD));
+            for (Map.Entry<Integer, String[]> change : e.getValue().entrySet()) {
+                int i = change.getKey();
+                if (i < files.size() && files.get(i).link.equals(change.getValue()[0])) {
+                    files.get(i).link = change.getValue()[1];
+                }
+                else {
+                    // entry has changed; do not remove the PDF file it links to
+                    still_linked.add(identify(resolver.resolve(change.getValue()[0])));
+                }
+            }
+            Set<String> links = new HashSet<String>();
+            List<PDFFileField.Link> new_files = new ArrayList<PDFFileField.Link>();
+            for (PDFFileField.Link file_entry : files) {
+                if (!file_entry.hasType(pdf_type) || links.add(file_entry.link)) {
+                    new_files.add(file_entry);
+                }
+            }
+            field_changes.add(new PDFFieldChange(entry, GUIGlobals.FILE_FIELD, PDFFileField.serialize(new_files)));
+        }
+        if (!field_changes.isEmpty()) {
+            listener.setFields(field_changes);
+        }
+
+        // remove redundant PDF files
+        int removed_count = 0;
+        for (File pdf_file : redundant.keySet()) {
+            if (still_linked.contains(pdf_file)) {
+                errors.add("PDF file '" + pdf_file.getPath() + "' is still linked, and was not removed.");
+                continue;
+            }
+            try {
+                Files.delete(pdf_file.toPath());
+                resolver.invalidate(pdf_file.getParentFile());
+                ++removed_count;
+            }
+            catch (IOException e) {
+                errors.add("Could not remove PDF file '" + pdf_file.getPath() + "': " + e + ".");
+            }
+        }
+        return removed_count;
+
+    }
+
+    // return the PDF file 'pdf_file' is identified as: its canonical path, or the canonical path of the same
+    // file found earlier, if it is e.g. a symbolic link to or from that file; returns null if 'pdf_file'
+    // is null or cannot be canonicalised
+    private File identify(File pdf_file) {
+        if (pdf_file == null) {
+            return null;
+        }
+        try {
+            Path path = paths.canonicalFile(pdf_file);
+            Path real_path = path.toRealPath();
+            File file = real_files.get(real_path);
+            if (file == null) {
+                file = path.toFile();
+                real_files.put(real_path, file);
+            }
+            return file;
+        }
+        catch (IOException e) {
+            errors.add("Could not canonicalise PDF file '" + pdf_file.getPath() + "': " + e + ".");
+            return null;
+        }
+    }
+
+    // hash 'files' in parallel, using content hashes cached in the index where possible;
+    // progress is scaled to 'total'
+    private Map<File, String> hash(List<File> files, int total, Listener listener) {
+        Map<File, String> hashes = new HashMap<File, String>();
+        ExecutorService pool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "PDFTasks duplicates");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        try {
+            CompletionService<Object[]> results = new ExecutorCompletionService<Object[]>(pool);
+            for (final File pdf_file : files) {
+                results.submit(new Callable<Object[]>() {
+                        public Object[] call() {
+                            long size = pdf_file.length();
+                            long mtime = pdf_file.lastModified();
+                            String hash = index != null ? index.getContentHash(pdf_file, size, mtime) : null;
+                            if (hash == null) {
+                                try {
+                                    hash = PDFTaskIndex.contentHash(pdf_file);
+                                }
+                                catch (IOException e) {
+                                    return new Object[] { pdf_file, mtime, null, e };
+                                }
+                                if (index != null) {
+                                    index.putContentHash(pdf_file, size, mtime, hash);
+                                }
+                            }
+                            return new Object[] { pdf_file, mtime, hash, null };
+                        }
+                    });
+            }
+            for (int done = 0; done < files.size(); ++done) {
+                if (listener.isCancelled()) {
+                    cancelled = true;
+                    break;
+                }
+                if (done % 100 == 0) {
+                    listener.progress((int) ((long) done * total / files.size()),
+                                      String.format("Comparing PDF files (%d of %d)...", done, files.size()));
+                }
+                Object[] result;
+                try {
+                    result = results.take().get();
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    cancelled = true;
+                    break;
+                }
+                catch (ExecutionException e) {
+                    e.printStackTrace();
+                    continue;
+                }
+                File pdf_file = (File) result[0];
+                if (result[2] == null) {
+                    errors.add("Could not read PDF file '" + pdf_file.getPath() + "': " + result[3] + ".");
+                    continue;
+                }
+                mtimes.put(pdf_file, (Long) result[1]);
+                hashes.put(pdf_file, (String) result[2]);
+                ++hashed_count;
+            }
+        }
+        finally {
+            pool.shutdownNow();
+        }
+        return hashes;
+    }
+
+    // return whether 'pdf_file' is unchanged since it was hashed
+    private boolean isUnchanged(File pdf_file) {
+        Long mtime = mtimes.get(pdf_file);
+        return mtime != null && pdf_file.lastModified() == mtime;
+    }
+
+    // sort the PDF files of 'group' so that the canonical PDF file is first: preferably one which is
+    // already named as the PDF tasks would rename it, then one within the file directories, then the
+    // one with the shortest path
+    private void sortCanonicalFirst(final Group group) {
+        final Map<File, Integer> scores = new HashMap<File, Integer>();
+        for (File pdf_file : group.files) {
+            int score = isInFileDirectory(pdf_file) ? 1 : 0;
+            for (LinkRef ref : group.links) {
+                String key = ref.entry.getCiteKey();
+                if (ref.file.equals(pdf_file) && key != null && !key.isEmpty() &&
+                    pdf_file.getName().equals(PDFTaskEngine.pdfName(key, ref.description, pdf_type)))
+                {
+                    score = 2;
+                }
+            }
+            scores.put(pdf_file, score);
+        }
+        Collections.sort(group.files, new Comparator<File>() {
+                public int compare(File a, File b) {
+                    int c = scores.get(b) - scores.get(a);
+                    if (c == 0) {
+                        c = a.getPath().length() - b.getPath().length();
+                    }
+                    if (c == 0) {
+                        c = a.getPath().compareTo(b.getPath());
+                    }
+                    return c;
+                }
+            });
+    }
+
+    // return whether 'pdf_file' is within one of the file directories
+    private boolean isInFileDirectory(File pdf_file) {
+        try {
+            for (File dir : db_dirs) {
+                if (paths.canonicalFile(pdf_file).startsWith(paths.canonicalDir(dir))) {
+                    return true;
+                }
+            }
+        }
+        catch (IOException e) {
+            // cannot be canonicalised, so cannot be shown to be within a file directory
+        }
+        return false;
+    }
+
+}
+
+// Local Variables:
+// mode: java
+// c-basic-offset: 4
+// tab-width: 4
+// End:
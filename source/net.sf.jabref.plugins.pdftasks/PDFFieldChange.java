@@ -0,0 +1,64 @@
+//
+// JabRef PDFTasks Plugin
+// Copyright (C) 2011--2015  Karl Wette
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+//
+
+package net.sf.jabref.plugins.pdftasks;
+
+
+import net.sf.jabref.BibtexEntry;
+
+import java.util.List;
+
+// PDFTasks field change class
+// - a change to a field of a Bibtex entry, made by the PDF tasks; changes are collected and passed
+//   to the user interface in batches, so that they can be applied together, e.g. as a single undoable edit
+final class PDFFieldChange {
+
+    final BibtexEntry entry;
+    final String field;
+    final String value;
+
+    PDFFieldChange(BibtexEntry entry, String field, String value) {
+        this.entry = entry;
+        this.field = field;
+        this.value = value;
+    }
+
+    // return whether this change would change the field
+    public boolean isChange() {
+        return !value.equals(entry.getField(field));
+    }
+
+    // apply 'changes' directly, without undo; returns whether any field was changed
+    public static boolean apply(List<PDFFieldChange> changes) {
+        boolean changed = false;
+        for (PDFFieldChange change : changes) {
+            if (change.isChange()) {
+                change.entry.setField(change.field, change.value);
+                changed = true;
+            }
+        }
+        return changed;
+    }
+
+}
+
+// Local Variables:
+// mode: java
+// c-basic-offset: 4
+// tab-width: 4
+// End:
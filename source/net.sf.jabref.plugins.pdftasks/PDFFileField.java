@@ -0,0 +1,182 @@
+//
+// JabRef PDFTasks Plugin
+// Copyright (C) 2011--2015  Karl Wette
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+//
+
+package net.sf.jabref.plugins.pdftasks;
+
+
+import net.sf.jabref.Globals;
+import net.sf.jabref.external.ExternalFileType;
+import net.sf.jabref.external.UnknownExternalFileType;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// PDFTasks file field class
+// - parses and serialises the file field of a Bibtex entry into compact file link records,
+//   without constructing a Swing FileListTableModel
+// - parsing follows FileListTableModel.setContent(), and serialising follows
+//   FileListTableModel.getStringRepresentation(), so that a file field written by JabRef
+//   is reproduced exactly; file types are kept as written, and are only looked up by hasType()
+final class PDFFileField {
+
+    // a file link
+    static final class Link {
+        final String description;
+        String link;
+        final String type;
+        Link(String description, String link, String type) {
+            this.description = description;
+            this.link = link;
+            this.type = type;
+        }
+
+        // return whether this link has external file type 'file_type'; as in FileListTableModel,
+        // an unknown type name is deduced from it as a MIME type, or else from the link extension
+        boolean hasType(ExternalFileType file_type) {
+            if (type.equals(file_type.getName())) {
+                return true;
+            }
+            ExternalFileType named = Globals.prefs.getExternalFileTypeByName(type);
+            if (named != null && !(named instanceof UnknownExternalFileType)) {
+                return named.equals(file_type);
+            }
+            ExternalFileType deduced = Globals.prefs.getExternalFileTypeByMimeType(type);
+            if (deduced == null) {
+                int i = link.lastIndexOf('.');
+                if (i >= 0 && i < link.length() - 1) {
+                    deduced = Globals.prefs.getExternalFileTypeByExt(link.substring(i + 1));
+                }
+            }
+            return file_type.equals(deduced);
+        }
+    }
+
+    private PDFFileField() {
+    }
+
+    // parse file field 'files_str', which may be null
+    static List<Link> parse(String files_str) {
+        List<Link> links = new ArrayList<Link>(2);
+        if (files_str == null) {
+            return links;
+        }
+        StringBuilder sb = new StringBuilder();
+        String[] fields = new String[3];
+        int n = 0;
+        boolean in_xml_char = false;
+        boolean escaped = false;
+        for (int i = 0; i < files_str.length(); ++i) {
+            char c = files_str.charAt(i);
+            if (!escaped && c == '\\') {
+                escaped = true;
+                continue;
+            }
+
+            // entering an XML character reference such as "&#44;", whose semicolon is not a separator
+            else if (!escaped && c == '&' && !in_xml_char) {
+                sb.append(c);
+                if (i + 1 < files_str.length() && files_str.charAt(i + 1) == '#') {
+                    in_xml_char = true;
+                }
+            }
+
+            // leaving an XML character reference
+            else if (!escaped && in_xml_char && c == ';') {
+                sb.append(c);
+                in_xml_char = false;
+            }
+
+            // end of field
+            else if (!escaped && c == ':') {
+                n = addField(fields, n, sb);
+            }
+
+            // end of link
+            else if (!escaped && c == ';') {
+                n = addField(fields, n, sb);
+                links.add(newLink(fields, n));
+                n = 0;
+            }
+
+            else {
+                sb.append(c);
+            }
+            escaped = false;
+        }
+        if (sb.length() > 0) {
+            n = addField(fields, n, sb);
+        }
+        if (n > 0) {
+            links.add(newLink(fields, n));
+        }
+        return links;
+    }
+
+    // serialise 'links' into a file field
+    static String serialize(List<Link> links) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < links.size(); ++i) {
+            if (i > 0) {
+                sb.append(';');
+            }
+            Link link = links.get(i);
+            encode(sb, link.description);
+            sb.append(':');
+            encode(sb, link.link);
+            sb.append(':');
+            encode(sb, link.type);
+        }
+        return sb.toString();
+    }
+
+    // add the field in 'sb' to 'fields', which holds 'n' fields, and clear 'sb'; returns the new number of fields
+    // - only the first three fields (description, link, type) are kept, as in FileListTableModel
+    private static int addField(String[] fields, int n, StringBuilder sb) {
+        if (n < fields.length) {
+            fields[n] = sb.toString();
+        }
+        sb.setLength(0);
+        return n + 1;
+    }
+
+    // return a new link from the first 'n' of 'fields'; missing fields are empty
+    private static Link newLink(String[] fields, int n) {
+        return new Link(n > 0 ? fields[0] : "", n > 1 ? fields[1] : "", n > 2 ? fields[2] : "");
+    }
+
+    // append 's' to 'sb', escaping separators as in Util.encodeString()
+    private static void encode(StringBuilder sb, String s) {
+        if (s == null) {
+            return;
+        }
+        for (int i = 0; i < s.length(); ++i) {
+            char c = s.charAt(i);
+            if (c == ';' || c == ':' || c == '\\') {
+                sb.append('\\');
+            }
+            sb.append(c);
+        }
+    }
+
+}
+
+// Local Variables:
+// mode: java
+// c-basic-offset: 4
+// tab-width: 4
+// End:
@@ -0,0 +1,183 @@
+//
+// JabRef PDFTasks Plugin
+// Copyright (C) 2011--2015  Karl Wette
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+//
+
+package net.sf.jabref.plugins.pdftasks;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+// PDFTasks PDF file mover class
+// - if the source and target are on the same filesystem, the PDF file is renamed atomically
+// - otherwise the PDF file is copied to a temporary file next to the target, which is synced to disk
+//   and verified, by comparing the content hashes of the source and the copy, before being renamed to
+//   the target; the target and its directory are then synced to disk, and only then is the source
+//   removed, so that an interrupted or corrupted copy never leaves the PDF file without a complete copy
+// - may be used from multiple threads
+final class PDFFileMover {
+
+    // result of moving a PDF file
+    static final class Result {
+        final long bytes;
+        final long nanos;
+        final boolean copied;
+        Result(long bytes, long nanos, boolean copied) {
+            this.bytes = bytes;
+            this.nanos = nanos;
+            this.copied = copied;
+        }
+        // throughput in megabytes per second
+        double megabytesPerSecond() {
+            return nanos > 0 ? (bytes / 1048576.0) / (nanos / 1e9) : 0;
+        }
+    }
+
+    private PDFFileMover() {
+    }
+
+    // move 'source' to 'target', creating parent directories of 'target' as needed;
+    // if 'replace' is false, fails if 'target' already exists
+    public static Result move(File source, File target, boolean replace) throws IOException {
+        return move(source, target, replace, true);
+    }
+
+    // move 'source' to 'target' as above, but always by copying, as if they were on different filesystems
+    static Result copy(File source, File target, boolean replace) throws IOException {
+        return move(source, target, replace, false);
+    }
+
+    // move 'source' to 'target', renaming it if 'rename' is true and they are on the same filesystem
+    private static Result move(File source, File target, boolean replace, boolean rename) throws IOException {
+        long start = System.nanoTime();
+        Path src = source.toPath();
+        Path dst = target.toPath();
+        long bytes = Files.size(src);
+
+        // create parent directories
+        Path dst_dir = dst.toAbsolutePath().getParent();
+        Files.createDirectories(dst_dir);
+        if (!replace && Files.exists(dst)) {
+            throw new FileAlreadyExistsException(dst.toString());
+        }
+
+        // rename atomically if on the same filesystem
+        if (rename && Files.getFileStore(src).equals(Files.getFileStore(dst_dir))) {
+            try {
+                Files.move(src, dst, StandardCopyOption.ATOMIC_MOVE);
+                return new Result(bytes, System.nanoTime() - start, false);
+            }
+            catch (AtomicMoveNotSupportedException e) {
+                // fall back to copying
+            }
+        }
+
+        // copy to temporary file next to target
+        Path tmp = temporaryFile(dst.toAbsolutePath().toFile()).toPath();
+        try {
+            FileChannel in = FileChannel.open(src, StandardOpenOption.READ);
+            try {
+                FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                                                   StandardOpenOption.WRITE);
+                try {
+                    long pos = 0;
+                    while (pos < bytes) {
+                        long n = in.transferTo(pos, bytes - pos, out);
+                        if (n <= 0) {
+                            break;
+                        }
+                        pos += n;
+                    }
+                    out.force(true);
+                }
+                finally {
+                    out.close();
+                }
+            }
+            finally {
+                in.close();
+            }
+
+            // verify copy: sizes first, since they are cheap to compare, then contents
+            long copied_bytes = Files.size(tmp);
+            if (copied_bytes != bytes || Files.size(src) != bytes) {
+                throw new IOException(String.format("copied %d of %d bytes", copied_bytes, bytes));
+            }
+            if (!PDFTaskIndex.contentHash(tmp.toFile()).equals(PDFTaskIndex.contentHash(source))) {
+                throw new IOException("contents of copy differ from source");
+            }
+            Files.setLastModifiedTime(tmp, Files.getLastModifiedTime(src));
+
+            // rename temporary file to target
+            if (replace) {
+                Files.move(tmp, dst, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            }
+            else {
+                Files.move(tmp, dst, StandardCopyOption.ATOMIC_MOVE);
+            }
+        }
+        finally {
+            Files.deleteIfExists(tmp);
+        }
+
+        // sync target, and its directory so that the rename is durable, before removing source
+        sync(dst, false);
+        sync(dst_dir, true);
+
+        // remove source
+        Files.delete(src);
+
+        return new Result(bytes, System.nanoTime() - start, true);
+    }
+
+    // sync file or directory 'path' to disk; directories cannot be synced on some platforms,
+    // e.g. Windows, in which case errors are ignored if 'is_dir' is true
+    private static void sync(Path path, boolean is_dir) throws IOException {
+        try {
+            FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+            try {
+                channel.force(true);
+            }
+            finally {
+                channel.close();
+            }
+        }
+        catch (IOException e) {
+            if (!is_dir) {
+                throw e;
+            }
+        }
+    }
+
+    // return the temporary file used when copying to 'target'
+    static File temporaryFile(File target) {
+        return new File(target.getParentFile(), "." + target.getName() + ".pdftasks-tmp");
+    }
+
+}
+
+// Local Variables:
+// mode: java
+// c-basic-offset: 4
+// tab-width: 4
+// End:
@@ -0,0 +1,261 @@
+//
+// JabRef PDFTasks Plugin
+// Copyright (C) 2011--2015  Karl Wette
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+//
+
+package net.sf.jabref.plugins.pdftasks;
+
+
+import net.sf.jabref.BibtexEntry;
+import net.sf.jabref.GUIGlobals;
+import net.sf.jabref.Globals;
+import net.sf.jabref.external.ExternalFileType;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+// PDFTasks link check class
+// - checks every PDF file link of a collection of Bibtex entries, and reports links to missing files,
+//   files outside the file directories, unreadable, unparsed, or encrypted PDF files, and files not
+//   named after their Bibtex key as the PDF tasks would rename them
+// - links are checked concurrently by a large pool of threads, since checking is dominated by
+//   filesystem latency (e.g. on network storage) rather than by computation; directory listings
+//   are shared through a PDFLinkResolver, and only the metadata of each PDF file is read
+final class PDFLinkCheck {
+
+    // problems with a PDF file link
+    enum Problem {
+        MISSING("PDF file not found"),
+        OUTSIDE("PDF file is outside the file directories"),
+        UNREADABLE("PDF file cannot be read"),
+        UNPARSED("PDF file cannot be parsed"),
+        ENCRYPTED("PDF file is encrypted"),
+        MISNAMED("PDF file is not named after its Bibtex key");
+        final String description;
+        Problem(String description) {
+            this.description = description;
+        }
+    }
+
+    // a problem with a PDF file link of a Bibtex entry
+    static final class Result {
+        final BibtexEntry entry;
+        final String key;
+        final String link;
+        final Problem problem;
+        Result(BibtexEntry entry, String key, String link, Problem problem) {
+            this.entry = entry;
+            this.key = key;
+            this.link = link;
+            this.problem = problem;
+        }
+    }
+
+    // listener for progress of the check
+    interface Listener {
+
+        // report that 'done' of the PDF file links have been checked
+        void progress(int done, String status);
+
+        // return whether the user has cancelled the check
+        boolean isCancelled();
+
+    }
+
+    // default number of threads; many more than processors, since threads mostly wait for the filesystem
+    static final int DEFAULT_THREADS = Math.max(32, 8 * Runtime.getRuntime().availableProcessors());
+
+    private final List<File> db_dirs;
+    private final PDFLinkResolver resolver;
+    private final PDFPathCache paths = new PDFPathCache();
+    private final ExternalFileType pdf_type;
+    private final int threads;
+
+    private int link_count = 0;
+    private boolean cancelled = false;
+
+    public PDFLinkCheck(List<File> db_dirs, PDFLinkResolver resolver, int threads) {
+        this.db_dirs = db_dirs;
+        this.resolver = resolver;
+        this.pdf_type = Globals.prefs.getExternalFileTypeByExt("pdf");
+        this.threads = threads;
+    }
+
+    // number of PDF file links checked
+    public int getLinkCount() {
+        return link_count;
+    }
+
+    // whether the check was cancelled
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    // return the number of PDF file links of 'entries'
+    public int countLinks(Collection<BibtexEntry> entries) {
+        int count = 0;
+        for (BibtexEntry entry : entries) {
+            for (PDFFileField.Link file_entry : PDFFileField.parse(entry.getField(GUIGlobals.FILE_FIELD))) {
+                if (file_entry.hasType(pdf_type)) {
+                    ++count;
+                }
+            }
+        }
+        return count;
+    }
+
+    // check the PDF file links of 'entries'; returns the problems found, in no particular order
+    public List<Result> check(Collection<BibtexEntry> entries, Listener listener) {
+        List<Result> results = new ArrayList<Result>();
+
+        // create pool of daemon threads, so that a stuck filesystem cannot keep JabRef from exiting
+        ExecutorService pool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "PDFTasks link check");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        try {
+
+            // submit a check of each PDF file link
+            CompletionService<List<Result>> checks = new ExecutorCompletionService<List<Result>>(pool);
+            link_count = 0;
+            for (final BibtexEntry entry : entries) {
+                String key = entry.getCiteKey();
+                final String entry_key = key != null && key.length() > 0 ? key : null;
+                for (final PDFFileField.Link file_entry : PDFFileField.parse(entry.getField(GUIGlobals.FILE_FIELD))) {
+                    if (!file_entry.hasType(pdf_type)) {
+                        continue;
+                    }
+                    checks.submit(new Callable<List<Result>>() {
+                            public List<Result> call() {
+                                return checkLink(entry, entry_key, file_entry);
+                            }
+                        });
+                    ++link_count;
+                }
+            }
+
+            // collect results
+            for (int done = 0; done < link_count; ++done) {
+                if (listener.isCancelled()) {
+                    cancelled = true;
+                    break;
+                }
+                if (done % 100 == 0) {
+                    listener.progress(done, String.format("Checking PDF links (%d of %d)...", done, link_count));
+                }
+                try {
+                    results.addAll(checks.take().get());
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    cancelled = true;
+                    break;
+                }
+                catch (ExecutionException e) {
+                    e.printStackTrace();
+                }
+            }
+
+        }
+        finally {
+            pool.shutdownNow();
+        }
+
+        return results;
+    }
+
+    // check PDF file link 'file_entry' of Bibtex 'entry' with key 'key'; may be called from any thread
+    private List<Result> checkLink(BibtexEntry entry, String key, PDFFileField.Link file_entry) {
+        List<Result> results = new ArrayList<Result>(1);
+        String link = file_entry.link;
+
+        // check PDF file exists
+        File pdf_file = resolver.resolve(link);
+        if (pdf_file == null) {
+            results.add(new Result(entry, key, link, Problem.MISSING));
+            return results;
+        }
+
+        // check PDF file is within one of the file directories
+        if (!isInFileDirectory(pdf_file)) {
+            results.add(new Result(entry, key, link, Problem.OUTSIDE));
+        }
+
+        // check PDF file is named as the PDF tasks would rename it
+        if (key == null || !pdf_file.getName().equals(PDFTaskEngine.pdfName(key, file_entry.description, pdf_type))) {
+            results.add(new Result(entry, key, link, Problem.MISNAMED));
+        }
+
+        // check PDF file can be read, and is not encrypted
+        Problem problem = checkReadable(pdf_file);
+        if (problem != null) {
+            results.add(new Result(entry, key, link, problem));
+        }
+
+        return results;
+    }
+
+    // return whether 'pdf_file' is within one of the file directories
+    private boolean isInFileDirectory(File pdf_file) {
+        try {
+            Path path = paths.canonicalFile(pdf_file);
+            for (File dir : db_dirs) {
+                if (path.startsWith(paths.canonicalDir(dir))) {
+                    return true;
+                }
+            }
+        }
+        catch (IOException e) {
+            // cannot be canonicalised, so cannot be shown to be within a file directory
+        }
+        return false;
+    }
+
+    // return a problem reading 'pdf_file', or null if it can be read; only its metadata is read,
+    // and if it cannot be read that way, the PDF file is reported as unparsed
+    private static Problem checkReadable(File pdf_file) {
+        if (!pdf_file.canRead()) {
+            return Problem.UNREADABLE;
+        }
+        try {
+            return PDFMetadata.read(pdf_file).encrypted ? Problem.ENCRYPTED : null;
+        }
+        catch (IOException e) {
+            return Problem.UNPARSED;
+        }
+    }
+
+}
+
+// Local Variables:
+// mode: java
+// c-basic-offset: 4
+// tab-width: 4
+// End:
@@ -0,0 +1,545 @@
+//
+// JabRef PDFTasks Plugin
+// Copyright (C) 2011--2015  Karl Wette
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+//
+
+package net.sf.jabref.plugins.pdftasks;
+
+
+import net.sf.jabref.BibtexDatabase;
+import net.sf.jabref.BibtexEntry;
+import net.sf.jabref.DatabaseChangeEvent;
+import net.sf.jabref.DatabaseChangeListener;
+import net.sf.jabref.GUIGlobals;
+import net.sf.jabref.Globals;
+import net.sf.jabref.external.ExternalFileType;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+// PDFTasks link health class
+// - keeps a live index of which PDF file links in a Bibtex database resolve to existing files:
+//   the database is scanned once, and the index is then kept up to date by listening for changes
+//   to the database, and by watching the directories containing the PDF files with a WatchService
+// - the initial scan resolves every link, which accesses the filesystem (possibly over a network),
+//   so it is done on a background thread; the counts of links are only valid once isReady()
+// - after a change to a watched directory, only the links to the names reported as changed are
+//   rechecked; all links into the directory are only rechecked if events were lost
+// - the link resolver used to build the index has its directory indexes invalidated whenever a
+//   watched directory changes, so that it may be used by the PDF tasks without listing directories again
+// - does not keep a reference to the database, so that it may be cached per database in a weak map;
+//   the watching thread stops once this class is no longer referenced
+final class PDFLinkHealth
+    implements DatabaseChangeListener
+{
+
+    private final List<File> dirs;
+    private final PDFLinkResolver resolver;
+    private final PDFPathCache paths = new PDFPathCache();
+    private final ExternalFileType pdf_type;
+    private final Runnable on_change;
+
+    // file field of each Bibtex entry, by entry ID
+    private final Map<String, String> entry_files = new HashMap<String, String>();
+
+    // PDF file links of each Bibtex entry, whether each link resolves, and the directories
+    // which could contain the PDF files, by entry ID
+    private final Map<String, List<String>> entry_links = new HashMap<String, List<String>>();
+    private final Map<String, boolean[]> entry_resolved = new HashMap<String, boolean[]>();
+    private final Map<String, List<Path>> entry_dirs = new HashMap<String, List<Path>>();
+
+    // candidate PDF files of each Bibtex entry, by entry ID
+    private final Map<String, List<Path>> entry_paths = new HashMap<String, List<Path>>();
+
+    // IDs of Bibtex entries with PDF file links which could be in each directory, or could be each file
+    private final Map<Path, Set<String>> dir_entries = new HashMap<Path, Set<String>>();
+    private final Map<Path, Set<String>> file_entries = new HashMap<Path, Set<String>>();
+
+    // IDs of Bibtex entries not yet scanned by the initial scan, and whether it has completed
+    private final Set<String> pending = new HashSet<String>();
+    private boolean ready = false;
+    private volatile boolean closed = false;
+
+    // number of PDF file links, and number of those which do not resolve
+    private int link_count = 0;
+    private int broken_count = 0;
+
+    // service watching directories, or null if not available, and the directories being watched
+    private final WatchService watcher;
+    private final Set<Path> watched = new HashSet<Path>();
+
+    // create an index of the PDF file links of 'db', which are resolved relative to 'dirs';
+    // 'on_change' is run, from any thread, whenever the number of broken links changes, and
+    // when the initial scan has completed
+    // - must be called on the thread which changes 'db', typically the event thread; only the file
+    //   fields of the Bibtex entries are read here, and links are resolved on a background thread
+    public PDFLinkHealth(BibtexDatabase db, List<File> dirs, Runnable on_change) {
+        this.dirs = new ArrayList<File>(dirs);
+        this.resolver = new PDFLinkResolver(dirs);
+        this.pdf_type = Globals.prefs.getExternalFileTypeByExt("pdf");
+        this.on_change = on_change;
+
+        // create service for watching directories
+        WatchService w = null;
+        try {
+            w = FileSystems.getDefault().newWatchService();
+        }
+        catch (IOException e) {
+            e.printStackTrace();
+        }
+        watcher = w;
+
+        // take a snapshot of the file fields of all entries in database, then listen for changes to it;
+        // entries which change before they are scanned are rescanned by databaseChanged() instead
+        final Map<String, String> snapshot = new LinkedHashMap<String, String>();
+        for (BibtexEntry entry : db.getEntries()) {
+            snapshot.put(entry.getId(), entry.getField(GUIGlobals.FILE_FIELD));
+        }
+        synchronized (this) {
+            pending.addAll(snapshot.keySet());
+        }
+        db.addDatabaseChangeListener(this);
+
+        // scan entries in database on a background thread
+        Thread scanner = new Thread(new Runnable() {
+                public void run() {
+                    scan(snapshot);
+                }
+            }, "PDFTasks link health scan");
+        scanner.setDaemon(true);
+        scanner.start();
+
+        // listen for changes to watched directories
+        if (watcher != null) {
+            Thread thread = new Thread(new Watcher(this, watcher), "PDFTasks link health");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+    }
+
+    public synchronized void databaseChanged(DatabaseChangeEvent e) {
+        BibtexEntry entry = e.getEntry();
+        if (entry == null) {
+            return;
+        }
+        boolean was_pending = pending.remove(entry.getId());
+        int old_broken_count = broken_count;
+        switch (e.getType()) {
+        case ADDED_ENTRY:
+            add(entry);
+            break;
+        case REMOVED_ENTRY:
+            remove(entry.getId());
+            break;
+        case CHANGED_ENTRY: {
+            // only rescan entry if its file field has changed, or it has not been scanned yet
+            String files = entry.getField(GUIGlobals.FILE_FIELD);
+            String old_files = entry_files.get(entry.getId());
+            if (was_pending || (files == null ? old_files != null : !files.equals(old_files))) {
+                remove(entry.getId());
+                add(entry);
+            }
+            break;
+        }
+        default:
+            break;
+        }
+        if (broken_count != old_broken_count) {
+            on_change.run();
+        }
+    }
+
+    // stop listening for changes to 'db', and stop scanning and watching directories
+    public void close(BibtexDatabase db) {
+        closed = true;
+        db.removeDatabaseChangeListener(this);
+        if (watcher != null) {
+            try {
+                watcher.close();
+            }
+            catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    // directories which PDF file links are resolved relative to
+    public List<File> getDirectories() {
+        return dirs;
+    }
+
+    // link resolver, whose directory indexes are kept up to date
+    public PDFLinkResolver getResolver() {
+        return resolver;
+    }
+
+    // whether the initial scan has completed, so that the numbers of links are valid
+    public synchronized boolean isReady() {
+        return ready;
+    }
+
+    // number of PDF file links, and number of those which do not resolve
+    public synchronized int getLinkCount() {
+        return link_count;
+    }
+    public synchronized int getBrokenCount() {
+        return broken_count;
+    }
+
+    // also watch directory 'dir', e.g. the directory PDF files are to be moved to
+    public void setTargetDirectory(File dir) {
+        if (dir != null) {
+            watch(dir);
+        }
+    }
+
+    // scan the Bibtex entries in 'snapshot', a map from entry IDs to file fields, which have not
+    // been scanned since by databaseChanged(); links are resolved without holding the lock
+    private void scan(Map<String, String> snapshot) {
+        for (File dir : dirs) {
+            watch(dir);
+        }
+        for (Map.Entry<String, String> e : snapshot.entrySet()) {
+            if (closed) {
+                return;
+            }
+            String id = e.getKey();
+            synchronized (this) {
+                if (!pending.contains(id)) {
+                    continue;
+                }
+            }
+            EntryLinks scanned = resolveLinks(e.getValue());
+            synchronized (this) {
+                if (pending.remove(id)) {
+                    install(id, e.getValue(), scanned);
+                }
+            }
+            for (Path dir : scanned.dirs) {
+                watch(dir.toFile());
+            }
+        }
+        synchronized (this) {
+            ready = true;
+        }
+        on_change.run();
+    }
+
+    // PDF file links of a Bibtex entry, whether each link resolves, and the directories and
+    // files which could contain and be the PDF files
+    private static final class EntryLinks {
+        final List<String> links = new ArrayList<String>();
+        boolean[] resolved;
+        final List<Path> dirs = new ArrayList<Path>();
+        final List<Path> files = new ArrayList<Path>();
+    }
+
+    // resolve the PDF file links of file field 'files_str'; does not access the index, so need not hold the lock
+    private EntryLinks resolveLinks(String files_str) {
+        EntryLinks scanned = new EntryLinks();
+        for (PDFFileField.Link file_entry : PDFFileField.parse(files_str)) {
+            if (file_entry.hasType(pdf_type)) {
+                scanned.links.add(file_entry.link);
+            }
+        }
+        scanned.resolved = new boolean[scanned.links.size()];
+        for (int i = 0; i < scanned.links.size(); ++i) {
+            String link = scanned.links.get(i);
+
+            // directories and files which could be the PDF file
+            File link_file = new File(link);
+            List<File> candidates = new ArrayList<File>();
+            if (link_file.isAbsolute()) {
+                candidates.add(link_file);
+            }
+            else {
+                for (File dir : dirs) {
+                    candidates.add(new File(dir, link));
+                }
+            }
+            for (File candidate : candidates) {
+                Path file;
+                try {
+                    file = paths.canonicalFile(candidate);
+                }
+                catch (IOException e) {
+                    continue;
+                }
+                Path dir = file.getParent();
+                if (dir == null) {
+                    continue;
+                }
+                if (!scanned.dirs.contains(dir)) {
+                    scanned.dirs.add(dir);
+                }
+                if (!scanned.files.contains(file)) {
+                    scanned.files.add(file);
+                }
+            }
+
+            // whether the link resolves
+            scanned.resolved[i] = resolver.resolve(link) != null;
+
+        }
+        return scanned;
+    }
+
+    // add the PDF file links of 'entry' to the index
+    private void add(BibtexEntry entry) {
+        String files_str = entry.getField(GUIGlobals.FILE_FIELD);
+        EntryLinks scanned = resolveLinks(files_str);
+        install(entry.getId(), files_str, scanned);
+        for (Path dir : scanned.dirs) {
+            watch(dir.toFile());
+        }
+    }
+
+    // add the resolved PDF file links 'scanned' of the Bibtex entry with ID 'id' to the index
+    private void install(String id, String files_str, EntryLinks scanned) {
+        entry_files.put(id, files_str);
+        if (scanned.links.isEmpty()) {
+            return;
+        }
+        for (Path dir : scanned.dirs) {
+            addId(dir_entries, dir, id);
+        }
+        for (Path file : scanned.files) {
+            addId(file_entries, file, id);
+        }
+        entry_links.put(id, scanned.links);
+        entry_resolved.put(id, scanned.resolved);
+        entry_dirs.put(id, scanned.dirs);
+        entry_paths.put(id, scanned.files);
+        link_count += scanned.links.size();
+        for (boolean resolved : scanned.resolved) {
+            if (!resolved) {
+                ++broken_count;
+            }
+        }
+    }
+
+    // add 'id' to the IDs of 'path' in 'map'
+    private static void addId(Map<Path, Set<String>> map, Path path, String id) {
+        Set<String> ids = map.get(path);
+        if (ids == null) {
+            ids = new HashSet<String>();
+            map.put(path, ids);
+        }
+        ids.add(id);
+    }
+
+    // remove 'id' from the IDs of 'path' in 'map'
+    private static void removeId(Map<Path, Set<String>> map, Path path, String id) {
+        Set<String> ids = map.get(path);
+        if (ids != null) {
+            ids.remove(id);
+            if (ids.isEmpty()) {
+                map.remove(path);
+            }
+        }
+    }
+
+    // remove the PDF file links of the Bibtex entry with ID 'id' from the index
+    private void remove(String id) {
+        entry_files.remove(id);
+        List<String> links = entry_links.remove(id);
+        if (links == null) {
+            return;
+        }
+        for (boolean resolved : entry_resolved.remove(id)) {
+            if (!resolved) {
+                --broken_count;
+            }
+        }
+        link_count -= links.size();
+        for (Path dir : entry_dirs.remove(id)) {
+            removeId(dir_entries, dir, id);
+        }
+        for (Path file : entry_paths.remove(id)) {
+            removeId(file_entries, file, id);
+        }
+    }
+
+    // check whether the PDF file links of the Bibtex entry with ID 'id' resolve, and watch their directories
+    private void check(String id) {
+        List<String> links = entry_links.get(id);
+        boolean[] resolved = entry_resolved.get(id);
+        for (int i = 0; i < resolved.length; ++i) {
+            boolean now = resolver.resolve(links.get(i)) != null;
+            if (now != resolved[i]) {
+                broken_count += now ? -1 : 1;
+                resolved[i] = now;
+            }
+        }
+        for (Path dir : entry_dirs.get(id)) {
+            watch(dir.toFile());
+        }
+    }
+
+    // recheck PDF file links after changes to 'names' in watched directory 'dir', or to all of 'dir'
+    // if 'overflow', i.e. if events were lost
+    private synchronized void dirChanged(Path dir, Set<Path> names, boolean overflow) {
+        int old_broken_count = broken_count;
+        resolver.invalidate(dir.toFile());
+
+        // recheck links to the changed names, and to files in subdirectories which may have been
+        // created or removed; or if events were lost, links into 'dir' and its subdirectories
+        Set<String> ids = new HashSet<String>();
+        List<Path> changed = new ArrayList<Path>();
+        if (overflow) {
+            changed.add(dir);
+        }
+        else {
+            for (Path name : names) {
+                Path file = dir.resolve(name);
+                Set<String> file_ids = file_entries.get(file);
+                if (file_ids != null) {
+                    ids.addAll(file_ids);
+                }
+                changed.add(file);
+            }
+        }
+        for (Map.Entry<Path, Set<String>> e : dir_entries.entrySet()) {
+            for (Path path : changed) {
+                if (e.getKey().startsWith(path)) {
+                    if (!e.getKey().equals(dir)) {
+                        resolver.invalidate(e.getKey().toFile());
+                    }
+                    ids.addAll(e.getValue());
+                    break;
+                }
+            }
+        }
+        for (String id : ids) {
+            check(id);
+        }
+
+        if (broken_count != old_broken_count) {
+            on_change.run();
+        }
+    }
+
+    // watch directory 'dir' for changes, if it exists and is not already watched
+    private void watch(File dir) {
+        if (watcher == null) {
+            return;
+        }
+        Path path;
+        try {
+            path = paths.canonicalDir(dir);
+        }
+        catch (IOException e) {
+            return;
+        }
+        synchronized (watched) {
+            if (watched.contains(path) || !dir.isDirectory()) {
+                return;
+            }
+            try {
+                path.register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE,
+                              StandardWatchEventKinds.ENTRY_MODIFY);
+                watched.add(path);
+            }
+            catch (IOException e) {
+                e.printStackTrace();
+            }
+            catch (ClosedWatchServiceException e) {
+                // closed
+            }
+        }
+    }
+
+    // thread which waits for changes to watched directories; keeps only a weak reference to the
+    // link health index, and stops once it is no longer referenced, or the watch service is closed
+    private static final class Watcher
+        implements Runnable
+    {
+        private final WeakReference<PDFLinkHealth> health_ref;
+        private final WatchService watcher;
+        Watcher(PDFLinkHealth health, WatchService watcher) {
+            this.health_ref = new WeakReference<PDFLinkHealth>(health);
+            this.watcher = watcher;
+        }
+        public void run() {
+            try {
+                while (true) {
+                    WatchKey key = watcher.poll(1, TimeUnit.SECONDS);
+                    PDFLinkHealth health = health_ref.get();
+                    if (health == null) {
+                        break;
+                    }
+                    if (key == null) {
+                        continue;
+                    }
+                    boolean overflow = false;
+                    Set<Path> names = new HashSet<Path>();
+                    for (WatchEvent<?> event : key.pollEvents()) {
+                        if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                            overflow = true;
+                        }
+                        else if (event.context() instanceof Path) {
+                            names.add((Path) event.context());
+                        }
+                    }
+                    health.dirChanged((Path) key.watchable(), names, overflow);
+                    if (!key.reset()) {
+                        synchronized (health.watched) {
+                            health.watched.remove((Path) key.watchable());
+                        }
+                    }
+                }
+            }
+            catch (InterruptedException e) {
+                // stop watching
+            }
+            catch (ClosedWatchServiceException e) {
+                // stop watching
+            }
+            finally {
+                try {
+                    watcher.close();
+                }
+                catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+}
+
+// Local Variables:
+// mode: java
+// c-basic-offset: 4
+// tab-width: 4
+// End:
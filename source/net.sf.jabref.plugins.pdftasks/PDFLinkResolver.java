@@ -0,0 +1,160 @@
+//
+// JabRef PDFTasks Plugin
+// Copyright (C) 2011--2015  Karl Wette
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+//
+
+package net.sf.jabref.plugins.pdftasks;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+// PDFTasks PDF link resolver class
+// - resolves PDF file links relative to a list of preferred file directories, using an in-memory
+//   index of the names in each directory: each directory is canonicalised and listed once, and
+//   links are then resolved without further filesystem access
+// - if a link is not found in the index, the filesystem is probed directly; if the file is found
+//   there, the index of its directory is out of date and the directory is listed again when next needed
+// - resolved files have canonical parent directories; unlike File.getCanonicalFile(), a symbolic
+//   link to a PDF file is not itself resolved; the same link resolves to the same file whether or not
+//   it is found in the index, so resolved files may be compared for equality while the index is in use
+// - resolved files are always checked to be regular files (or symbolic links to regular files), so that
+//   e.g. a directory named like a PDF file is not resolved, and stale index entries are not returned
+// - may be used from multiple threads
+final class PDFLinkResolver {
+
+    // index of the names in a directory
+    private static final class DirIndex {
+        final File dir;
+        final Set<String> names;
+        DirIndex(File dir, Set<String> names) {
+            this.dir = dir;
+            this.names = names;
+        }
+    }
+
+    private final List<File> dirs;
+    private final ConcurrentHashMap<String, DirIndex> dir_indexes = new ConcurrentHashMap<String, DirIndex>();
+
+    public PDFLinkResolver(List<File> dirs) {
+        this.dirs = new ArrayList<File>(dirs);
+    }
+
+    // resolve 'link' to an existing file, trying each directory in turn; returns null if not found
+    public File resolve(String link) {
+
+        // try index of each candidate parent directory
+        File link_file = new File(link);
+        List<File> candidates = new ArrayList<File>();
+        if (link_file.isAbsolute()) {
+            candidates.add(link_file);
+        }
+        else {
+            for (File dir : dirs) {
+                candidates.add(new File(dir, link));
+            }
+        }
+        for (File candidate : candidates) {
+            DirIndex index = getIndex(candidate.getParentFile());
+            if (index != null && index.names.contains(candidate.getName())) {
+                File file = new File(index.dir, candidate.getName());
+                if (file.isFile()) {
+                    return file;
+                }
+            }
+        }
+
+        // index miss: probe the filesystem directly, canonicalising only the parent directory, as above
+        for (File candidate : candidates) {
+            File parent = candidate.getParentFile();
+            if (parent == null) {
+                continue;
+            }
+            File file;
+            try {
+                file = new File(parent.getCanonicalFile(), candidate.getName());
+            }
+            catch (IOException e) {
+                continue;
+            }
+            if (file.isFile()) {
+
+                // index of parent directory is out of date
+                invalidate(candidate.getParentFile());
+                return file;
+
+            }
+        }
+
+        return null;
+
+    }
+
+    // discard the index of directory 'dir', e.g. after files have been moved into or out of it;
+    // 'dir' may be given either as a canonical path or as the path used to look it up
+    public void invalidate(File dir) {
+        if (dir == null) {
+            return;
+        }
+        for (Map.Entry<String, DirIndex> e : dir_indexes.entrySet()) {
+            if (e.getKey().equals(dir.getPath()) || e.getValue().dir.equals(dir)) {
+                dir_indexes.remove(e.getKey(), e.getValue());
+            }
+        }
+    }
+
+    // return the index of directory 'dir', listing it if necessary
+    private DirIndex getIndex(File dir) {
+        if (dir == null) {
+            return null;
+        }
+        String key = dir.getPath();
+        DirIndex index = dir_indexes.get(key);
+        if (index == null) {
+            File canonical_dir;
+            try {
+                canonical_dir = dir.getCanonicalFile();
+            }
+            catch (IOException e) {
+                return null;
+            }
+            String[] names = canonical_dir.list();
+            Set<String> name_set = new HashSet<String>();
+            if (names != null) {
+                name_set.addAll(Arrays.asList(names));
+            }
+            index = new DirIndex(canonical_dir, name_set);
+            DirIndex prev = dir_indexes.putIfAbsent(key, index);
+            if (prev != null) {
+                index = prev;
+            }
+        }
+        return index;
+    }
+
+}
+
+// Local Variables:
+// mode: java
+// c-basic-offset: 4
+// tab-width: 4
+// End:
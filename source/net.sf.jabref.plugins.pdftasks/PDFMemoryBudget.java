@@ -0,0 +1,68 @@
+//
+// JabRef PDFTasks Plugin
+// Copyright (C) 2011--2015  Karl Wette
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+//
+
+package net.sf.jabref.plugins.pdftasks;
+
+
+// PDFTasks memory budget class
+// - admission control for PDF files loaded in parallel: a PDF file is only loaded once the
+//   estimated heap used by PDF files already loaded, plus that of the PDF file, is within budget
+// - a PDF file which by itself exceeds the budget is still admitted once nothing else is loaded,
+//   so that every PDF file is eventually processed
+// - may be used from multiple threads
+final class PDFMemoryBudget {
+
+    private final long budget;
+    private long in_flight = 0;
+
+    PDFMemoryBudget(long budget) {
+        this.budget = budget;
+    }
+
+    // estimated heap used to load a PDF file of 'size' bytes; PDF files larger than
+    // 'low_memory_threshold' are loaded with a scratch file, and use at most about that much heap
+    static long estimate(long size, long low_memory_threshold) {
+        return low_memory_threshold > 0 ? Math.min(size, low_memory_threshold) : size;
+    }
+
+    // wait until 'bytes' can be admitted within budget, then admit them
+    synchronized void acquire(long bytes) throws InterruptedException {
+        while (in_flight > 0 && in_flight + bytes > budget) {
+            wait();
+        }
+        in_flight += bytes;
+    }
+
+    // release 'bytes' previously admitted by acquire()
+    synchronized void release(long bytes) {
+        in_flight -= bytes;
+        notifyAll();
+    }
+
+    // estimated heap currently used by admitted PDF files
+    synchronized long getInFlight() {
+        return in_flight;
+    }
+
+}
+
+// Local Variables:
+// mode: java
+// c-basic-offset: 4
+// tab-width: 4
+// End:
@@ -0,0 +1,801 @@
+//
+// JabRef PDFTasks Plugin
+// Copyright (C) 2011--2015  Karl Wette
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+//
+
+package net.sf.jabref.plugins.pdftasks;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+// PDFTasks PDF metadata reader class
+// - reads the document information dictionary and XMP metadata stream of a PDF file
+//   without loading the whole document: only the trailers, the cross-reference sections,
+//   and the objects needed to reach the metadata are read from the file
+// - supports cross-reference tables and streams, incremental updates, and objects stored
+//   in object streams; streams must be unfiltered or FlateDecode-compressed
+// - read() throws an IOException if the PDF file cannot be read this way; callers report the PDF
+//   file as unparsed rather than loading the whole document with PDFBox, which may need memory
+//   proportional to the document, and is not bounded by PDFMemoryBudget when reading in parallel
+final class PDFMetadata {
+
+    // document information dictionary, or null if the PDF file has none
+    public final Map<String, String> info;
+
+    // XMP metadata stream contents, or null if the PDF file has none
+    public final byte[] xmp;
+
+    // whether the PDF file is encrypted; if so, 'info' and 'xmp' are not read
+    public final boolean encrypted;
+
+    private PDFMetadata(Map<String, String> info, byte[] xmp, boolean encrypted) {
+        this.info = info;
+        this.xmp = xmp;
+        this.encrypted = encrypted;
+    }
+
+    // read metadata from 'pdf_file'
+    public static PDFMetadata read(File pdf_file) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(pdf_file, "r");
+        try {
+            return new Reader(file).read();
+        }
+        catch (RuntimeException e) {
+            throw new IOException("Could not parse PDF file '" + pdf_file.getPath() + "'", e);
+        }
+        finally {
+            file.close();
+        }
+    }
+
+    private static final Charset ISO_8859_1 = StandardCharsets.ISO_8859_1;
+
+    // PDF indirect object reference
+    private static final class Ref {
+        final int num;
+        Ref(int num) {
+            this.num = num;
+        }
+    }
+
+    // PDF stream: dictionary and offset of (undecoded) data in file
+    private static final class Stream {
+        final Map<String, Object> dict;
+        final long offset;
+        Stream(Map<String, Object> dict, long offset) {
+            this.dict = dict;
+            this.offset = offset;
+        }
+    }
+
+    // thrown when the lexer runs off the end of its buffer
+    private static final class EndOfBuffer extends RuntimeException {
+        EndOfBuffer() {
+            super(null, null, false, false);
+        }
+    }
+
+    // PDF object lexer/parser over a byte buffer
+    private static final class Lexer {
+
+        final byte[] buf;
+        final int end;
+        int pos;
+
+        Lexer(byte[] buf, int pos, int end) {
+            this.buf = buf;
+            this.pos = pos;
+            this.end = end;
+        }
+
+        int peek() {
+            if (pos >= end) {
+                throw new EndOfBuffer();
+            }
+            return buf[pos] & 0xff;
+        }
+
+        int next() {
+            int c = peek();
+            ++pos;
+            return c;
+        }
+
+        static boolean isWhitespace(int c) {
+            return c == 0 || c == '\t' || c == '\n' || c == '\f' || c == '\r' || c == ' ';
+        }
+
+        static boolean isDelimiter(int c) {
+            return c == '(' || c == ')' || c == '<' || c == '>' || c == '[' || c == ']' ||
+                c == '{' || c == '}' || c == '/' || c == '%';
+        }
+
+        // skip whitespace and comments
+        void skipWhitespace() {
+            while (true) {
+                int c = peek();
+                if (c == '%') {
+                    while (c != '\r' && c != '\n') {
+                        c = next();
+                    }
+                }
+                else if (isWhitespace(c)) {
+                    ++pos;
+                }
+                else {
+                    break;
+                }
+            }
+        }
+
+        // read a keyword or number token
+        String token() {
+            skipWhitespace();
+            int start = pos;
+            while (pos < end && !isWhitespace(buf[pos] & 0xff) && !isDelimiter(buf[pos] & 0xff)) {
+                ++pos;
+            }
+            if (pos == start) {
+                throw new IllegalStateException("expected token at offset " + start);
+            }
+            return new String(buf, start, pos - start, ISO_8859_1);
+        }
+
+        // expect the given keyword
+        void expect(String keyword) {
+            String t = token();
+            if (!t.equals(keyword)) {
+                throw new IllegalStateException("expected '" + keyword + "', found '" + t + "'");
+            }
+        }
+
+        // parse a PDF object: dictionaries are returned as maps, arrays as lists, names as strings,
+        // strings as byte arrays, integers as longs, reals as doubles, and references as Refs
+        Object object() {
+            skipWhitespace();
+            int c = peek();
+            switch (c) {
+            case '/':
+                ++pos;
+                return name();
+            case '(':
+                ++pos;
+                return literalString();
+            case '[': {
+                ++pos;
+                List<Object> array = new ArrayList<Object>();
+                while (true) {
+                    skipWhitespace();
+                    if (peek() == ']') {
+                        ++pos;
+                        return array;
+                    }
+                    array.add(object());
+                }
+            }
+            case '<':
+                ++pos;
+                if (peek() == '<') {
+                    ++pos;
+                    Map<String, Object> dict = new LinkedHashMap<String, Object>();
+                    while (true) {
+                        skipWhitespace();
+                        if (peek() == '>') {
+                            ++pos;
+                            if (next() != '>') {
+                                throw new IllegalStateException("malformed dictionary at offset " + pos);
+                            }
+                            return dict;
+                        }
+                        if (next() != '/') {
+                            throw new IllegalStateException("expected name at offset " + pos);
+                        }
+                        String key = name();
+                        dict.put(key, object());
+                    }
+                }
+                return hexString();
+            default:
+                break;
+            }
+            String t = token();
+            if (t.equals("true") || t.equals("false")) {
+                return Boolean.valueOf(t);
+            }
+            if (t.equals("null")) {
+                return null;
+            }
+            if (t.indexOf('.') >= 0) {
+                return Double.valueOf(t);
+            }
+            long n = Long.parseLong(t);
+
+            // look ahead for an indirect reference 'num gen R'
+            int mark = pos;
+            try {
+                skipWhitespace();
+                if (Character.isDigit(peek())) {
+                    String gen = token();
+                    skipWhitespace();
+                    if (isInteger(gen) && peek() == 'R') {
+                        ++pos;
+                        if (pos >= end || isWhitespace(buf[pos] & 0xff) || isDelimiter(buf[pos] & 0xff)) {
+                            return new Ref((int) n);
+                        }
+                    }
+                }
+            }
+            catch (EndOfBuffer e) {
+                // number at end of buffer
+            }
+            pos = mark;
+            return Long.valueOf(n);
+        }
+
+        static boolean isInteger(String t) {
+            for (int i = 0; i < t.length(); ++i) {
+                if (!Character.isDigit(t.charAt(i))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        // parse a name, after the leading '/'
+        String name() {
+            StringBuilder sb = new StringBuilder();
+            while (pos < end && !isWhitespace(buf[pos] & 0xff) && !isDelimiter(buf[pos] & 0xff)) {
+                int c = next();
+                if (c == '#') {
+                    c = Integer.parseInt(new String(buf, pos, 2, ISO_8859_1), 16);
+                    pos += 2;
+                }
+                sb.append((char) c);
+            }
+            return sb.toString();
+        }
+
+        // parse a literal string, after the leading '('
+        byte[] literalString() {
+            ByteArrayOutputStream os = new ByteArrayOutputStream();
+            int depth = 1;
+            while (true) {
+                int c = next();
+                if (c == '(') {
+                    ++depth;
+                }
+                else if (c == ')') {
+                    if (--depth == 0) {
+                        return os.toByteArray();
+                    }
+                }
+                else if (c == '\\') {
+                    c = next();
+                    switch (c) {
+                    case 'n': c = '\n'; break;
+                    case 'r': c = '\r'; break;
+                    case 't': c = '\t'; break;
+                    case 'b': c = '\b'; break;
+                    case 'f': c = '\f'; break;
+                    case '\r':
+                        if (peek() == '\n') {
+                            ++pos;
+                        }
+                        continue;
+                    case '\n':
+                        continue;
+                    default:
+                        if (c >= '0' && c <= '7') {
+                            int v = c - '0';
+                            for (int i = 0; i < 2 && peek() >= '0' && peek() <= '7'; ++i) {
+                                v = 8 * v + (next() - '0');
+                            }
+                            c = v & 0xff;
+                        }
+                    }
+                }
+                os.write(c);
+            }
+        }
+
+        // parse a hexadecimal string, after the leading '<'
+        byte[] hexString() {
+            ByteArrayOutputStream os = new ByteArrayOutputStream();
+            int hi = -1;
+            while (true) {
+                int c = next();
+                if (c == '>') {
+                    if (hi >= 0) {
+                        os.write(hi << 4);
+                    }
+                    return os.toByteArray();
+                }
+                int v = Character.digit(c, 16);
+                if (v < 0) {
+                    continue;
+                }
+                if (hi < 0) {
+                    hi = v;
+                }
+                else {
+                    os.write((hi << 4) | v);
+                    hi = -1;
+                }
+            }
+        }
+
+    }
+
+    // PDF file reader
+    private static final class Reader {
+
+        final RandomAccessFile file;
+        final long length;
+
+        // cross-reference entries: object number -> { type, field 2, field 3 }
+        final Map<Integer, long[]> xref = new HashMap<Integer, long[]>();
+
+        // decoded object streams
+        final Map<Integer, byte[]> object_streams = new HashMap<Integer, byte[]>();
+
+        // object streams currently being resolved, to detect object streams which refer to themselves
+        final Set<Integer> resolving_streams = new HashSet<Integer>();
+
+        Reader(RandomAccessFile file) throws IOException {
+            this.file = file;
+            this.length = file.length();
+        }
+
+        PDFMetadata read() throws IOException {
+
+            // find offset of last cross-reference section
+            int tail_len = (int) Math.min(length, 2048);
+            byte[] tail = readBytes(length - tail_len, tail_len);
+            int i = lastIndexOf(tail, "startxref");
+            if (i < 0) {
+                throw new IOException("could not find 'startxref'");
+            }
+            Lexer lexer = new Lexer(tail, i + "startxref".length(), tail.length);
+            long xref_offset = Long.parseLong(lexer.token());
+
+            // read cross-reference sections, from newest to oldest; the first trailer is the newest
+            Map<String, Object> trailer = null;
+            List<Long> visited = new ArrayList<Long>();
+            List<Long> pending = new ArrayList<Long>();
+            pending.add(xref_offset);
+            while (!pending.isEmpty()) {
+                long offset = pending.remove(0);
+                if (visited.contains(offset)) {
+                    continue;
+                }
+                visited.add(offset);
+                Map<String, Object> section_trailer = readXRefSection(offset);
+                if (trailer == null) {
+                    trailer = section_trailer;
+                }
+                if (section_trailer.get("Prev") instanceof Long) {
+                    pending.add((Long) section_trailer.get("Prev"));
+                }
+            }
+
+            // strings and streams of encrypted PDF files cannot be read
+            if (trailer.containsKey("Encrypt")) {
+                return new PDFMetadata(null, null, true);
+            }
+
+            // read document information dictionary
+            Map<String, String> info = null;
+            Object info_obj = resolve(trailer.get("Info"));
+            if (info_obj instanceof Map) {
+                info = new LinkedHashMap<String, String>();
+                for (Map.Entry<String, Object> e : asDict(info_obj).entrySet()) {
+                    Object value = resolve(e.getValue());
+                    if (value instanceof byte[]) {
+                        info.put(e.getKey(), decodeTextString((byte[]) value));
+                    }
+                    else if (value instanceof String) {
+                        info.put(e.getKey(), (String) value);
+                    }
+                }
+            }
+
+            // read XMP metadata stream
+            byte[] xmp = null;
+            Object root = resolve(trailer.get("Root"));
+            if (root instanceof Map) {
+                Object metadata = resolve(asDict(root).get("Metadata"));
+                if (metadata instanceof Stream) {
+                    xmp = decodeStream((Stream) metadata);
+                }
+            }
+
+            return new PDFMetadata(info, xmp, false);
+
+        }
+
+        // read a cross-reference table or stream at 'offset', and return its trailer
+        Map<String, Object> readXRefSection(long offset) throws IOException {
+
+            // read a cross-reference table
+            byte[] start = readBytes(offset, (int) Math.min(4, length - offset));
+            if (new String(start, ISO_8859_1).equals("xref")) {
+                int window = 65536;
+                while (true) {
+                    byte[] buf = readBytes(offset, (int) Math.min(window, length - offset));
+                    Map<Integer, long[]> entries = new HashMap<Integer, long[]>();
+                    try {
+                        Lexer lexer = new Lexer(buf, 4, buf.length);
+                        while (true) {
+                            String t = lexer.token();
+                            if (t.equals("trailer")) {
+                                break;
+                            }
+                            int first = Integer.parseInt(t);
+                            int count = Integer.parseInt(lexer.token());
+                            for (int n = first; n < first + count; ++n) {
+                                long field2 = Long.parseLong(lexer.token());
+                                long field3 = Long.parseLong(lexer.token());
+                                String type = lexer.token();
+                                entries.put(n, new long[] { type.equals("n") ? 1 : 0, field2, field3 });
+                            }
+                        }
+                        Map<String, Object> trailer = asDict(lexer.object());
+
+                        // in a hybrid-reference file, objects in object streams are marked free in the
+                        // table, and are listed in the cross-reference stream given by 'XRefStm'; it is
+                        // part of the same section, so its entries are recorded first, so that they are
+                        // not hidden by the free entries in the table
+                        if (trailer.get("XRefStm") instanceof Long) {
+                            readXRefStream((Long) trailer.get("XRefStm"));
+                        }
+
+                        for (Map.Entry<Integer, long[]> e : entries.entrySet()) {
+                            if (!xref.containsKey(e.getKey())) {
+                                xref.put(e.getKey(), e.getValue());
+                            }
+                        }
+                        return trailer;
+                    }
+                    catch (EndOfBuffer e) {
+                        if (offset + buf.length >= length) {
+                            throw new IOException("truncated cross-reference table");
+                        }
+                        window *= 4;
+                    }
+                }
+            }
+
+            // read a cross-reference stream
+            return readXRefStream(offset);
+
+        }
+
+        // read a cross-reference stream at 'offset', and return its dictionary
+        Map<String, Object> readXRefStream(long offset) throws IOException {
+            Object obj = readObjectAt(offset);
+            if (!(obj instanceof Stream)) {
+                throw new IOException("could not find cross-reference section at offset " + offset);
+            }
+            Stream stream = (Stream) obj;
+            byte[] data = decodeStream(stream);
+            List<Object> w = asArray(stream.dict.get("W"));
+            int[] widths = new int[3];
+            for (int i = 0; i < 3; ++i) {
+                widths[i] = asInt(w.get(i));
+            }
+            List<Object> index = asArray(stream.dict.get("Index"));
+            if (index == null) {
+                index = new ArrayList<Object>();
+                index.add(Long.valueOf(0));
+                index.add(stream.dict.get("Size"));
+            }
+            int p = 0;
+            for (int i = 0; i + 1 < index.size(); i += 2) {
+                int first = asInt(index.get(i));
+                int count = asInt(index.get(i + 1));
+                for (int n = first; n < first + count; ++n) {
+                    long[] fields = new long[3];
+                    for (int j = 0; j < 3; ++j) {
+                        long v = 0;
+                        for (int k = 0; k < widths[j]; ++k) {
+                            v = (v << 8) | (data[p++] & 0xff);
+                        }
+                        fields[j] = v;
+                    }
+                    if (widths[0] == 0) {
+                        fields[0] = 1;
+                    }
+                    if (!xref.containsKey(n)) {
+                        xref.put(n, fields);
+                    }
+                }
+            }
+            return stream.dict;
+        }
+
+        // resolve an object, following indirect references
+        Object resolve(Object obj) throws IOException {
+            for (int depth = 0; obj instanceof Ref; ++depth) {
+                if (depth > 32) {
+                    throw new IOException("too many levels of indirect references");
+                }
+                obj = getObject(((Ref) obj).num);
+            }
+            return obj;
+        }
+
+        // get an indirect object by number
+        Object getObject(int num) throws IOException {
+            long[] entry = xref.get(num);
+            if (entry == null || entry[0] == 0) {
+                return null;
+            }
+            if (entry[0] == 1) {
+                return readObjectAt(entry[1]);
+            }
+
+            // object is stored in an object stream; an object stream which is stored in itself, directly
+            // or through other object streams, would otherwise recurse without bound
+            int stream_num = (int) entry[1];
+            if (!resolving_streams.add(stream_num)) {
+                throw new IOException("object stream " + stream_num + " refers to itself");
+            }
+            byte[] data;
+            Stream stream;
+            try {
+                data = object_streams.get(stream_num);
+                Object stream_obj = getObject(stream_num);
+                if (!(stream_obj instanceof Stream)) {
+                    throw new IOException("could not find object stream " + stream_num);
+                }
+                stream = (Stream) stream_obj;
+                if (data == null) {
+                    data = decodeStream(stream);
+                    object_streams.put(stream_num, data);
+                }
+            }
+            finally {
+                resolving_streams.remove(stream_num);
+            }
+            int count = asInt(stream.dict.get("N"));
+            int first = asInt(stream.dict.get("First"));
+            Lexer lexer = new Lexer(data, 0, first);
+            for (int i = 0; i < count; ++i) {
+                int obj_num = Integer.parseInt(lexer.token());
+                int obj_offset = Integer.parseInt(lexer.token());
+                if (obj_num == num) {
+                    return new Lexer(data, first + obj_offset, data.length).object();
+                }
+            }
+            return null;
+        }
+
+        // read an indirect object 'num gen obj ... endobj' at 'offset'
+        Object readObjectAt(long offset) throws IOException {
+            int window = 4096;
+            while (true) {
+                byte[] buf = readBytes(offset, (int) Math.min(window, length - offset));
+                try {
+                    Lexer lexer = new Lexer(buf, 0, buf.length);
+                    lexer.token();
+                    lexer.token();
+                    lexer.expect("obj");
+                    Object obj = lexer.object();
+                    lexer.skipWhitespace();
+
+                    // a dictionary at the end of the buffer may be followed by 'stream' beyond it
+                    if (obj instanceof Map && buf.length - lexer.pos < 6 && offset + buf.length < length) {
+                        throw new EndOfBuffer();
+                    }
+
+                    if (obj instanceof Map && buf.length - lexer.pos >= 6 &&
+                        new String(buf, lexer.pos, 6, ISO_8859_1).equals("stream"))
+                    {
+                        // stream data starts after end-of-line following 'stream'
+                        lexer.pos += 6;
+                        if (lexer.peek() == '\r') {
+                            ++lexer.pos;
+                        }
+                        if (lexer.peek() == '\n') {
+                            ++lexer.pos;
+                        }
+                        return new Stream(asDict(obj), offset + lexer.pos);
+                    }
+                    return obj;
+                }
+                catch (EndOfBuffer e) {
+                    if (offset + buf.length >= length) {
+                        throw new IOException("truncated object at offset " + offset);
+                    }
+                    window *= 4;
+                }
+            }
+        }
+
+        // read and decode stream data
+        byte[] decodeStream(Stream stream) throws IOException {
+            int len = asInt(resolve(stream.dict.get("Length")));
+            byte[] data = readBytes(stream.offset, len);
+            Object filters = stream.dict.get("Filter");
+            Object parms = stream.dict.get("DecodeParms");
+            if (filters instanceof String) {
+                List<Object> l = new ArrayList<Object>();
+                l.add(filters);
+                filters = l;
+                l = new ArrayList<Object>();
+                l.add(parms);
+                parms = l;
+            }
+            if (filters != null) {
+                List<Object> filter_list = asArray(filters);
+                List<Object> parms_list = parms instanceof List ? asArray(parms) : null;
+                for (int i = 0; i < filter_list.size(); ++i) {
+                    String filter = (String) filter_list.get(i);
+                    if (!filter.equals("FlateDecode") && !filter.equals("Fl")) {
+                        throw new IOException("unsupported stream filter '" + filter + "'");
+                    }
+                    data = inflate(data);
+                    Object p = parms_list != null && i < parms_list.size() ? resolve(parms_list.get(i)) : null;
+                    if (p instanceof Map) {
+                        data = unpredict(data, asDict(p));
+                    }
+                }
+            }
+            return data;
+        }
+
+        // read 'len' bytes at 'offset'
+        byte[] readBytes(long offset, int len) throws IOException {
+            if (offset < 0 || len < 0 || offset + len > length) {
+                throw new IOException("invalid offset " + offset + " in PDF file");
+            }
+            byte[] buf = new byte[len];
+            file.seek(offset);
+            file.readFully(buf);
+            return buf;
+        }
+
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, Object> asDict(Object obj) {
+        if (obj instanceof Stream) {
+            return ((Stream) obj).dict;
+        }
+        return (Map<String, Object>) obj;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<Object> asArray(Object obj) {
+        return (List<Object>) obj;
+    }
+
+    private static int asInt(Object obj) {
+        return ((Number) obj).intValue();
+    }
+
+    // find last occurrence of ASCII string 's' in 'buf'
+    private static int lastIndexOf(byte[] buf, String s) {
+        for (int i = buf.length - s.length(); i >= 0; --i) {
+            int j = 0;
+            while (j < s.length() && buf[i + j] == s.charAt(j)) {
+                ++j;
+            }
+            if (j == s.length()) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // decode a PDF text string, which is either UTF-16BE with a byte order mark, or PDFDocEncoding
+    // - PDFDocEncoding is approximated by ISO-8859-1, with which it agrees for printable characters
+    static String decodeTextString(byte[] s) {
+        if (s.length >= 2 && (s[0] & 0xff) == 0xfe && (s[1] & 0xff) == 0xff) {
+            return new String(s, 2, s.length - 2, StandardCharsets.UTF_16BE);
+        }
+        return new String(s, ISO_8859_1);
+    }
+
+    // decompress FlateDecode data
+    private static byte[] inflate(byte[] data) throws IOException {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(data);
+            ByteArrayOutputStream os = new ByteArrayOutputStream(Math.max(64, 4 * data.length));
+            byte[] buf = new byte[8192];
+            while (!inflater.finished()) {
+                int n = inflater.inflate(buf);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                os.write(buf, 0, n);
+            }
+            return os.toByteArray();
+        }
+        catch (DataFormatException e) {
+            throw new IOException("could not decompress stream", e);
+        }
+        finally {
+            inflater.end();
+        }
+    }
+
+    // undo PNG predictors applied to FlateDecode data
+    private static byte[] unpredict(byte[] data, Map<String, Object> parms) throws IOException {
+        int predictor = parms.containsKey("Predictor") ? asInt(parms.get("Predictor")) : 1;
+        if (predictor == 1) {
+            return data;
+        }
+        if (predictor < 10) {
+            throw new IOException("unsupported predictor " + predictor);
+        }
+        int colors = parms.containsKey("Colors") ? asInt(parms.get("Colors")) : 1;
+        int bpc = parms.containsKey("BitsPerComponent") ? asInt(parms.get("BitsPerComponent")) : 8;
+        int columns = parms.containsKey("Columns") ? asInt(parms.get("Columns")) : 1;
+        int bpp = Math.max(1, colors * bpc / 8);
+        int row_len = (colors * bpc * columns + 7) / 8;
+        int rows = data.length / (row_len + 1);
+        byte[] out = new byte[rows * row_len];
+        for (int r = 0; r < rows; ++r) {
+            int type = data[r * (row_len + 1)] & 0xff;
+            int in = r * (row_len + 1) + 1;
+            int o = r * row_len;
+            for (int i = 0; i < row_len; ++i) {
+                int x = data[in + i] & 0xff;
+                int a = i >= bpp ? out[o + i - bpp] & 0xff : 0;
+                int b = r > 0 ? out[o + i - row_len] & 0xff : 0;
+                int c = (i >= bpp && r > 0) ? out[o + i - row_len - bpp] & 0xff : 0;
+                switch (type) {
+                case 0: break;
+                case 1: x += a; break;
+                case 2: x += b; break;
+                case 3: x += (a + b) / 2; break;
+                case 4: {
+                    int p = a + b - c;
+                    int pa = Math.abs(p - a), pb = Math.abs(p - b), pc = Math.abs(p - c);
+                    x += (pa <= pb && pa <= pc) ? a : (pb <= pc ? b : c);
+                    break;
+                }
+                default:
+                    throw new IOException("invalid PNG predictor type " + type);
+                }
+                out[o + i] = (byte) x;
+            }
+        }
+        return out;
+    }
+
+}
+
+// Local Variables:
+// mode: java
+// c-basic-offset: 4
+// tab-width: 4
+// End:
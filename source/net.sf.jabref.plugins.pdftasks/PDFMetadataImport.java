@@ -0,0 +1,328 @@
+//
+// JabRef PDFTasks Plugin
+// Copyright (C) 2011--2015  Karl Wette
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+//
+
+package net.sf.jabref.plugins.pdftasks;
+
+
+import net.sf.jabref.BibtexEntry;
+import net.sf.jabref.GUIGlobals;
+import net.sf.jabref.Globals;
+import net.sf.jabref.external.ExternalFileType;
+import net.sf.jabref.util.XMPSchemaBibtex;
+
+import org.jempbox.impl.XMLUtil;
+import org.jempbox.xmp.XMPMetadata;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+// PDFTasks PDF metadata import class
+// - reads the document information dictionary and XMP metadata of the PDF files linked from
+//   Bibtex entries, in parallel, using PDFMetadata so that only the metadata objects are read
+// - fills empty fields of the Bibtex entries, and reports fields whose values differ; changes
+//   to the Bibtex entries are passed to the listener in batches
+// - fields are read from the Bibtex schema of the XMP metadata where present, otherwise from the
+//   document information dictionary as written by XMPUtil.writeDocumentInformation()
+final class PDFMetadataImport {
+
+    // a field of a Bibtex entry whose value differs from that in the metadata of a linked PDF file
+    static final class Difference {
+        final BibtexEntry entry;
+        final String link;
+        final String field;
+        final String entry_value;
+        final String pdf_value;
+        Difference(BibtexEntry entry, String link, String field, String entry_value, String pdf_value) {
+            this.entry = entry;
+            this.link = link;
+            this.field = field;
+            this.entry_value = entry_value;
+            this.pdf_value = pdf_value;
+        }
+    }
+
+    // listener for progress of the import, and for changes to the Bibtex database
+    interface Listener {
+
+        // report that 'done' Bibtex entries have been processed, with status 'status'
+        void progress(int done, String status);
+
+        // return whether the user has cancelled the import
+        boolean isCancelled();
+
+        // set fields of Bibtex entries as given by 'changes', where they have changed, and mark the
+        // database as changed; the batches of changes of one import together form a single edit
+        void setFields(List<PDFFieldChange> changes);
+
+    }
+
+    // number of changes passed to the listener at once
+    static final int BATCH_SIZE = 500;
+
+    // fields which are never imported
+    private static final Set<String> ignored_fields =
+        new HashSet<String>(Arrays.asList(BibtexEntry.KEY_FIELD, GUIGlobals.FILE_FIELD, "entrytype", "owner", "timestamp"));
+
+    // document information dictionary keys written by XMPUtil.writeDocumentInformation() for standard fields
+    private static final String[][] info_fields = {
+        { "Author", "author" }, { "Title", "title" }, { "Subject", "abstract" }, { "Keywords", "keywords" }
+    };
+
+    private final PDFLinkResolver resolver;
+    private final ExternalFileType pdf_type;
+    private final int threads;
+
+    private final List<Difference> differences = new ArrayList<Difference>();
+    private final List<String> errors = new ArrayList<String>();
+    private int filled_count = 0;
+    private int filled_entry_count = 0;
+    private boolean cancelled = false;
+
+    public PDFMetadataImport(PDFLinkResolver resolver, int threads) {
+        this.resolver = resolver;
+        this.pdf_type = Globals.prefs.getExternalFileTypeByExt("pdf");
+        this.threads = threads;
+    }
+
+    // fields whose values differ from those in PDF metadata
+    public List<Difference> getDifferences() {
+        return differences;
+    }
+
+    // errors which occurred during the import
+    public List<String> getErrors() {
+        return errors;
+    }
+
+    // number of empty fields filled, and number of Bibtex entries with filled fields
+    public int getFilledCount() {
+        return filled_count;
+    }
+    public int getFilledEntryCount() {
+        return filled_entry_count;
+    }
+
+    // whether the import was cancelled
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    // import metadata from the PDF files linked from 'entries'
+    public void run(Collection<BibtexEntry> entries, Listener listener) {
+
+        // create pool of daemon threads; reading metadata is dominated by filesystem latency
+        ExecutorService pool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "PDFTasks metadata import");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        List<PDFFieldChange> batch = new ArrayList<PDFFieldChange>();
+        try {
+
+            // submit a read of the PDF metadata of each Bibtex entry
+            CompletionService<EntryMetadata> reads = new ExecutorCompletionService<EntryMetadata>(pool);
+            for (final BibtexEntry entry : entries) {
+                reads.submit(new Callable<EntryMetadata>() {
+                        public EntryMetadata call() {
+                            return readEntry(entry);
+                        }
+                    });
+            }
+
+            // compare with Bibtex entries as reads complete
+            for (int done = 0; done < entries.size(); ++done) {
+                if (listener.isCancelled()) {
+                    cancelled = true;
+                    break;
+                }
+                if (done % 100 == 0) {
+                    listener.progress(done, String.format("Importing PDF metadata (%d of %d)...", done, entries.size()));
+                }
+                EntryMetadata metadata;
+                try {
+                    metadata = reads.take().get();
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    cancelled = true;
+                    break;
+                }
+                catch (ExecutionException e) {
+                    e.printStackTrace();
+                    continue;
+                }
+                errors.addAll(metadata.errors);
+                compare(metadata, batch);
+                if (batch.size() >= BATCH_SIZE) {
+                    listener.setFields(batch);
+                    batch = new ArrayList<PDFFieldChange>();
+                }
+            }
+
+        }
+        finally {
+            pool.shutdownNow();
+
+            // pass remaining changes to listener
+            if (!batch.isEmpty()) {
+                listener.setFields(batch);
+            }
+
+        }
+
+    }
+
+    // metadata of the PDF files linked from a Bibtex entry
+    private static final class EntryMetadata {
+        final BibtexEntry entry;
+        final Map<String, String> fields = new LinkedHashMap<String, String>();
+        final Map<String, String> field_links = new LinkedHashMap<String, String>();
+        final List<String> errors = new ArrayList<String>();
+        EntryMetadata(BibtexEntry entry) {
+            this.entry = entry;
+        }
+    }
+
+    // read the metadata of the PDF files linked from 'entry'; where PDF files disagree,
+    // the first linked PDF file is used; may be called from any thread
+    private EntryMetadata readEntry(BibtexEntry entry) {
+        EntryMetadata metadata = new EntryMetadata(entry);
+        for (PDFFileField.Link file_entry : PDFFileField.parse(entry.getField(GUIGlobals.FILE_FIELD))) {
+            if (!file_entry.hasType(pdf_type)) {
+                continue;
+            }
+            File pdf_file = resolver.resolve(file_entry.link);
+            if (pdf_file == null) {
+                metadata.errors.add("Could not find PDF file '" + file_entry.link + "'.");
+                continue;
+            }
+            Map<String, String> fields;
+            try {
+                fields = readFields(pdf_file);
+            }
+            catch (IOException e) {
+                metadata.errors.add("Could not read metadata from PDF file '" + pdf_file.getPath() + "': " + e + ".");
+                continue;
+            }
+            for (Map.Entry<String, String> e : fields.entrySet()) {
+                if (!metadata.fields.containsKey(e.getKey())) {
+                    metadata.fields.put(e.getKey(), e.getValue());
+                    metadata.field_links.put(e.getKey(), file_entry.link);
+                }
+            }
+        }
+        return metadata;
+    }
+
+    // compare the metadata of the PDF files linked from a Bibtex entry with the entry, adding
+    // changes which fill empty fields to 'changes', and recording differences
+    private void compare(EntryMetadata metadata, List<PDFFieldChange> changes) {
+        boolean filled = false;
+        for (Map.Entry<String, String> e : metadata.fields.entrySet()) {
+            String field = e.getKey();
+            String pdf_value = e.getValue();
+            String entry_value = metadata.entry.getField(field);
+            if (entry_value == null || entry_value.trim().isEmpty()) {
+                changes.add(new PDFFieldChange(metadata.entry, field, pdf_value));
+                ++filled_count;
+                filled = true;
+            }
+            else if (!normalize(entry_value).equals(normalize(pdf_value))) {
+                differences.add(new Difference(metadata.entry, metadata.field_links.get(field), field,
+                                               entry_value, pdf_value));
+            }
+        }
+        if (filled) {
+            ++filled_entry_count;
+        }
+    }
+
+    // read Bibtex fields from the metadata of 'pdf_file'; may be called from any thread
+    static Map<String, String> readFields(File pdf_file) throws IOException {
+        Map<String, String> fields = new LinkedHashMap<String, String>();
+        PDFMetadata metadata = PDFMetadata.read(pdf_file);
+        if (metadata.encrypted) {
+            throw new IOException("PDF file is encrypted");
+        }
+
+        // read fields from Bibtex schema of XMP metadata
+        if (metadata.xmp != null) {
+            XMPMetadata meta = new XMPMetadata(XMLUtil.parse(new ByteArrayInputStream(metadata.xmp)));
+            meta.addXMLNSMapping(XMPSchemaBibtex.NAMESPACE, XMPSchemaBibtex.class);
+            List<?> bibtex_schemas = meta.getSchemasByNamespaceURI(XMPSchemaBibtex.NAMESPACE);
+            if (!bibtex_schemas.isEmpty()) {
+                BibtexEntry entry = ((XMPSchemaBibtex) bibtex_schemas.get(0)).getBibtexEntry();
+                for (String field : entry.getAllFields()) {
+                    addField(fields, field, entry.getField(field));
+                }
+                return fields;
+            }
+        }
+
+        // otherwise read fields from document information dictionary
+        if (metadata.info != null) {
+            for (String[] info_field : info_fields) {
+                addField(fields, info_field[1], metadata.info.get(info_field[0]));
+            }
+            for (Map.Entry<String, String> e : metadata.info.entrySet()) {
+                if (e.getKey().startsWith("bibtex/")) {
+                    addField(fields, e.getKey().substring("bibtex/".length()), e.getValue());
+                }
+            }
+        }
+
+        return fields;
+    }
+
+    // add 'field' with 'value' to 'fields', unless it is ignored or empty
+    private static void addField(Map<String, String> fields, String field, String value) {
+        if (field != null && !ignored_fields.contains(field) && value != null && !value.trim().isEmpty()) {
+            fields.put(field, value);
+        }
+    }
+
+    // normalise whitespace in 'value', for comparison
+    private static String normalize(String value) {
+        return value.trim().replaceAll("\\s+", " ");
+    }
+
+}
+
+// Local Variables:
+// mode: java
+// c-basic-offset: 4
+// tab-width: 4
+// End:
@@ -0,0 +1,110 @@
+//
+// JabRef PDFTasks Plugin
+// Copyright (C) 2011--2015  Karl Wette
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+//
+
+package net.sf.jabref.plugins.pdftasks;
+
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.ConcurrentHashMap;
+
+// PDFTasks path cache class
+// - canonicalises PDF file paths using a cache of canonicalised directories, so that each directory
+//   (typically one of the file directories of the database, or the PDF directory) is canonicalised
+//   once, and the paths of PDF files within it are then built without further filesystem access
+// - canonical files have canonical parent directories; unlike File.getCanonicalFile(), a symbolic
+//   link to a PDF file is not itself resolved, consistent with PDFLinkResolver
+// - directories are assumed not to be replaced by symbolic links while the cache is in use
+// - may be used from multiple threads
+final class PDFPathCache {
+
+    private final ConcurrentHashMap<String, Path> canonical_dirs = new ConcurrentHashMap<String, Path>();
+
+    // return the canonical path of directory 'dir'; throws IOException if it cannot be canonicalised
+    public Path canonicalDir(File dir) throws IOException {
+        String key = dir.getPath();
+        Path path = canonical_dirs.get(key);
+        if (path == null) {
+            path = dir.getCanonicalFile().toPath();
+            Path prev = canonical_dirs.putIfAbsent(key, path);
+            if (prev != null) {
+                path = prev;
+            }
+        }
+        return path;
+    }
+
+    // return the canonical path of 'file'; throws IOException if it cannot be canonicalised
+    public Path canonicalFile(File file) throws IOException {
+        String name = file.getName();
+        File parent = file.getParentFile();
+        if (parent == null || name.isEmpty() || name.equals(".") || name.equals("..")) {
+            return file.getCanonicalFile().toPath();
+        }
+        return canonicalDir(parent).resolve(name);
+    }
+
+    // return an absolute file for 'path' relative to 'base'; returns null if it cannot be canonicalised
+    public File absoluteFile(String path, File base) {
+        File file = new File(path);
+        if (!file.isAbsolute()) {
+            file = new File(base, path);
+        }
+        try {
+            return canonicalFile(file).toFile();
+        }
+        catch (IOException e) {
+            return null;
+        }
+    }
+
+    // determine the path of 'file' relative to 'base'; returns null if they have no common path components
+    public String relativePath(File file, File base) {
+        if (file == null || base == null) {
+            return null;
+        }
+
+        // canonicalise input files, if possible
+        Path file_path;
+        Path base_path;
+        try {
+            file_path = canonicalFile(file.isAbsolute() ? file : file.getAbsoluteFile());
+            base_path = canonicalDir(base);
+        }
+        catch (IOException e) {
+            return null;
+        }
+
+        // cannot make relative path if there are no common path components
+        if (file_path.getNameCount() == 0 || base_path.getNameCount() == 0 ||
+            !base_path.getRoot().equals(file_path.getRoot()) || !base_path.getName(0).equals(file_path.getName(0)))
+        {
+            return null;
+        }
+
+        return base_path.relativize(file_path).toString();
+    }
+
+}
+
+// Local Variables:
+// mode: java
+// c-basic-offset: 4
+// tab-width: 4
+// End:
@@ -0,0 +1,145 @@
+//
+// JabRef PDFTasks Plugin
+// Copyright (C) 2011--2015  Karl Wette
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+//
+
+package net.sf.jabref.plugins.pdftasks;
+
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// PDFTasks progress reporter class
+// - progress is recorded in lock-free counters, from any thread, without formatting any messages
+// - a timer thread publishes progress to the listener at a fixed rate, e.g. 10 times a second,
+//   and only if it has changed, so that the cost of formatting and repainting the status does not
+//   depend on how quickly Bibtex entries and PDF files are processed
+// - the published status includes the current Bibtex entry, and the rates of PDF files and bytes processed
+final class PDFProgressReporter {
+
+    // default period at which progress is published, in milliseconds
+    static final long DEFAULT_PERIOD = 100;
+
+    private final PDFTaskEngine.Listener listener;
+    private final int total;
+    private final long period;
+
+    // progress; may be updated from any thread
+    private volatile int done = 0;
+    private volatile String entry_name = null;
+    private final AtomicLong files = new AtomicLong();
+    private final AtomicLong bytes = new AtomicLong();
+
+    // progress last published; accessed by the timer thread, and then by stop()
+    private int published_done = -1;
+    private long published_files = -1;
+
+    private long start_time = 0;
+    private ScheduledExecutorService timer = null;
+
+    // report progress out of 'total' Bibtex entries to 'listener', every 'period' milliseconds
+    public PDFProgressReporter(PDFTaskEngine.Listener listener, int total, long period) {
+        this.listener = listener;
+        this.total = total;
+        this.period = period;
+    }
+
+    // start publishing progress
+    public synchronized void start() {
+        if (timer != null) {
+            return;
+        }
+        start_time = System.nanoTime();
+        timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "PDFTasks progress");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        timer.scheduleAtFixedRate(new Runnable() {
+                public void run() {
+                    publish(false);
+                }
+            }, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    // stop publishing progress, after publishing the final progress
+    public synchronized void stop() {
+        if (timer == null) {
+            return;
+        }
+        timer.shutdownNow();
+        try {
+            timer.awaitTermination(1, TimeUnit.SECONDS);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        timer = null;
+        publish(true);
+    }
+
+    // record that processing of Bibtex entry 'entry_name' has started, after 'done' entries
+    public void setEntry(int done, String entry_name) {
+        this.entry_name = entry_name;
+        this.done = done;
+    }
+
+    // record that a PDF file of 'size' bytes has been processed; may be called from any thread
+    public void addFile(long size) {
+        bytes.addAndGet(size);
+        files.incrementAndGet();
+    }
+
+    // number of PDF files processed
+    public long getFiles() {
+        return files.get();
+    }
+
+    // number of bytes of PDF files processed
+    public long getBytes() {
+        return bytes.get();
+    }
+
+    // publish progress to the listener, if it has changed or 'force' is true
+    private void publish(boolean force) {
+        int now_done = done;
+        long now_files = files.get();
+        String now_entry_name = entry_name;
+        if (now_entry_name == null || (!force && now_done == published_done && now_files == published_files)) {
+            return;
+        }
+        published_done = now_done;
+        published_files = now_files;
+        double secs = (System.nanoTime() - start_time) / 1e9;
+        String status = String.format("Processing BibTeX entry: %s (%d of %d), %.1f files/s, %.1f MB/s...",
+                                      now_entry_name, Math.min(now_done + 1, total), total,
+                                      secs > 0 ? now_files / secs : 0,
+                                      secs > 0 ? (bytes.get() / 1048576.0) / secs : 0);
+        listener.progress(now_done, status);
+    }
+
+}
+
+// Local Variables:
+// mode: java
+// c-basic-offset: 4
+// tab-width: 4
+// End:
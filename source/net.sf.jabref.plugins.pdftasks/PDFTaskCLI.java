@@ -0,0 +1,423 @@
+//
+// JabRef PDFTasks Plugin
+// Copyright (C) 2011--2015  Karl Wette
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+//
+
+package net.sf.jabref.plugins.pdftasks;
+
+import net.sf.jabref.BibtexDatabase;
+import net.sf.jabref.BibtexEntry;
+import net.sf.jabref.Globals;
+import net.sf.jabref.JabRefPreferences;
+import net.sf.jabref.MetaData;
+import net.sf.jabref.export.FileActions;
+import net.sf.jabref.export.SaveException;
+import net.sf.jabref.export.SaveSession;
+import net.sf.jabref.imports.OpenDatabaseAction;
+import net.sf.jabref.imports.ParserResult;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+// PDFTasks command-line class
+// - performs the PDF tasks on a Bibtex database file without a user interface: loads the database,
+//   performs the tasks on all entries, or those whose keys match a pattern, without prompting,
+//   saves the database if it was changed, and prints a summary in JSON format to standard output
+// - informational messages are printed to standard error
+// - exits with status 0 on success, 1 if errors occurred, 2 on invalid usage or if the database
+//   could not be loaded or saved, and 3 if the tasks were not performed
+public final class PDFTaskCLI {
+
+    private static final String usage =
+        "usage: PDFTaskCLI [options] <database.bib>\n" +
+        "  --rename               rename PDF files after their Bibtex keys\n" +
+        "  --move=<dir>           move PDF files to <dir>, relative to the database directory\n" +
+        "  --layout=<layout>      layout of PDF files in <dir>: flat (default), key-prefix, or hash-bucket\n" +
+        "  --reshard              only move PDF files already in <dir> into the layout, keeping their names\n" +
+        "  --write                write Bibtex entries to PDF document information\n" +
+        "  --erase                erase previous document information first\n" +
+        "  --incremental          append document information as an incremental update\n" +
+        "  --no-skip-up-to-date   write PDF files whose document information is up to date\n" +
+        "  --no-skip-unchanged    process PDF files unchanged since the last run\n" +
+        "  --threads=<n>          process PDF files in parallel with <n> threads\n" +
+        "  --low-memory=<MB>      load PDF files larger than <MB> megabytes with a scratch file (0 = never)\n" +
+        "  --heap-budget=<MB>     limit PDF files processed in parallel to about <MB> megabytes of heap\n" +
+        "  --keys=<regex>         only process Bibtex entries whose keys match <regex>\n" +
+        "  --replace              replace target PDF files which already exist\n" +
+        "  --abort-on-problems    do nothing if any PDF files have problems\n" +
+        "  --dry-run              plan tasks and print summary, but do nothing; cannot resume or roll back\n" +
+        "  --journal=<action>     if a previous run did not complete: resume, rollback, or abort (default)\n";
+
+    private PDFTaskCLI() {
+    }
+
+    public static void main(String[] args) {
+        System.exit(run(args));
+    }
+
+    // run the PDF tasks with command-line arguments 'args'; returns the exit status
+    static int run(String[] args) {
+
+        // parse command line
+        final PDFTaskEngine.Options options = new PDFTaskEngine.Options();
+        options.rename_pdfs = false;
+        options.move_to_pdf_dir = false;
+        options.write_pdf_docinfo = false;
+        String pdf_dir = null;
+        Pattern keys = null;
+        boolean replace = false;
+        boolean abort_on_problems = false;
+        boolean dry_run = false;
+        PDFTaskEngine.Recovery recovery = PDFTaskEngine.Recovery.CANCEL;
+        File db_file = null;
+        try {
+            for (String arg : args) {
+                String value = arg.indexOf('=') > 0 ? arg.substring(arg.indexOf('=') + 1) : null;
+                if (arg.equals("--rename")) {
+                    options.rename_pdfs = true;
+                }
+                else if (arg.startsWith("--move=")) {
+                    options.move_to_pdf_dir = true;
+                    pdf_dir = value;
+                }
+                else if (arg.startsWith("--layout=")) {
+                    if (value.equals("flat")) {
+                        options.pdf_dir_layout = PDFTaskEngine.Layout.FLAT;
+                    }
+                    else if (value.equals("key-prefix")) {
+                        options.pdf_dir_layout = PDFTaskEngine.Layout.KEY_PREFIX;
+                    }
+                    else if (value.equals("hash-bucket")) {
+                        options.pdf_dir_layout = PDFTaskEngine.Layout.HASH_BUCKET;
+                    }
+                    else {
+                        throw new IllegalArgumentException("invalid layout: " + value);
+                    }
+                }
+                else if (arg.equals("--reshard")) {
+                    options.reshard_only = true;
+                }
+                else if (arg.equals("--write")) {
+                    options.write_pdf_docinfo = true;
+                }
+                else if (arg.equals("--erase")) {
+                    options.erase_pdf_docinfo = true;
+                }
+                else if (arg.equals("--incremental")) {
+                    options.incremental_update = true;
+                }
+                else if (arg.equals("--no-skip-up-to-date")) {
+                    options.skip_up_to_date = false;
+                }
+                else if (arg.equals("--no-skip-unchanged")) {
+                    options.skip_unchanged = false;
+                }
+                else if (arg.startsWith("--threads=")) {
+                    options.parallel_threads = Integer.parseInt(value);
+                    if (options.parallel_threads < 0) {
+                        throw new IllegalArgumentException("invalid number of threads: " + value);
+                    }
+                }
+                else if (arg.startsWith("--low-memory=")) {
+                    options.low_memory_threshold = Long.parseLong(value) << 20;
+                    if (options.low_memory_threshold < 0) {
+                        throw new IllegalArgumentException("invalid low-memory threshold: " + value);
+                    }
+                }
+                else if (arg.startsWith("--heap-budget=")) {
+                    options.heap_budget = Long.parseLong(value) << 20;
+                    if (options.heap_budget <= 0) {
+                        throw new IllegalArgumentException("invalid heap budget: " + value);
+                    }
+                }
+                else if (arg.startsWith("--keys=")) {
+                    keys = Pattern.compile(value);
+                }
+                else if (arg.equals("--replace")) {
+                    replace = true;
+                }
+                else if (arg.equals("--abort-on-problems")) {
+                    abort_on_problems = true;
+                }
+                else if (arg.equals("--dry-run")) {
+                    dry_run = true;
+                }
+                else if (arg.startsWith("--journal=")) {
+                    if (value.equals("resume")) {
+                        recovery = PDFTaskEngine.Recovery.RESUME;
+                    }
+                    else if (value.equals("rollback")) {
+                        recovery = PDFTaskEngine.Recovery.ROLL_BACK;
+                    }
+                    else if (value.equals("abort")) {
+                        recovery = PDFTaskEngine.Recovery.CANCEL;
+                    }
+                    else {
+                        throw new IllegalArgumentException("invalid journal action: " + value);
+                    }
+                }
+                else if (!arg.startsWith("--") && db_file == null) {
+                    db_file = new File(arg).getAbsoluteFile();
+                }
+                else {
+                    throw new IllegalArgumentException("invalid argument: " + arg);
+                }
+            }
+            if (db_file == null) {
+                throw new IllegalArgumentException("no database given");
+            }
+            if (dry_run && recovery != PDFTaskEngine.Recovery.CANCEL) {
+                throw new IllegalArgumentException("--dry-run cannot be combined with --journal=resume or --journal=rollback");
+            }
+            if (options.reshard_only && !options.move_to_pdf_dir) {
+                throw new IllegalArgumentException("--reshard requires --move=<dir>");
+            }
+        }
+        catch (NumberFormatException e) {
+            System.err.print("PDFTaskCLI: invalid number: " + e.getMessage() + "\n" + usage);
+            return 2;
+        }
+        catch (PatternSyntaxException e) {
+            System.err.print("PDFTaskCLI: invalid pattern: " + e.getMessage() + "\n" + usage);
+            return 2;
+        }
+        catch (IllegalArgumentException e) {
+            System.err.print("PDFTaskCLI: " + e.getMessage() + "\n" + usage);
+            return 2;
+        }
+
+        // load Bibtex database
+        if (Globals.prefs == null) {
+            Globals.prefs = JabRefPreferences.getInstance();
+        }
+        ParserResult pr;
+        try {
+            pr = OpenDatabaseAction.loadDatabase(db_file, Globals.prefs.get("defaultEncoding"));
+        }
+        catch (IOException e) {
+            System.err.println("PDFTaskCLI: could not load database '" + db_file.getPath() + "': " + e);
+            return 2;
+        }
+        BibtexDatabase db = pr.getDatabase();
+        MetaData db_meta = pr.getMetaData();
+        db_meta.setFile(db_file);
+
+        // get Bibtex entries, in order of their keys
+        List<BibtexEntry> entries = new ArrayList<BibtexEntry>();
+        for (BibtexEntry entry : db.getEntries()) {
+            String key = entry.getCiteKey();
+            if (keys == null || (key != null && keys.matcher(key).matches())) {
+                entries.add(entry);
+            }
+        }
+        Collections.sort(entries, new Comparator<BibtexEntry>() {
+                public int compare(BibtexEntry a, BibtexEntry b) {
+                    String ka = a.getCiteKey() == null ? "" : a.getCiteKey();
+                    String kb = b.getCiteKey() == null ? "" : b.getCiteKey();
+                    return ka.compareTo(kb);
+                }
+            });
+
+        // run engine
+        if (options.move_to_pdf_dir) {
+            options.pdf_dir = PDFTaskEngine.absoluteFile(pdf_dir, db_file.getParentFile());
+        }
+        Listener listener = new Listener(recovery, replace, abort_on_problems, dry_run);
+        PDFTaskEngine engine = new PDFTaskEngine(db, db_file, PDFTaskEngine.fileDirectories(db_meta, db_file),
+                                                 entries.toArray(new BibtexEntry[entries.size()]),
+                                                 options, listener);
+        long start = System.nanoTime();
+        engine.run();
+        long nanos = System.nanoTime() - start;
+
+        // save Bibtex database, if changed
+        List<String> errors = engine.getErrors();
+        boolean saved = false;
+        if (listener.changed) {
+            try {
+                SaveSession session = FileActions.saveDatabase(db, db_meta, db_file, Globals.prefs,
+                                                               false, false, pr.getEncoding(), false);
+                session.commit();
+                saved = true;
+            }
+            catch (SaveException e) {
+                errors.add("Could not save database '" + db_file.getPath() + "': " + e.getMessage() + ".");
+            }
+        }
+
+        // print summary
+        String status;
+        if (engine.isRolledBack()) {
+            status = "rolled_back";
+        }
+        else if (listener.dry_run_done) {
+            status = "dry_run";
+        }
+        else if (engine.isCancelled()) {
+            status = "cancelled";
+        }
+        else {
+            status = "completed";
+        }
+        StringBuilder summary = new StringBuilder("{");
+        summary.append("\"status\": ").append(json(status));
+        summary.append(", \"database\": ").append(json(db_file.getPath()));
+        summary.append(", \"entries\": ").append(entries.size());
+        summary.append(", \"entries_processed\": ").append(engine.getEntryCount());
+        summary.append(", \"planned_moves\": ").append(listener.move_count);
+        summary.append(", \"planned_writes\": ").append(listener.write_count);
+        summary.append(", \"moved\": ").append(engine.getMovedCount());
+        summary.append(", \"moved_bytes\": ").append(engine.getMovedBytes());
+        summary.append(", \"written\": ").append(engine.getWrittenCount());
+        summary.append(", \"unchanged\": ").append(engine.getUnchangedCount());
+        summary.append(", \"up_to_date\": ").append(engine.getUpToDateCount());
+        PDFTaskStats stats = engine.getStats();
+        summary.append(", \"bytes_read\": ").append(stats.getBytesRead());
+        summary.append(", \"bytes_written\": ").append(stats.getBytesWritten());
+        summary.append(", \"skipped\": ").append(stats.getFilesSkipped());
+        summary.append(", \"phases\": {");
+        for (PDFTaskStats.Phase phase : PDFTaskStats.Phase.values()) {
+            summary.append(phase.ordinal() > 0 ? ", " : "").append(json(phase.name().toLowerCase(Locale.ROOT)));
+            summary.append(String.format(Locale.ROOT, ": {\"count\": %d, \"seconds\": %.3f, \"p50_ms\": %.3f, \"p99_ms\": %.3f}",
+                                         stats.getCount(phase), stats.getTotalSeconds(phase),
+                                         stats.getPercentileMillis(phase, 50), stats.getPercentileMillis(phase, 99)));
+        }
+        summary.append('}');
+        summary.append(", \"problems\": [");
+        for (int i = 0; i < listener.problems.size(); ++i) {
+            PDFTaskPlan.Item item = listener.problems.get(i);
+            summary.append(i > 0 ? ", " : "").append("{\"key\": ").append(json(item.entry_plan.key));
+            summary.append(", \"link\": ").append(json(item.link));
+            summary.append(", \"problem\": ").append(json(item.problem.name())).append('}');
+        }
+        summary.append("], \"errors\": [");
+        for (int i = 0; i < errors.size(); ++i) {
+            summary.append(i > 0 ? ", " : "").append(json(errors.get(i)));
+        }
+        summary.append("], \"saved\": ").append(saved);
+        summary.append(", \"seconds\": ").append(String.format(Locale.ROOT, "%.3f", nanos / 1e9));
+        summary.append('}');
+        System.out.println(summary);
+
+        if (!errors.isEmpty()) {
+            return 1;
+        }
+        if (engine.isCancelled() && !listener.dry_run_done) {
+            return 3;
+        }
+        return 0;
+
+    }
+
+    // listener which makes all decisions from the command-line options
+    private static final class Listener
+        implements PDFTaskEngine.Listener
+    {
+        private final PDFTaskEngine.Recovery recovery;
+        private final boolean replace;
+        private final boolean abort_on_problems;
+        private final boolean dry_run;
+        int move_count = 0;
+        int write_count = 0;
+        List<PDFTaskPlan.Item> problems = new ArrayList<PDFTaskPlan.Item>();
+        boolean dry_run_done = false;
+        volatile boolean changed = false;
+        Listener(PDFTaskEngine.Recovery recovery, boolean replace, boolean abort_on_problems, boolean dry_run) {
+            this.recovery = recovery;
+            this.replace = replace;
+            this.abort_on_problems = abort_on_problems;
+            this.dry_run = dry_run;
+        }
+        public void progress(int done, String status) {
+            System.err.println(status);
+        }
+        public void message(String message) {
+            System.err.println(message);
+        }
+        public boolean isCancelled() {
+            return false;
+        }
+        public boolean isDryRun() {
+            return dry_run;
+        }
+        public PDFTaskEngine.Recovery chooseRecovery(int move_count, int write_count) {
+            System.err.println(String.format("Previous run did not complete: moved %d PDF files, " +
+                                             "wrote document information to %d PDF files; action: %s",
+                                             move_count, write_count, recovery));
+            return recovery;
+        }
+        public PDFTaskEngine.Review reviewPlan(PDFTaskPlan plan, int move_count, int write_count) {
+            this.move_count = move_count;
+            this.write_count = write_count;
+            this.problems = plan.getProblemItems();
+            if (dry_run) {
+                dry_run_done = true;
+                return PDFTaskEngine.Review.CANCEL;
+            }
+            if (abort_on_problems && !problems.isEmpty()) {
+                return PDFTaskEngine.Review.CANCEL;
+            }
+            return replace ? PDFTaskEngine.Review.PROCEED_REPLACE : PDFTaskEngine.Review.PROCEED;
+        }
+        public void setFields(List<PDFFieldChange> changes) {
+            if (PDFFieldChange.apply(changes)) {
+                changed = true;
+            }
+        }
+    }
+
+    // return 's' as a JSON string
+    private static String json(String s) {
+        if (s == null) {
+            return "null";
+        }
+        StringBuilder sb = new StringBuilder(s.length() + 2);
+        sb.append('"');
+        for (int i = 0; i < s.length(); ++i) {
+            char c = s.charAt(i);
+            switch (c) {
+            case '"': sb.append("\\\""); break;
+            case '\\': sb.append("\\\\"); break;
+            case '\n': sb.append("\\n"); break;
+            case '\r': sb.append("\\r"); break;
+            case '\t': sb.append("\\t"); break;
+            default:
+                if (c < 0x20) {
+                    sb.append(String.format("\\u%04x", (int) c));
+                }
+                else {
+                    sb.append(c);
+                }
+            }
+        }
+        sb.append('"');
+        return sb.toString();
+    }
+
+}
+
+// Local Variables:
+// mode: java
+// c-basic-offset: 4
+// tab-width: 4
+// End:
@@ -0,0 +1,1082 @@
+//
+// JabRef PDFTasks Plugin
+// Copyright (C) 2011--2015  Karl Wette
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+//
+
+package net.sf.jabref.plugins.pdftasks;
+
+import net.sf.jabref.BibtexDatabase;
+import net.sf.jabref.BibtexEntry;
+import net.sf.jabref.GUIGlobals;
+import net.sf.jabref.Globals;
+import net.sf.jabref.MetaData;
+import net.sf.jabref.external.ExternalFileType;
+import net.sf.jabref.util.EncryptionNotSupportedException;
+
+import org.apache.pdfbox.exceptions.COSVisitorException;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.FileAlreadyExistsException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.xml.transform.TransformerException;
+
+// PDFTasks engine class
+// - performs the PDF tasks on a list of Bibtex entries, independently of the user interface:
+//   the tasks are given by explicit options, and all interaction with the user, and all changes
+//   to the Bibtex database, go through a listener
+// - tasks are first planned, without modifying anything; the plan is then reviewed by the listener,
+//   after which it is executed without further interaction
+// - the engine is run on a single thread, which may be any thread other than the Swing event thread
+final class PDFTaskEngine {
+
+    // options for the PDF tasks
+    static final class Options {
+        boolean rename_pdfs = true;
+        boolean move_to_pdf_dir = true;
+        File pdf_dir = null;
+        boolean write_pdf_docinfo = true;
+        boolean erase_pdf_docinfo = false;
+        // write document information as an incremental update, instead of rewriting the PDF file; not
+        // part of describe(), since it changes how document information is written, not what is written:
+        // PDF files written either way are up to date, and would be skipped anyway if processed again
+        boolean incremental_update = false;
+        boolean skip_up_to_date = true;
+        boolean skip_unchanged = true;
+        int parallel_threads = 0;
+        // PDF files larger than this many bytes are loaded in low-memory mode; zero to disable
+        long low_memory_threshold = 64L << 20;
+        // estimated heap, in bytes, which PDF files processed in parallel may use at once
+        long heap_budget = Runtime.getRuntime().maxMemory() / 2;
+        // layout of PDF files moved to the PDF directory; not part of describe(), so that changing the
+        // layout does not cause unchanged PDF files to be processed again; use 'reshard_only' instead
+        Layout pdf_dir_layout = Layout.FLAT;
+        // only move PDF files already in the PDF directory, or its subdirectories, into the layout
+        // 'pdf_dir_layout', keeping their names; nothing else is done, and the processing index is
+        // updated so that moved PDF files remain unchanged
+        boolean reshard_only = false;
+        // description of the options which determine the result of the tasks, used to detect
+        // changes in the processing index
+        String describe() {
+            return String.format("rename=%b move=%b pdf_dir=%s write=%b erase=%b",
+                                 rename_pdfs, move_to_pdf_dir, pdf_dir, write_pdf_docinfo, erase_pdf_docinfo);
+        }
+    }
+
+    // how to recover from a previous run which did not complete
+    enum Recovery {
+        RESUME, ROLL_BACK, CANCEL
+    }
+
+    // result of reviewing a plan
+    enum Review {
+        PROCEED, PROCEED_REPLACE, CANCEL
+    }
+
+    // layout of PDF files in the PDF directory: either all in the PDF directory itself, or spread over
+    // a bounded number of subdirectories, named after the first characters of the Bibtex key, or after
+    // a hash of the Bibtex key; all PDF files of a Bibtex entry are in the same subdirectory
+    enum Layout {
+        FLAT("Flat"),
+        KEY_PREFIX("By key prefix"),
+        HASH_BUCKET("By hash bucket");
+        final String description;
+        Layout(String description) {
+            this.description = description;
+        }
+        public String toString() {
+            return description;
+        }
+
+        // number of characters of the Bibtex key which name subdirectories, for KEY_PREFIX
+        static final int PREFIX_LENGTH = 2;
+
+        // number of subdirectories, for HASH_BUCKET
+        static final int BUCKETS = 256;
+
+        // return the name of the subdirectory of the PDF directory for PDF files of Bibtex entry 'key',
+        // or null if PDF files are in the PDF directory itself
+        String subdirectory(String key) {
+            switch (this) {
+            case KEY_PREFIX: {
+                // lower-case letters and digits, so that names are safe on all filesystems
+                StringBuilder sb = new StringBuilder(PREFIX_LENGTH);
+                for (int i = 0; i < PREFIX_LENGTH; ++i) {
+                    char c = i < key.length() ? Character.toLowerCase(key.charAt(i)) : '_';
+                    sb.append((c >= 'a' && c <= 'z') || (c >= '0' && c <= '9') ? c : '_');
+                }
+                return sb.toString();
+            }
+            case HASH_BUCKET: {
+                int h = key.hashCode();
+                h ^= (h >>> 16);
+                h ^= (h >>> 8);
+                return String.format("%02x", h & (BUCKETS - 1));
+            }
+            default:
+                return null;
+            }
+        }
+
+        // return the path, relative to the PDF directory, of PDF file 'name' of Bibtex entry 'key'
+        String path(String key, String name) {
+            String subdir = subdirectory(key);
+            return subdir == null ? name : subdir + File.separator + name;
+        }
+
+        // return whether directory 'dir_name' is the subdirectory for Bibtex entry 'key' in any layout
+        static boolean isSubdirectory(String dir_name, String key) {
+            for (Layout layout : values()) {
+                if (dir_name.equals(layout.subdirectory(key))) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+    }
+
+    // listener for interaction with the user and the Bibtex database
+    interface Listener {
+
+        // report that 'done' Bibtex entries have been processed, with status 'status'
+        void progress(int done, String status);
+
+        // report an informational message
+        void message(String message);
+
+        // return whether the user has cancelled the tasks
+        boolean isCancelled();
+
+        // return whether this is a dry run, which only plans the tasks, and so must not write
+        // anything: no journal is deleted, no statistics are logged or exposed, and no index is saved
+        boolean isDryRun();
+
+        // choose how to recover from a previous run, which moved 'move_count' PDF files and
+        // wrote document information to 'write_count' PDF files
+        Recovery chooseRecovery(int move_count, int write_count);
+
+        // review 'plan', which will move 'move_count' PDF files and write document information
+        // to 'write_count' PDF files
+        Review reviewPlan(PDFTaskPlan plan, int move_count, int write_count);
+
+        // set fields of Bibtex entries as given by 'changes', where they have changed, and mark the
+        // database as changed; changes are collected and passed at once, after recovering from a
+        // previous run, and at the end of the run
+        void setFields(List<PDFFieldChange> changes);
+
+    }
+
+    private final BibtexDatabase db;
+    private final File db_file;
+    private final List<File> db_dirs;
+    private final BibtexEntry[] db_entries;
+    private final Options options;
+    private final Listener listener;
+
+    private final ExternalFileType pdf_type;
+    private final PDFLinkResolver resolver;
+    private final PDFPathCache paths = new PDFPathCache();
+    private final String task_options;
+
+    private ThreadPoolExecutor pool = null;
+    private PDFMemoryBudget budget = null;
+    private final Queue<String> errors = new ConcurrentLinkedQueue<String>();
+
+    // counters and latency histograms of this run
+    private final PDFTaskStats stats = new PDFTaskStats();
+
+    // reporter of progress while executing the plan
+    private PDFProgressReporter reporter = null;
+
+    // processing index
+    private PDFTaskIndex index = null;
+
+    // changes to file fields of Bibtex entries, not yet passed to the listener
+    private final Map<BibtexEntry, String> file_changes = new LinkedHashMap<BibtexEntry, String>();
+
+    // journal of this run, and of a previous run which is resumed
+    private PDFTaskJournal journal = null;
+    private PDFTaskJournal resumed_journal = null;
+    private final Set<String> resumed_writes = new HashSet<String>();
+
+    // results
+    private boolean cancelled = false;
+    private boolean rolled_back = false;
+    private final List<PDFTaskJournal.Move> moves = new ArrayList<PDFTaskJournal.Move>();
+    private int entry_count = 0;
+    private int unchanged_count = 0;
+    private int problem_count = 0;
+    private final AtomicInteger skipped_count = new AtomicInteger();
+    private final AtomicInteger written_count = new AtomicInteger();
+    private int moved_count = 0;
+    private long moved_bytes = 0;
+    private long moved_nanos = 0;
+
+    public PDFTaskEngine(BibtexDatabase db, File db_file, List<File> db_dirs, BibtexEntry[] db_entries,
+                         Options options, Listener listener)
+    {
+        this(db, db_file, db_dirs, db_entries, options, new PDFLinkResolver(db_dirs), listener);
+    }
+
+    // as above, resolving PDF file links with 'resolver', e.g. one kept up to date by PDFLinkHealth,
+    // which must resolve links relative to 'db_dirs'
+    public PDFTaskEngine(BibtexDatabase db, File db_file, List<File> db_dirs, BibtexEntry[] db_entries,
+                         Options options, PDFLinkResolver resolver, Listener listener)
+    {
+        this.db = db;
+        this.db_file = db_file;
+        this.db_dirs = db_dirs;
+        this.db_entries = db_entries;
+        this.options = options;
+        this.listener = listener;
+        this.pdf_type = Globals.prefs.getExternalFileTypeByExt("pdf");
+        this.resolver = resolver;
+        this.task_options = options.describe();
+    }
+
+    // return the directories that PDF files could possibly be in, for Bibtex database
+    // file 'db_file' with metadata 'db_meta'; the first directory is where links are relative to
+    public static List<File> fileDirectories(MetaData db_meta, File db_file) {
+        List<File> db_dirs = new LinkedList<File>();
+        for (String dir : db_meta.getFileDirectory(GUIGlobals.FILE_FIELD)) {
+            db_dirs.add(new File(dir));
+        }
+        if (db_dirs.size() == 0 || !db_dirs.contains(db_file.getParentFile())) {
+            db_dirs.add(db_file.getParentFile());
+        }
+        return db_dirs;
+    }
+
+    // whether the tasks were cancelled
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    // whether a previous run was rolled back, instead of performing the tasks
+    public boolean isRolledBack() {
+        return rolled_back;
+    }
+
+    // moves of PDF files, by the tasks or by resuming or rolling back a previous run, in the order they
+    // were made, whose file links were changed; undoing the changes to file links must also undo these
+    public List<PDFTaskJournal.Move> getMoves() {
+        return new ArrayList<PDFTaskJournal.Move>(moves);
+    }
+
+    // errors which occurred during the tasks
+    public List<String> getErrors() {
+        return new ArrayList<String>(errors);
+    }
+
+    // counters and latency histograms of the tasks
+    public PDFTaskStats getStats() {
+        return stats;
+    }
+
+    // number of Bibtex entries processed
+    public int getEntryCount() {
+        return entry_count;
+    }
+
+    // number of PDF files unchanged since the last run
+    public int getUnchangedCount() {
+        return unchanged_count;
+    }
+
+    // number of PDF files whose document information was already up to date
+    public int getUpToDateCount() {
+        return skipped_count.get();
+    }
+
+    // number of PDF files skipped due to problems
+    public int getProblemCount() {
+        return problem_count;
+    }
+
+    // number of PDF files whose document information was written
+    public int getWrittenCount() {
+        return written_count.get();
+    }
+
+    // number of PDF files moved, their total size in bytes, and the time taken in nanoseconds
+    public int getMovedCount() {
+        return moved_count;
+    }
+    public long getMovedBytes() {
+        return moved_bytes;
+    }
+    public long getMovedNanos() {
+        return moved_nanos;
+    }
+
+    // perform the PDF tasks
+    public void run() {
+
+        // expose statistics through JMX while running
+        final boolean dry_run = listener.isDryRun();
+        if (!dry_run) {
+            stats.register(db_file.getName());
+        }
+
+        // load processing index
+        try {
+            index = PDFTaskIndex.load(db_file);
+        }
+        catch (IOException e) {
+            e.printStackTrace();
+        }
+
+        // create bounded worker pool for planning and processing PDF files in parallel
+        // - database updates remain in this thread
+        if (options.parallel_threads > 0) {
+            pool = new ThreadPoolExecutor(options.parallel_threads, options.parallel_threads,
+                                          0L, TimeUnit.MILLISECONDS,
+                                          new ArrayBlockingQueue<Runnable>(2 * options.parallel_threads),
+                                          new ThreadPoolExecutor.CallerRunsPolicy());
+            budget = new PDFMemoryBudget(options.heap_budget);
+        }
+
+        try {
+
+            // recover from a previous run, if necessary
+            if (!recoverJournal()) {
+                return;
+            }
+
+            // plan tasks
+            listener.progress(0, "Planning PDF tasks...");
+            PDFTaskPlan plan = planTasks();
+            if (plan == null) {
+                cancelled = true;
+                return;
+            }
+
+            // review plan
+            boolean replace = reviewPlan(plan);
+            if (cancelled) {
+                return;
+            }
+
+            // start journal, and execute plan
+            try {
+                journal = PDFTaskJournal.create(db_file, resumed_journal);
+            }
+            catch (IOException e) {
+                e.printStackTrace();
+                error("Could not create journal file '" + PDFTaskJournal.journalFile(db_file).getPath() +
+                           "': " + e + ".");
+                return;
+            }
+            executePlan(plan, replace);
+
+        }
+        finally {
+
+            // apply changes to file links
+            applyFileChanges();
+
+            // wait for PDF files being processed in parallel to finish
+            if (pool != null) {
+                pool.shutdown();
+                try {
+                    while (!pool.awaitTermination(1, TimeUnit.SECONDS)) {
+                    }
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+
+            // publish final progress
+            if (reporter != null) {
+                reporter.stop();
+            }
+
+            // end journal
+            if (journal != null) {
+                try {
+                    journal.end();
+                }
+                catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+
+            // save processing index
+            if (index != null && !dry_run) {
+                try {
+                    index.save();
+                }
+                catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+
+            // append summary of statistics to log file
+            if (!dry_run) {
+                stats.unregister();
+                try {
+                    stats.appendLog(logFile(db_file), task_options);
+                }
+                catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+
+        }
+
+    }
+
+    // check for a journal left by a previous run, which either did not complete, or whose
+    // changes to file links were not saved, and offer to resume or roll back that run
+    // - returns false if this run should not continue
+    private boolean recoverJournal() {
+
+        // load journal of previous run, if any
+        PDFTaskJournal prev_journal;
+        try {
+            prev_journal = PDFTaskJournal.load(db_file);
+        }
+        catch (IOException e) {
+            e.printStackTrace();
+            return true;
+        }
+        if (prev_journal == null) {
+            return true;
+        }
+        if (!prev_journal.needsRecovery(db)) {
+            if (!listener.isDryRun()) {
+                prev_journal.delete();
+            }
+            return true;
+        }
+
+        // choose whether to resume or roll back
+        int[] counts = prev_journal.getCounts();
+        List<PDFTaskJournal.LinkChange> changes;
+        switch (listener.chooseRecovery(counts[0], counts[1])) {
+        case RESUME:
+            changes = prev_journal.resume(resumed_writes);
+            resumed_journal = prev_journal;
+            break;
+        case ROLL_BACK: {
+            List<String> rollback_errors = new ArrayList<String>();
+            changes = prev_journal.rollback(rollback_errors);
+            for (String errmsg : rollback_errors) {
+                error(errmsg);
+            }
+            if (rollback_errors.isEmpty()) {
+                prev_journal.delete();
+            }
+            rolled_back = true;
+            break;
+        }
+        default:
+            cancelled = true;
+            return false;
+        }
+
+        // update file links
+        for (PDFTaskJournal.LinkChange change : changes) {
+            BibtexEntry entry = db.getEntryByKey(change.key);
+            if (entry != null) {
+                String new_files = PDFTaskJournal.apply(getFileField(entry), change);
+                if (new_files != null) {
+                    setFileField(entry, new_files);
+                    moves.add(change.move);
+                }
+            }
+        }
+        applyFileChanges();
+
+        return !rolled_back;
+
+    }
+
+    // plan tasks for all selected Bibtex entries, in parallel if requested;
+    // returns null if the user cancelled
+    private PDFTaskPlan planTasks() {
+
+        // plan each Bibtex entry; progress is counted as each entry is planned, which when planning
+        // in parallel is not the order in which entries were submitted to the pool
+        List<PDFTaskPlan.EntryPlan> entry_plans = new ArrayList<PDFTaskPlan.EntryPlan>();
+        final AtomicInteger planned_count = new AtomicInteger();
+        if (pool != null) {
+            List<Callable<PDFTaskPlan.EntryPlan>> calls = new ArrayList<Callable<PDFTaskPlan.EntryPlan>>();
+            for (final BibtexEntry entry : db_entries) {
+                calls.add(new Callable<PDFTaskPlan.EntryPlan>() {
+                        public PDFTaskPlan.EntryPlan call() {
+                            PDFTaskPlan.EntryPlan entry_plan = planEntry(entry);
+                            planned(planned_count.incrementAndGet());
+                            return entry_plan;
+                        }
+                    });
+            }
+            try {
+                for (Future<PDFTaskPlan.EntryPlan> future : pool.invokeAll(calls)) {
+                    entry_plans.add(future.get());
+                }
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            }
+            catch (ExecutionException e) {
+                throw new RuntimeException(e.getCause());
+            }
+        }
+        else {
+            for (BibtexEntry entry : db_entries) {
+                if (listener.isCancelled()) {
+                    return null;
+                }
+                entry_plans.add(planEntry(entry));
+                planned(planned_count.incrementAndGet());
+            }
+        }
+        if (listener.isCancelled()) {
+            return null;
+        }
+
+        // find conflicts between PDF files
+        PDFTaskPlan plan = new PDFTaskPlan(entry_plans);
+        plan.findConflicts();
+        return plan;
+
+    }
+
+    // report that 'done' Bibtex entries have been planned, every so many entries; may be called from any thread
+    private void planned(int done) {
+        if (done % 100 == 0 || done == db_entries.length) {
+            listener.progress(done, String.format("Planning PDF tasks (%d of %d)...", done, db_entries.length));
+        }
+    }
+
+    // plan tasks for a Bibtex entry: resolve its PDF file links and compute their new names
+    // - does not modify anything; may be called from any thread
+    private PDFTaskPlan.EntryPlan planEntry(BibtexEntry entry) {
+
+        // get Bibtex key
+        String key = entry.getCiteKey();
+        if (key != null && key.length() == 0) {
+            key = null;
+        }
+
+        // get file links for this Bibtex entry
+        List<PDFFileField.Link> files = PDFFileField.parse(entry.getField(GUIGlobals.FILE_FIELD));
+        PDFTaskPlan.EntryPlan entry_plan = new PDFTaskPlan.EntryPlan(entry, key, files);
+
+        for (int fileindex = 0; fileindex < files.size(); ++fileindex) {
+            PDFFileField.Link file_entry = files.get(fileindex);
+
+            // skip if this is not a PDF file link
+            if (!file_entry.hasType(pdf_type))
+                continue;
+
+            PDFTaskPlan.Item item =
+                new PDFTaskPlan.Item(entry_plan, fileindex, file_entry.link,
+                                     PDFTaskIndex.taskHash(entry, file_entry.description +
+                                                           '\0' + task_options));
+            entry_plan.items.add(item);
+
+            // check Bibtex key is not null
+            if (key == null) {
+                item.problem = PDFTaskPlan.Problem.NO_KEY;
+                continue;
+            }
+
+            // skip if Bibtex entry and PDF file are unchanged since they were last processed,
+            // or were processed by a previous run which is being resumed; not when re-sharding,
+            // which only moves PDF files
+            if (!options.reshard_only &&
+                ((options.skip_unchanged && index != null && index.isUnchanged(key, item.link, item.task_hash)) ||
+                 resumed_writes.contains(key + '\0' + item.link)))
+            {
+                item.unchanged = true;
+                continue;
+            }
+
+            // get PDF file
+            long start = stats.start();
+            item.source = resolver.resolve(item.link);
+            stats.stop(PDFTaskStats.Phase.RESOLVE, start);
+            if (item.source == null) {
+                item.problem = PDFTaskPlan.Problem.MISSING;
+                continue;
+            }
+
+            // get PDF file description
+            String pdf_desc = file_entry.description;
+
+            // new PDF file
+            File new_pdf_file = item.source;
+
+            // rename PDF file
+            if (options.rename_pdfs && !options.reshard_only) {
+
+                // build new PDF name
+                String new_name = pdfName(key, pdf_desc, pdf_type);
+
+                // set new PDF file
+                start = stats.start();
+                new_pdf_file = paths.absoluteFile(new_name, new_pdf_file.getParentFile());
+                stats.stop(PDFTaskStats.Phase.CANONICALIZE, start);
+
+            }
+
+            // when re-sharding, leave PDF files outside the PDF directory where they are
+            if (options.reshard_only && !isInDirectory(new_pdf_file, options.pdf_dir)) {
+                item.target = new_pdf_file;
+                continue;
+            }
+
+            // move PDF file, into its subdirectory of the PDF directory if the layout has subdirectories
+            if (options.move_to_pdf_dir) {
+                start = stats.start();
+                new_pdf_file = paths.absoluteFile(options.pdf_dir_layout.path(key, new_pdf_file.getName()), options.pdf_dir);
+                stats.stop(PDFTaskStats.Phase.CANONICALIZE, start);
+            }
+
+            item.target = new_pdf_file;
+
+        }
+
+        return entry_plan;
+
+    }
+
+    // present plan to the listener for review; returns whether to replace existing target PDF files
+    private boolean reviewPlan(PDFTaskPlan plan) {
+
+        // count PDF files to be renamed/moved and written
+        int move_count = 0;
+        int write_count = 0;
+        for (PDFTaskPlan.Item item : plan.getItems()) {
+            if (item.problem == PDFTaskPlan.Problem.NONE && !item.unchanged) {
+                if (item.isMove()) {
+                    ++move_count;
+                }
+                if (options.write_pdf_docinfo) {
+                    ++write_count;
+                }
+            }
+        }
+        problem_count = plan.getProblemItems().size();
+
+        // review plan
+        switch (listener.reviewPlan(plan, move_count, write_count)) {
+        case PROCEED:
+            return false;
+        case PROCEED_REPLACE:
+            return true;
+        default:
+            cancelled = true;
+            return false;
+        }
+
+    }
+
+    // execute plan, without interaction; errors are collected and reported at the end
+    private void executePlan(PDFTaskPlan plan, boolean replace) {
+
+        // for debugging purposes
+        final boolean modifyDatabase = true;
+
+        // publish progress at a fixed rate, rather than for every Bibtex entry
+        reporter = new PDFProgressReporter(listener, plan.entry_plans.size(), PDFProgressReporter.DEFAULT_PERIOD);
+        reporter.start();
+
+        // iterate over planned Bibtex entries
+        for (PDFTaskPlan.EntryPlan entry_plan : plan.entry_plans) {
+            ++entry_count;
+            final BibtexEntry entry = entry_plan.entry;
+            final String key = entry_plan.key;
+
+            // stop if user has cancelled tasks
+            if (listener.isCancelled()) {
+                cancelled = true;
+                return;
+            }
+
+            // update progress
+            reporter.setEntry(entry_count - 1, key != null ? key : entry.getId());
+
+            for (final PDFTaskPlan.Item item : entry_plan.items) {
+
+                // stop between files if user has cancelled tasks
+                if (listener.isCancelled()) {
+                    cancelled = true;
+                    return;
+                }
+
+                // skip if PDF file is unchanged since it was last processed
+                if (item.unchanged) {
+                    ++unchanged_count;
+                    stats.addFileSkipped();
+                    continue;
+                }
+
+                // when re-sharding, skip PDF files which need not be moved
+                if (options.reshard_only && !item.isMove()) {
+                    continue;
+                }
+
+                // skip if PDF file has problems, unless it is only that the target exists
+                // and the user has chosen to replace it
+                if (item.problem != PDFTaskPlan.Problem.NONE &&
+                    !(item.problem == PDFTaskPlan.Problem.TARGET_EXISTS && replace))
+                {
+                    stats.addFileSkipped();
+                    continue;
+                }
+
+                // get PDF file
+                File pdf_file = item.source;
+                File new_pdf_file = item.target;
+                int journal_id = -1;
+
+                // if PDF file needs to be moved
+                if (item.isMove()) {
+
+                    // perform move/rename operations
+                    if (modifyDatabase) {
+                        String errmsg = "Could not move PDF file '" + pdf_file.getPath() +
+                            "' to '" + new_pdf_file.getPath() + "'";
+                        PDFFileMover.Result moved;
+                        try {
+                            journal_id = journal.logMove(key, item.file_index, pdf_file, new_pdf_file, item.link,
+                                                         paths.relativePath(new_pdf_file, db_dirs.get(0)));
+                            long start = stats.start();
+                            moved = PDFFileMover.move(pdf_file, new_pdf_file, replace);
+                            stats.stop(PDFTaskStats.Phase.MOVE, start);
+                        }
+
+                        // possible exceptions
+                        catch (FileAlreadyExistsException e) {
+                            error(errmsg + ": the target PDF file already exists.");
+                            continue;
+                        }
+                        catch (AccessDeniedException e) {
+                            error(errmsg + ": insufficient permissions.");
+                            continue;
+                        }
+                        catch (SecurityException e) {
+                            error(errmsg + ": insufficient permissions.");
+                            continue;
+                        }
+                        catch (IOException e) {
+                            e.printStackTrace();
+                            error(errmsg + ": " + e + ".");
+                            continue;
+                        }
+
+                        // report throughput
+                        ++moved_count;
+                        moved_bytes += moved.bytes;
+                        moved_nanos += moved.nanos;
+                        if (moved.copied) {
+                            stats.addBytesRead(moved.bytes);
+                            stats.addBytesWritten(moved.bytes);
+                            listener.message(String.format("Copied PDF file '%s' to '%s' (%.1f MB at %.1f MB/s)",
+                                                           pdf_file.getName(), new_pdf_file.getParent(),
+                                                           moved.bytes / 1048576.0, moved.megabytesPerSecond()));
+                        }
+
+                        // everything was successful
+                        resolver.invalidate(pdf_file.getParentFile());
+                        resolver.invalidate(new_pdf_file.getParentFile());
+                        pdf_file = new_pdf_file;
+
+                    }
+                }
+
+                // update file entry table and Bibtex entry
+                long start = stats.start();
+                final String link = paths.relativePath(pdf_file, db_dirs.get(0));
+                stats.stop(PDFTaskStats.Phase.CANONICALIZE, start);
+                entry_plan.files.get(item.file_index).link = link;
+                final String new_files = PDFFileField.serialize(entry_plan.files);
+                if (modifyDatabase) {
+                    setFileField(entry, new_files);
+                    if (journal_id >= 0) {
+                        moves.add(new PDFTaskJournal.Move(key, item.file_index, item.source, pdf_file, item.link, link));
+                    }
+                }
+                if (journal_id >= 0) {
+                    try {
+                        journal.logDone(journal_id);
+                    }
+                    catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                }
+
+                // perform operations on PDF file contents
+                if (options.reshard_only) {
+                    recordMoved(pdf_file, key, item.link, link);
+                }
+                else if (options.write_pdf_docinfo) {
+
+                    // write PDF document information to a snapshot of the Bibtex entry,
+                    // so that results are the same whether PDF files are processed in parallel or not
+                    final File doc_pdf_file = pdf_file;
+                    final BibtexEntry doc_entry = (BibtexEntry) entry.clone();
+                    doc_entry.setField(GUIGlobals.FILE_FIELD, new_files);
+
+                    if (pool != null) {
+
+                        // process PDF file in worker pool; blocks if the pool is saturated
+                        pool.execute(new Runnable() {
+                                public void run() {
+                                    if (listener.isCancelled()) {
+                                        return;
+                                    }
+                                    String errmsg = processPDF(doc_pdf_file, doc_entry, key, link, item.task_hash);
+                                    if (errmsg != null) {
+                                        error(errmsg);
+                                    }
+                                }
+                            });
+
+                    }
+                    else {
+
+                        // process PDF file in this thread
+                        String errmsg = processPDF(doc_pdf_file, doc_entry, key, link, item.task_hash);
+                        if (errmsg != null) {
+                            error(errmsg);
+                        }
+
+                    }
+
+                }
+                else {
+                    recordProcessed(pdf_file, key, link, null, item.task_hash);
+                }
+
+            }
+
+        }
+
+    }
+
+    // write document information to PDF file, unless it is already up to date,
+    // and record it in the processing index
+    // - returns an error message, or null on success; may be called from any thread
+    private String processPDF(File pdf_file, BibtexEntry entry, String key, String link, String task_hash) {
+        String content_hash = null;
+        if (options.skip_up_to_date && PDFDocInfo.isUpToDate(pdf_file, entry, db, options.erase_pdf_docinfo)) {
+            skipped_count.incrementAndGet();
+            stats.addFileSkipped();
+        }
+        else {
+
+            // wait until the PDF file can be loaded within the heap budget, if processing in parallel
+            long cost = PDFMemoryBudget.estimate(pdf_file.length(), options.low_memory_threshold);
+            if (budget != null) {
+                try {
+                    budget.acquire(cost);
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return "Interrupted while waiting to write to PDF file '" + pdf_file.getPath() + "'.";
+                }
+            }
+
+            try {
+                int journal_id;
+                try {
+                    journal_id = journal.logWrite(key, link, pdf_file, options.incremental_update);
+                }
+                catch (IOException e) {
+                    e.printStackTrace();
+                    return "Could not record write to PDF file '" + pdf_file.getPath() +
+                        "' in journal: " + e + ".";
+                }
+                String errmsg = writePDFDocInfo(pdf_file, entry, db, options.erase_pdf_docinfo,
+                                                options.incremental_update, options.low_memory_threshold, stats);
+                if (errmsg != null) {
+                    return errmsg;
+                }
+                written_count.incrementAndGet();
+                try {
+                    journal.logDone(journal_id);
+                }
+                catch (IOException e) {
+                    e.printStackTrace();
+                }
+
+                // hash PDF file if it was rewritten in full, while its contents are still cached
+                if (!options.incremental_update && index != null) {
+                    try {
+                        content_hash = PDFTaskIndex.contentHash(pdf_file);
+                    }
+                    catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                }
+            }
+            finally {
+                if (budget != null) {
+                    budget.release(cost);
+                }
+            }
+
+        }
+        recordProcessed(pdf_file, key, link, content_hash, task_hash);
+        return null;
+    }
+
+    // return the file field of Bibtex 'entry', including changes not yet passed to the listener
+    private String getFileField(BibtexEntry entry) {
+        String files = file_changes.get(entry);
+        return files != null ? files : entry.getField(GUIGlobals.FILE_FIELD);
+    }
+
+    // set the file field of Bibtex 'entry' to 'files'; the change is passed to the listener,
+    // together with all other changes, by applyFileChanges()
+    private void setFileField(BibtexEntry entry, String files) {
+        file_changes.put(entry, files);
+    }
+
+    // pass all changes to file fields to the listener at once
+    private void applyFileChanges() {
+        if (file_changes.isEmpty()) {
+            return;
+        }
+        List<PDFFieldChange> changes = new ArrayList<PDFFieldChange>(file_changes.size());
+        for (Map.Entry<BibtexEntry, String> e : file_changes.entrySet()) {
+            changes.add(new PDFFieldChange(e.getKey(), GUIGlobals.FILE_FIELD, e.getValue()));
+        }
+        file_changes.clear();
+        listener.setFields(changes);
+    }
+
+    // record that a PDF file has been processed in the processing index, with its content hash if
+    // known, and in the progress; may be called from any thread
+    private void recordProcessed(File pdf_file, String key, String link, String content_hash, String task_hash) {
+        reporter.addFile(pdf_file.length());
+        if (index != null) {
+            index.update(key, link, pdf_file, content_hash, task_hash);
+        }
+    }
+
+    // record that PDF file 'link' of Bibtex entry 'key' was moved, unchanged, to 'pdf_file', linked as
+    // 'new_link', in the processing index, and in the progress
+    private void recordMoved(File pdf_file, String key, String link, String new_link) {
+        reporter.addFile(pdf_file.length());
+        if (index != null) {
+            index.move(key, link, new_link, pdf_file);
+        }
+    }
+
+    // return whether 'file' is within directory 'dir', or one of its subdirectories
+    private boolean isInDirectory(File file, File dir) {
+        if (file == null || dir == null) {
+            return false;
+        }
+        try {
+            return paths.canonicalFile(file).startsWith(paths.canonicalDir(dir));
+        }
+        catch (IOException e) {
+            return false;
+        }
+    }
+
+    // write document information for 'entry' to 'pdf_file', optionally erasing previous information first,
+    // optionally as an incremental update, and in low-memory mode if larger than 'low_memory_threshold' bytes
+    // - returns an error message, or null on success; may be called from any thread
+    private static String writePDFDocInfo(File pdf_file, BibtexEntry entry, BibtexDatabase db, boolean erase, boolean incremental,
+                                          long low_memory_threshold, PDFTaskStats stats)
+    {
+        try {
+            PDFDocInfo.write(pdf_file, entry, db, erase, incremental, low_memory_threshold, stats);
+        }
+        catch (EncryptionNotSupportedException e) {
+            return "Could not write document information to PDF file '" + pdf_file.getPath() +
+                "': the file is encrypted.";
+        }
+        catch (IOException e) {
+            e.printStackTrace();
+            return "Could not write document information to PDF file '" + pdf_file.getPath() +
+                "': an I/O exception occurred.";
+        }
+        catch (COSVisitorException e) {
+            e.printStackTrace();
+            return "Could not save PDF file '" + pdf_file.getPath() + "': an exception occurred.";
+        }
+        catch (TransformerException e) {
+            e.printStackTrace();
+            return "Could not write XMP to PDF file '" + pdf_file.getPath() + "': an exception occurred.";
+        }
+        return null;
+    }
+
+    // record an error which occurred during the tasks; may be called from any thread
+    private void error(String errmsg) {
+        errors.add(errmsg);
+        stats.addError();
+    }
+
+    // return the log file, to which a summary of statistics is appended after each run,
+    // for Bibtex database file 'db_file'
+    static File logFile(File db_file) {
+        return new File(db_file.getPath() + ".pdftasks-log");
+    }
+
+    // return the name of a PDF file, of type 'pdf_type' with description 'pdf_desc', renamed after Bibtex key 'key'
+    static String pdfName(String key, String pdf_desc, ExternalFileType pdf_type) {
+        String name = key;
+        if (!pdf_desc.isEmpty()) {
+            name += "_" + pdf_desc.replace(" ", "_");
+        }
+        return name + "." + pdf_type.getExtension();
+    }
+
+    // return an absolute file for 'path' relative to 'base'
+    static File absoluteFile(String path, File base) {
+        return new PDFPathCache().absoluteFile(path, base);
+    }
+
+    // determine the path of 'file' relative to 'base'
+    static String relativePath(File file, File base) {
+        return new PDFPathCache().relativePath(file, base);
+    }
+
+}
+
+// Local Variables:
+// mode: java
+// c-basic-offset: 4
+// tab-width: 4
+// End:
@@ -0,0 +1,341 @@
+//
+// JabRef PDFTasks Plugin
+// Copyright (C) 2011--2015  Karl Wette
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+//
+
+package net.sf.jabref.plugins.pdftasks;
+
+import net.sf.jabref.BibtexEntry;
+import net.sf.jabref.GUIGlobals;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+// PDFTasks processing index class
+// - records, for each Bibtex entry and PDF file link processed by the PDF tasks, the resolved
+//   PDF file, its size, modification time, and content hash, and a hash of the Bibtex entry
+//   fields and task options it was last processed with
+// - the content hash is optional, and is empty in the index file if not known: it is computed when
+//   the PDF tasks rewrite a PDF file in full, since its contents have then just been read and written,
+//   but not when a PDF file is skipped, moved, or given an incremental update, which would need an
+//   extra full read; otherwise it is computed when needed, e.g. by duplicate detection
+// - the index is stored next to the Bibtex database file, with extension '.pdftasks'
+// - a Bibtex entry and PDF file link is unchanged if the link is the same, the PDF file has the
+//   same size and modification time, and the Bibtex entry fields and task options are the same
+// - content hashes of PDF files are also looked up by path, size, and modification time, so that
+//   they need not be recomputed; hashes computed other than by the PDF tasks (e.g. by duplicate
+//   detection) are recorded under an empty Bibtex key, with the path of the PDF file as the link
+// - may be used from multiple threads
+final class PDFTaskIndex {
+
+    private static final String HEADER = "# PDFTasks index v1";
+
+    // index record for a Bibtex entry and PDF file link; 'content_hash' is empty if not known
+    static final class Record {
+        final String path;
+        final long size;
+        final long mtime;
+        final String content_hash;
+        final String task_hash;
+        Record(String path, long size, long mtime, String content_hash, String task_hash) {
+            this.path = path;
+            this.size = size;
+            this.mtime = mtime;
+            this.content_hash = content_hash;
+            this.task_hash = task_hash;
+        }
+    }
+
+    private final File index_file;
+    private final Map<String, Record> records = new ConcurrentHashMap<String, Record>();
+    private final Map<String, Record> path_records = new ConcurrentHashMap<String, Record>();
+    private volatile boolean modified = false;
+
+    private PDFTaskIndex(File index_file) {
+        this.index_file = index_file;
+    }
+
+    // return the index file for Bibtex database file 'db_file'
+    public static File indexFile(File db_file) {
+        return new File(db_file.getPath() + ".pdftasks");
+    }
+
+    // load the index for Bibtex database file 'db_file'; returns an empty index if none exists
+    public static PDFTaskIndex load(File db_file) throws IOException {
+        PDFTaskIndex index = new PDFTaskIndex(indexFile(db_file));
+        BufferedReader reader;
+        try {
+            reader = new BufferedReader(new InputStreamReader(new FileInputStream(index.index_file),
+                                                              StandardCharsets.UTF_8));
+        }
+        catch (FileNotFoundException e) {
+            return index;
+        }
+        try {
+            String line = reader.readLine();
+            if (line == null || !line.equals(HEADER)) {
+                return index;
+            }
+            while ((line = reader.readLine()) != null) {
+                String[] f = line.split("\t", -1);
+                if (f.length != 7) {
+                    continue;
+                }
+                try {
+                    Record r = new Record(unescape(f[2]), Long.parseLong(f[3]), Long.parseLong(f[4]), f[5], f[6]);
+                    index.records.put(recordKey(unescape(f[0]), unescape(f[1])), r);
+                    index.path_records.put(r.path, r);
+                }
+                catch (NumberFormatException e) {
+                    // skip corrupt record
+                }
+            }
+        }
+        finally {
+            reader.close();
+        }
+        return index;
+    }
+
+    // save the index, if modified; the index file is replaced atomically
+    public synchronized void save() throws IOException {
+        if (!modified) {
+            return;
+        }
+        File tmp_file = new File(index_file.getPath() + ".tmp");
+        Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmp_file),
+                                                                  StandardCharsets.UTF_8));
+        try {
+            writer.write(HEADER);
+            writer.write('\n');
+            for (Map.Entry<String, Record> e : new TreeMap<String, Record>(records).entrySet()) {
+                String[] key = e.getKey().split("\0", 2);
+                Record r = e.getValue();
+
+                // drop content hashes recorded under an empty Bibtex key for PDF files which no longer exist
+                if (key[0].isEmpty() && !new File(r.path).isFile()) {
+                    continue;
+                }
+
+                writer.write(escape(key[0]) + '\t' + escape(key[1]) + '\t' + escape(r.path) + '\t' +
+                             r.size + '\t' + r.mtime + '\t' + r.content_hash + '\t' + r.task_hash + '\n');
+            }
+        }
+        finally {
+            writer.close();
+        }
+        if (!tmp_file.renameTo(index_file)) {
+            if (!index_file.delete() || !tmp_file.renameTo(index_file)) {
+                throw new IOException("Could not replace index file '" + index_file.getPath() + "'");
+            }
+        }
+        modified = false;
+    }
+
+    // return the record for Bibtex entry 'key' and PDF file 'link', or null if none exists
+    public Record get(String key, String link) {
+        return records.get(recordKey(key, link));
+    }
+
+    // return whether Bibtex entry 'key' and PDF file 'link' are unchanged since they were last recorded
+    // with 'task_hash'; the PDF file is not opened, only its size and modification time are checked
+    public boolean isUnchanged(String key, String link, String task_hash) {
+        Record r = get(key, link);
+        if (r == null || !r.task_hash.equals(task_hash)) {
+            return false;
+        }
+        File pdf_file = new File(r.path);
+        return pdf_file.length() == r.size && pdf_file.lastModified() == r.mtime && pdf_file.isFile();
+    }
+
+    // record that Bibtex entry 'key' and PDF file 'link', resolved to 'pdf_file' with content hash
+    // 'content_hash', were processed with 'task_hash'
+    // - only the size and modification time of the PDF file are needed to skip it later, so its content
+    //   hash is not computed here; if 'content_hash' is null, it is only recorded if already known
+    public void update(String key, String link, File pdf_file, String content_hash, String task_hash) {
+        long size = pdf_file.length();
+        long mtime = pdf_file.lastModified();
+        if (content_hash == null) {
+            content_hash = getContentHash(pdf_file, size, mtime);
+        }
+        if (content_hash == null) {
+            content_hash = "";
+        }
+        Record r = new Record(pdf_file.getPath(), size, mtime, content_hash, task_hash);
+        records.put(recordKey(key, link), r);
+        path_records.put(r.path, r);
+        modified = true;
+    }
+
+    // record that PDF file 'link' of Bibtex entry 'key' was moved to 'pdf_file', linked as 'new_link';
+    // the record is carried over if the PDF file has the same size and modification time as recorded,
+    // so that a PDF file which is only moved need not be processed again, and is removed otherwise
+    public void move(String key, String link, String new_link, File pdf_file) {
+        Record r = records.remove(recordKey(key, link));
+        if (r == null) {
+            return;
+        }
+        if (path_records.get(r.path) == r) {
+            path_records.remove(r.path);
+        }
+        long size = pdf_file.length();
+        long mtime = pdf_file.lastModified();
+        if (r.size == size && r.mtime == mtime) {
+            Record nr = new Record(pdf_file.getPath(), size, mtime, r.content_hash, r.task_hash);
+            records.put(recordKey(key, new_link), nr);
+            path_records.put(nr.path, nr);
+        }
+        modified = true;
+    }
+
+    // return the recorded content hash of 'pdf_file', if it was recorded with size 'size' and
+    // modification time 'mtime', or null otherwise, or if it has not been computed
+    public String getContentHash(File pdf_file, long size, long mtime) {
+        Record r = path_records.get(pdf_file.getPath());
+        return r != null && r.size == size && r.mtime == mtime && !r.content_hash.isEmpty() ? r.content_hash : null;
+    }
+
+    // record 'content_hash' as the content hash of 'pdf_file', with size 'size' and modification time 'mtime'
+    public void putContentHash(File pdf_file, long size, long mtime, String content_hash) {
+        if (content_hash.equals(getContentHash(pdf_file, size, mtime))) {
+            return;
+        }
+        Record r = new Record(pdf_file.getPath(), size, mtime, content_hash, "");
+        records.put(recordKey("", r.path), r);
+        path_records.put(r.path, r);
+        modified = true;
+    }
+
+    // compute a hash of the fields of Bibtex 'entry', other than the file field, and of 'task'
+    public static String taskHash(BibtexEntry entry, String task) {
+        MessageDigest md = newDigest();
+        update(md, entry.getType() == null ? "" : entry.getType().getName());
+        for (String field : new TreeSet<String>(entry.getAllFields())) {
+            if (!field.equals(GUIGlobals.FILE_FIELD)) {
+                update(md, field);
+                update(md, entry.getField(field));
+            }
+        }
+        update(md, task);
+        return toHex(md.digest());
+    }
+
+    // compute a hash of the contents of 'file'
+    // - the file is memory-mapped in windows, so that its contents are hashed directly from the page
+    //   cache without being copied through a buffer on the heap
+    public static String contentHash(File file) throws IOException {
+        MessageDigest md = newDigest();
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+            long size = channel.size();
+            for (long pos = 0; pos < size; pos += MAP_WINDOW) {
+                md.update(channel.map(FileChannel.MapMode.READ_ONLY, pos, Math.min(MAP_WINDOW, size - pos)));
+            }
+        }
+        finally {
+            channel.close();
+        }
+        return toHex(md.digest());
+    }
+
+    // size of the windows in which files are memory-mapped for hashing
+    private static final long MAP_WINDOW = 64L << 20;
+
+    private static String recordKey(String key, String link) {
+        return key + '\0' + link;
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        }
+        catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void update(MessageDigest md, String s) {
+        md.update((s == null ? "" : s).getBytes(StandardCharsets.UTF_8));
+        md.update((byte) 0);
+    }
+
+    static String toHex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(2 * bytes.length);
+        for (byte b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+            sb.append(Character.forDigit(b & 0xf, 16));
+        }
+        return sb.toString();
+    }
+
+    // escape tabs, newlines, and backslashes in index fields
+    static String escape(String s) {
+        StringBuilder sb = new StringBuilder(s.length());
+        for (int i = 0; i < s.length(); ++i) {
+            char c = s.charAt(i);
+            switch (c) {
+            case '\\': sb.append("\\\\"); break;
+            case '\t': sb.append("\\t"); break;
+            case '\n': sb.append("\\n"); break;
+            case '\r': sb.append("\\r"); break;
+            default: sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+
+    static String unescape(String s) {
+        StringBuilder sb = new StringBuilder(s.length());
+        for (int i = 0; i < s.length(); ++i) {
+            char c = s.charAt(i);
+            if (c == '\\' && i + 1 < s.length()) {
+                c = s.charAt(++i);
+                switch (c) {
+                case 't': c = '\t'; break;
+                case 'n': c = '\n'; break;
+                case 'r': c = '\r'; break;
+                default: break;
+                }
+            }
+            sb.append(c);
+        }
+        return sb.toString();
+    }
+
+}
+
+// Local Variables:
+// mode: java
+// c-basic-offset: 4
+// tab-width: 4
+// End:
@@ -0,0 +1,449 @@
+//
+// JabRef PDFTasks Plugin
+// Copyright (C) 2011--2015  Karl Wette
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+//
+
+package net.sf.jabref.plugins.pdftasks;
+
+import net.sf.jabref.BibtexDatabase;
+import net.sf.jabref.BibtexEntry;
+import net.sf.jabref.GUIGlobals;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// PDFTasks operation journal class
+// - a write-ahead journal of the PDF file moves and document information writes performed by the
+//   PDF tasks: each operation is recorded, and synced to disk, before it is performed, and is marked
+//   as done afterwards
+// - the journal is stored next to the Bibtex database file, with extension '.pdftasks-journal', and is
+//   kept after the PDF tasks complete, since the file links changed by moves are only safe once the
+//   Bibtex database has been saved
+// - on the next run, the journal is used to either resume, i.e. update file links to PDF files which
+//   were moved, or roll back, i.e. move PDF files back and remove incrementally-appended document information
+// - may be used from multiple threads
+final class PDFTaskJournal {
+
+    private static final String HEADER = "# PDFTasks journal v1";
+
+    // journal record of a PDF file move
+    static final class Move {
+        final String key;
+        final int file_index;
+        final File source;
+        final File target;
+        final String old_link;
+        final String new_link;
+        boolean done = false;
+        Move(String key, int file_index, File source, File target, String old_link, String new_link) {
+            this.key = key;
+            this.file_index = file_index;
+            this.source = source;
+            this.target = target;
+            this.old_link = old_link;
+            this.new_link = new_link;
+        }
+        // whether the PDF file was moved; the move may have completed without being marked as done
+        boolean isMoved() {
+            return done || (!source.exists() && target.exists());
+        }
+        // the move which undoes this move
+        Move reverse() {
+            return new Move(key, file_index, target, source, new_link, old_link);
+        }
+    }
+
+    // journal record of a PDF document information write
+    static final class Write {
+        final String key;
+        final String link;
+        final File pdf_file;
+        final long old_size;
+        final boolean incremental;
+        boolean done = false;
+        Write(String key, String link, File pdf_file, long old_size, boolean incremental) {
+            this.key = key;
+            this.link = link;
+            this.pdf_file = pdf_file;
+            this.old_size = old_size;
+            this.incremental = incremental;
+        }
+    }
+
+    // change to a file link of a Bibtex entry, made when resuming or rolling back, and the move of
+    // the PDF file which the change follows, in the same direction
+    static final class LinkChange {
+        final String key;
+        final int file_index;
+        final String from;
+        final String to;
+        final Move move;
+        LinkChange(Move move) {
+            this.key = move.key;
+            this.file_index = move.file_index;
+            this.from = move.old_link;
+            this.to = move.new_link;
+            this.move = move;
+        }
+    }
+
+    private final File journal_file;
+
+    // journal records, by ID, in the order they were recorded
+    private final Map<Integer, Object> records = new LinkedHashMap<Integer, Object>();
+    private boolean ended = false;
+
+    // output stream, if recording
+    private FileOutputStream out = null;
+    private int next_id = 0;
+
+    private PDFTaskJournal(File journal_file) {
+        this.journal_file = journal_file;
+    }
+
+    // return the journal file for Bibtex database file 'db_file'
+    public static File journalFile(File db_file) {
+        return new File(db_file.getPath() + ".pdftasks-journal");
+    }
+
+    // create a new journal for Bibtex database file 'db_file', replacing any existing journal;
+    // if 'resumed' is not null, the PDF file moves of that journal are carried over, since their
+    // file links are not yet saved
+    public static PDFTaskJournal create(File db_file, PDFTaskJournal resumed) throws IOException {
+        PDFTaskJournal journal = new PDFTaskJournal(journalFile(db_file));
+        journal.out = new FileOutputStream(journal.journal_file);
+        journal.append(HEADER);
+        if (resumed != null) {
+            for (Object record : resumed.records.values()) {
+                if (record instanceof Move && ((Move) record).isMoved()) {
+                    Move move = (Move) record;
+                    journal.logDone(journal.logMove(move.key, move.file_index, move.source, move.target,
+                                                    move.old_link, move.new_link));
+                }
+            }
+        }
+        return journal;
+    }
+
+    // create a new, ended journal for Bibtex database file 'db_file', replacing any existing journal,
+    // which records that the PDF file moves 'moved' are done, e.g. after they are undone or redone,
+    // since their file links are not yet saved
+    public static void record(File db_file, List<Move> moved) throws IOException {
+        PDFTaskJournal journal = create(db_file, null);
+        try {
+            for (Move move : moved) {
+                journal.logDone(journal.logMove(move.key, move.file_index, move.source, move.target,
+                                                move.old_link, move.new_link));
+            }
+        }
+        finally {
+            journal.end();
+        }
+    }
+
+    // load the journal for Bibtex database file 'db_file'; returns null if none exists
+    public static PDFTaskJournal load(File db_file) throws IOException {
+        PDFTaskJournal journal = new PDFTaskJournal(journalFile(db_file));
+        BufferedReader reader;
+        try {
+            reader = new BufferedReader(new InputStreamReader(new FileInputStream(journal.journal_file),
+                                                              StandardCharsets.UTF_8));
+        }
+        catch (FileNotFoundException e) {
+            return null;
+        }
+        try {
+            String line = reader.readLine();
+            if (line == null || !line.equals(HEADER)) {
+                return null;
+            }
+            while ((line = reader.readLine()) != null) {
+                String[] f = line.split("\t", -1);
+                try {
+                    if (f[0].equals("M") && f.length == 8) {
+                        journal.records.put(Integer.parseInt(f[1]),
+                                            new Move(PDFTaskIndex.unescape(f[2]), Integer.parseInt(f[3]),
+                                                     new File(PDFTaskIndex.unescape(f[4])),
+                                                     new File(PDFTaskIndex.unescape(f[5])),
+                                                     PDFTaskIndex.unescape(f[6]), PDFTaskIndex.unescape(f[7])));
+                    }
+                    else if (f[0].equals("W") && f.length == 7) {
+                        journal.records.put(Integer.parseInt(f[1]),
+                                            new Write(PDFTaskIndex.unescape(f[2]), PDFTaskIndex.unescape(f[3]),
+                                                      new File(PDFTaskIndex.unescape(f[4])),
+                                                      Long.parseLong(f[5]), f[6].equals("1")));
+                    }
+                    else if (f[0].equals("D") && f.length == 2) {
+                        Object record = journal.records.get(Integer.parseInt(f[1]));
+                        if (record instanceof Move) {
+                            ((Move) record).done = true;
+                        }
+                        else if (record instanceof Write) {
+                            ((Write) record).done = true;
+                        }
+                    }
+                    else if (f[0].equals("E")) {
+                        journal.ended = true;
+                    }
+                }
+                catch (NumberFormatException e) {
+                    // skip record truncated by a crash
+                }
+            }
+        }
+        finally {
+            reader.close();
+        }
+        return journal;
+    }
+
+    // record that PDF file 'source', linked from Bibtex entry 'key' as 'old_link', is about to be
+    // moved to 'target', to be linked as 'new_link'; returns the ID of the record
+    public synchronized int logMove(String key, int file_index, File source, File target, String old_link, String new_link)
+        throws IOException
+    {
+        int id = next_id++;
+        records.put(id, new Move(key, file_index, source, target, old_link, new_link));
+        append("M\t" + id + '\t' + PDFTaskIndex.escape(key) + '\t' + file_index + '\t' +
+               PDFTaskIndex.escape(source.getPath()) + '\t' + PDFTaskIndex.escape(target.getPath()) + '\t' +
+               PDFTaskIndex.escape(old_link) + '\t' + PDFTaskIndex.escape(new_link));
+        return id;
+    }
+
+    // record that document information for Bibtex entry 'key' is about to be written to
+    // 'pdf_file', linked as 'link'; returns the ID of the record
+    public synchronized int logWrite(String key, String link, File pdf_file, boolean incremental) throws IOException {
+        int id = next_id++;
+        long old_size = pdf_file.length();
+        records.put(id, new Write(key, link, pdf_file, old_size, incremental));
+        append("W\t" + id + '\t' + PDFTaskIndex.escape(key) + '\t' + PDFTaskIndex.escape(link) + '\t' +
+               PDFTaskIndex.escape(pdf_file.getPath()) + '\t' + old_size + '\t' + (incremental ? "1" : "0"));
+        return id;
+    }
+
+    // record that the operation with ID 'id' is done
+    public synchronized void logDone(int id) throws IOException {
+        Object record = records.get(id);
+        if (record instanceof Move) {
+            ((Move) record).done = true;
+        }
+        else if (record instanceof Write) {
+            ((Write) record).done = true;
+        }
+        append("D\t" + id);
+    }
+
+    // record that all operations have ended, and close the journal; if no PDF files were
+    // moved, no file links need to be saved, and the journal is deleted
+    public synchronized void end() throws IOException {
+        if (out == null) {
+            return;
+        }
+        append("E");
+        out.close();
+        out = null;
+        ended = true;
+        for (Object record : records.values()) {
+            if (record instanceof Move && ((Move) record).done) {
+                return;
+            }
+        }
+        delete();
+    }
+
+    // delete the journal
+    public synchronized void delete() {
+        if (out != null) {
+            try {
+                out.close();
+            }
+            catch (IOException e) {
+                e.printStackTrace();
+            }
+            out = null;
+        }
+        journal_file.delete();
+    }
+
+    // return whether the journal records operations which were not completed, or PDF file moves
+    // whose file links in Bibtex database 'db' were not saved
+    public synchronized boolean needsRecovery(BibtexDatabase db) {
+        if (!ended) {
+            for (Object record : records.values()) {
+                if (record instanceof Move && !((Move) record).done) {
+                    return true;
+                }
+                if (record instanceof Write && !((Write) record).done) {
+                    return true;
+                }
+            }
+        }
+        for (Object record : records.values()) {
+            if (record instanceof Move) {
+                Move move = (Move) record;
+                if (move.isMoved() && move.old_link.equals(getLink(db, move.key, move.file_index))) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    // return the number of PDF files which were moved, and the number of document information writes
+    public synchronized int[] getCounts() {
+        int[] counts = { 0, 0 };
+        for (Object record : records.values()) {
+            if (record instanceof Move && ((Move) record).isMoved()) {
+                ++counts[0];
+            }
+            else if (record instanceof Write) {
+                ++counts[1];
+            }
+        }
+        return counts;
+    }
+
+    // resume from the journal: returns the file link changes needed for PDF files which were moved
+    // - 'done_writes' is filled with the Bibtex entry keys and file links, separated by '\0', of
+    //   completed document information writes, which need not be repeated
+    public synchronized List<LinkChange> resume(Set<String> done_writes) {
+        List<LinkChange> changes = new ArrayList<LinkChange>();
+        for (Object record : records.values()) {
+            if (record instanceof Move) {
+                Move move = (Move) record;
+                removeTemporaryFile(move.target);
+                if (move.isMoved()) {
+                    changes.add(new LinkChange(move));
+                }
+            }
+            else if (record instanceof Write) {
+                Write write = (Write) record;
+                if (write.done) {
+                    done_writes.add(write.key + '\0' + write.link);
+                }
+            }
+        }
+        return changes;
+    }
+
+    // roll back the journal, in reverse order: returns the file link changes needed for PDF files
+    // which were moved back; document information which was not written incrementally cannot be removed
+    public synchronized List<LinkChange> rollback(List<String> errors) {
+        List<LinkChange> changes = new ArrayList<LinkChange>();
+        List<Object> reversed = new ArrayList<Object>(records.values());
+        Collections.reverse(reversed);
+        int not_removed = 0;
+        for (Object record : reversed) {
+            if (record instanceof Move) {
+                Move move = (Move) record;
+                removeTemporaryFile(move.target);
+                if (!move.isMoved()) {
+                    continue;
+                }
+                try {
+                    PDFFileMover.move(move.target, move.source, false);
+                    changes.add(new LinkChange(move.reverse()));
+                }
+                catch (IOException e) {
+                    errors.add("Could not move PDF file '" + move.target.getPath() + "' back to '" +
+                               move.source.getPath() + "': " + e + ".");
+                }
+            }
+            else if (record instanceof Write) {
+                Write write = (Write) record;
+                if (!write.incremental) {
+                    ++not_removed;
+                    continue;
+                }
+                try {
+                    RandomAccessFile raf = new RandomAccessFile(write.pdf_file, "rw");
+                    try {
+                        if (raf.length() > write.old_size) {
+                            raf.setLength(write.old_size);
+                        }
+                    }
+                    finally {
+                        raf.close();
+                    }
+                }
+                catch (IOException e) {
+                    errors.add("Could not remove document information from PDF file '" +
+                               write.pdf_file.getPath() + "': " + e + ".");
+                }
+            }
+        }
+        if (not_removed > 0) {
+            errors.add(String.format("Document information written to %d PDF files was not appended " +
+                                     "as an incremental update, and cannot be removed.", not_removed));
+        }
+        return changes;
+    }
+
+    // apply file link 'change' to the file field 'files_str' of a Bibtex entry; returns the new
+    // file field, or null if the file link is not as expected
+    public static String apply(String files_str, LinkChange change) {
+        List<PDFFileField.Link> files = PDFFileField.parse(files_str);
+        if (change.file_index >= files.size() || !files.get(change.file_index).link.equals(change.from)) {
+            return null;
+        }
+        files.get(change.file_index).link = change.to;
+        return PDFFileField.serialize(files);
+    }
+
+    // return the file link with index 'file_index' of Bibtex entry 'key' in 'db', or null
+    private static String getLink(BibtexDatabase db, String key, int file_index) {
+        BibtexEntry entry = db.getEntryByKey(key);
+        if (entry == null) {
+            return null;
+        }
+        List<PDFFileField.Link> files = PDFFileField.parse(entry.getField(GUIGlobals.FILE_FIELD));
+        return file_index < files.size() ? files.get(file_index).link : null;
+    }
+
+    // remove a temporary file left by an interrupted copy to 'target'
+    private static void removeTemporaryFile(File target) {
+        PDFFileMover.temporaryFile(target).delete();
+    }
+
+    // append 'line' to the journal, and sync it to disk
+    private void append(String line) throws IOException {
+        if (out == null) {
+            throw new IOException("Journal file '" + journal_file.getPath() + "' is closed");
+        }
+        out.write((line + '\n').getBytes(StandardCharsets.UTF_8));
+        out.getChannel().force(false);
+    }
+
+}
+
+// Local Variables:
+// mode: java
+// c-basic-offset: 4
+// tab-width: 4
+// End:
@@ -0,0 +1,175 @@
+//
+// JabRef PDFTasks Plugin
+// Copyright (C) 2011--2015  Karl Wette
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+//
+
+package net.sf.jabref.plugins.pdftasks;
+
+import net.sf.jabref.BibtexEntry;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// PDFTasks plan class
+// - records, before anything is modified, what the PDF tasks will do to each PDF file link of each
+//   Bibtex entry: the resolved PDF file, the file it will be renamed/moved to, and any problems
+//   which prevent the PDF file from being processed
+final class PDFTaskPlan {
+
+    // problems which prevent a PDF file from being processed
+    enum Problem {
+        NONE(""),
+        NO_KEY("BibTeX entry does not have a key"),
+        MISSING("Could not find PDF file"),
+        DUPLICATE_SOURCE("PDF file is linked more than once, with different targets"),
+        DUPLICATE_TARGET("Another PDF file would be renamed/moved to the same target"),
+        TARGET_EXISTS("Target PDF file already exists");
+        final String description;
+        Problem(String description) {
+            this.description = description;
+        }
+    }
+
+    // plan for a Bibtex entry
+    static final class EntryPlan {
+        final BibtexEntry entry;
+        final String key;
+        final List<PDFFileField.Link> files;
+        final List<Item> items = new ArrayList<Item>();
+        EntryPlan(BibtexEntry entry, String key, List<PDFFileField.Link> files) {
+            this.entry = entry;
+            this.key = key;
+            this.files = files;
+        }
+    }
+
+    // plan for a PDF file link of a Bibtex entry
+    static final class Item {
+        final EntryPlan entry_plan;
+        final int file_index;
+        final String link;
+        final String task_hash;
+        File source = null;
+        File target = null;
+        boolean unchanged = false;
+        Problem problem = Problem.NONE;
+        Item(EntryPlan entry_plan, int file_index, String link, String task_hash) {
+            this.entry_plan = entry_plan;
+            this.file_index = file_index;
+            this.link = link;
+            this.task_hash = task_hash;
+        }
+        // whether the PDF file will be renamed/moved
+        boolean isMove() {
+            return source != null && target != null && !target.equals(source);
+        }
+    }
+
+    final List<EntryPlan> entry_plans;
+
+    public PDFTaskPlan(List<EntryPlan> entry_plans) {
+        this.entry_plans = entry_plans;
+    }
+
+    // find conflicts between items: PDF files which would be renamed/moved to the same target,
+    // PDF files linked more than once with different targets, and targets which already exist
+    public void findConflicts() {
+
+        // group items by source and target
+        Map<File, List<Item>> by_source = new HashMap<File, List<Item>>();
+        Map<File, List<Item>> by_target = new HashMap<File, List<Item>>();
+        for (Item item : getItems()) {
+            if (item.problem != Problem.NONE || item.unchanged) {
+                continue;
+            }
+            add(by_source, item.source, item);
+            add(by_target, item.target, item);
+        }
+
+        // PDF files linked more than once must have the same target
+        for (List<Item> items : by_source.values()) {
+            for (Item item : items) {
+                if (!item.target.equals(items.get(0).target)) {
+                    for (Item i : items) {
+                        i.problem = Problem.DUPLICATE_SOURCE;
+                    }
+                    break;
+                }
+            }
+        }
+
+        // different PDF files must have different targets
+        for (List<Item> items : by_target.values()) {
+            for (Item item : items) {
+                if (item.problem == Problem.NONE && !item.source.equals(items.get(0).source)) {
+                    for (Item i : items) {
+                        if (i.problem == Problem.NONE) {
+                            i.problem = Problem.DUPLICATE_TARGET;
+                        }
+                    }
+                    break;
+                }
+            }
+        }
+
+        // targets of moved PDF files must not already exist
+        for (Item item : getItems()) {
+            if (item.problem == Problem.NONE && !item.unchanged && item.isMove() && item.target.exists()) {
+                item.problem = Problem.TARGET_EXISTS;
+            }
+        }
+
+    }
+
+    // return all items in the plan
+    public List<Item> getItems() {
+        List<Item> items = new ArrayList<Item>();
+        for (EntryPlan entry_plan : entry_plans) {
+            items.addAll(entry_plan.items);
+        }
+        return items;
+    }
+
+    // return all items in the plan with problems
+    public List<Item> getProblemItems() {
+        List<Item> items = new ArrayList<Item>();
+        for (Item item : getItems()) {
+            if (item.problem != Problem.NONE) {
+                items.add(item);
+            }
+        }
+        return items;
+    }
+
+    private static void add(Map<File, List<Item>> map, File key, Item item) {
+        List<Item> items = map.get(key);
+        if (items == null) {
+            items = new ArrayList<Item>();
+            map.put(key, items);
+        }
+        items.add(item);
+    }
+
+}
+
+// Local Variables:
+// mode: java
+// c-basic-offset: 4
+// tab-width: 4
+// End:
@@ -0,0 +1,161 @@
+//
+// JabRef PDFTasks Plugin
+// Copyright (C) 2011--2015  Karl Wette
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+//
+
+package net.sf.jabref.plugins.pdftasks;
+
+import java.awt.BorderLayout;
+import java.awt.Dimension;
+import java.awt.FlowLayout;
+import java.awt.Frame;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.util.List;
+import javax.swing.BorderFactory;
+import javax.swing.JButton;
+import javax.swing.JCheckBox;
+import javax.swing.JDialog;
+import javax.swing.JLabel;
+import javax.swing.JPanel;
+import javax.swing.JScrollPane;
+import javax.swing.JTable;
+import javax.swing.table.AbstractTableModel;
+
+// PDFTasks plan review dialog class
+// - summarises what the PDF tasks will do, and lists all problems found while planning,
+//   so that the user can review them all at once before any PDF file is modified
+class PDFTaskPlanDialog
+    extends JDialog
+    implements ActionListener
+{
+
+    private final JCheckBox replace_chk;
+    private final JButton proceed_btn;
+    private final JButton cancel_btn;
+
+    private boolean proceed = false;
+
+    // table of items in the plan with problems
+    private static class ProblemTableModel
+        extends AbstractTableModel
+    {
+        private static final String[] columns = { "Entry", "PDF file", "Target", "Problem" };
+        private final List<PDFTaskPlan.Item> items;
+        ProblemTableModel(List<PDFTaskPlan.Item> items) {
+            this.items = items;
+        }
+        public int getRowCount() {
+            return items.size();
+        }
+        public int getColumnCount() {
+            return columns.length;
+        }
+        public String getColumnName(int column) {
+            return columns[column];
+        }
+        public Object getValueAt(int row, int column) {
+            PDFTaskPlan.Item item = items.get(row);
+            switch (column) {
+            case 0:
+                return item.entry_plan.key != null ? item.entry_plan.key : item.entry_plan.entry.getId();
+            case 1:
+                return item.source != null ? item.source.getPath() : item.link;
+            case 2:
+                return item.target != null ? item.target.getPath() : "";
+            default:
+                return item.problem.description;
+            }
+        }
+    }
+
+    public PDFTaskPlanDialog(Frame owner, String title, PDFTaskPlan plan, int move_count, int write_count) {
+
+        // initialise modal dialog
+        super(owner, title, true);
+
+        // create summary label
+        List<PDFTaskPlan.Item> problems = plan.getProblemItems();
+        StringBuilder summary = new StringBuilder("<html>");
+        summary.append(String.format("%d PDF files will be renamed and/or moved.<br>", move_count));
+        summary.append(String.format("%d PDF files will have their document information written.<br>", write_count));
+        if (problems.size() > 0) {
+            summary.append(String.format("<b>%d PDF files have problems, listed below, and will be skipped.</b><br>",
+                                         problems.size()));
+        }
+        summary.append("Are you sure you want to rename, move, and/or modify PDF files?<br>");
+        summary.append("This operation cannot be undone.</html>");
+        JLabel summary_lbl = new JLabel(summary.toString());
+
+        // create check box for replacing existing target files
+        boolean targets_exist = false;
+        for (PDFTaskPlan.Item item : problems) {
+            targets_exist |= item.problem == PDFTaskPlan.Problem.TARGET_EXISTS;
+        }
+        replace_chk = new JCheckBox("Replace target PDF files which already exist", false);
+        replace_chk.setVisible(targets_exist);
+
+        // create buttons
+        proceed_btn = new JButton("Proceed");
+        proceed_btn.addActionListener(this);
+        cancel_btn = new JButton("Cancel");
+        cancel_btn.addActionListener(this);
+
+        // layout components
+        JPanel pane = new JPanel(new BorderLayout(8, 8));
+        pane.setBorder(BorderFactory.createEmptyBorder(12, 12, 12, 12));
+        pane.add(summary_lbl, BorderLayout.NORTH);
+        if (problems.size() > 0) {
+            JTable table = new JTable(new ProblemTableModel(problems));
+            table.setAutoCreateRowSorter(true);
+            JScrollPane scroll = new JScrollPane(table);
+            scroll.setPreferredSize(new Dimension(800, 300));
+            pane.add(scroll, BorderLayout.CENTER);
+        }
+        JPanel buttons = new JPanel(new FlowLayout(FlowLayout.RIGHT));
+        buttons.add(replace_chk);
+        buttons.add(proceed_btn);
+        buttons.add(cancel_btn);
+        pane.add(buttons, BorderLayout.SOUTH);
+        setContentPane(pane);
+        getRootPane().setDefaultButton(cancel_btn);
+        pack();
+        setLocationRelativeTo(owner);
+
+    }
+
+    public void actionPerformed(ActionEvent e) {
+        proceed = e.getSource() == proceed_btn;
+        dispose();
+    }
+
+    // whether the user chose to proceed
+    public boolean isProceed() {
+        return proceed;
+    }
+
+    // whether the user chose to replace target PDF files which already exist
+    public boolean isReplace() {
+        return replace_chk.isSelected();
+    }
+
+}
+
+// Local Variables:
+// mode: java
+// c-basic-offset: 4
+// tab-width: 4
+// End:
@@ -0,0 +1,183 @@
+//
+// JabRef PDFTasks Plugin
+// Copyright (C) 2011--2015  Karl Wette
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+//
+
+package net.sf.jabref.plugins.pdftasks;
+
+import java.awt.Dimension;
+import java.awt.Frame;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
+import javax.swing.GroupLayout;
+import javax.swing.JButton;
+import javax.swing.JDialog;
+import javax.swing.JLabel;
+import javax.swing.JPanel;
+import javax.swing.JProgressBar;
+import javax.swing.SwingUtilities;
+import javax.swing.WindowConstants;
+
+// PDFTasks progress dialog class
+// - progress may be reported from any thread; the dialog is updated on the Swing event thread
+class PDFTaskProgressDialog
+    extends JDialog
+    implements ActionListener
+{
+
+    private final JLabel status_lbl;
+    private final JProgressBar progress_bar;
+    private final JLabel eta_lbl;
+    private final JButton cancel_btn;
+
+    private final int total;
+    private volatile boolean cancelled = false;
+    private long start_time;
+
+    public PDFTaskProgressDialog(Frame owner, String title, int total) {
+
+        // initialise non-modal dialog, so that the Cancel button remains usable
+        super(owner, title, false);
+        setDefaultCloseOperation(WindowConstants.DO_NOTHING_ON_CLOSE);
+
+        // save total amount of work
+        this.total = total;
+
+        // create status label
+        status_lbl = new JLabel(" ");
+        {
+            Dimension d = status_lbl.getPreferredSize();
+            d.width = 360;
+            status_lbl.setPreferredSize(d);
+        }
+
+        // create determinate progress bar
+        progress_bar = new JProgressBar(0, Math.max(total, 1));
+        progress_bar.setStringPainted(true);
+
+        // create estimated-time-remaining label
+        eta_lbl = new JLabel(" ");
+
+        // create cancel button
+        cancel_btn = new JButton("Cancel");
+        cancel_btn.addActionListener(this);
+
+        // treat closing the dialog as cancelling
+        addWindowListener(new WindowAdapter() {
+                public void windowClosing(WindowEvent e) {
+                    cancel();
+                }
+            });
+
+        // create pane and layout components
+        JPanel pane = new JPanel();
+        {
+            GroupLayout grp = new GroupLayout(pane);
+            pane.setLayout(grp);
+            grp.setAutoCreateGaps(true);
+            grp.setAutoCreateContainerGaps(true);
+            grp.setHorizontalGroup(grp
+                                   .createParallelGroup(GroupLayout.Alignment.CENTER)
+                                   .addComponent(status_lbl)
+                                   .addComponent(progress_bar)
+                                   .addComponent(eta_lbl)
+                                   .addComponent(cancel_btn)
+                );
+            grp.setVerticalGroup(grp
+                                 .createSequentialGroup()
+                                 .addComponent(status_lbl)
+                                 .addComponent(progress_bar)
+                                 .addComponent(eta_lbl)
+                                 .addComponent(cancel_btn)
+                );
+        }
+        setContentPane(pane);
+        pack();
+        setLocationRelativeTo(owner);
+
+    }
+
+    public void setVisible(boolean visible) {
+
+        // start timing when the dialog is first shown
+        if (visible && start_time == 0) {
+            start_time = System.currentTimeMillis();
+        }
+
+        super.setVisible(visible);
+
+    }
+
+    public void actionPerformed(ActionEvent e) {
+
+        // cancel tasks
+        if (e.getSource() == cancel_btn) {
+            cancel();
+        }
+
+    }
+
+    // return whether the user has cancelled the tasks
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    // report that 'done' out of 'total' units of work are complete; may be called from any thread
+    public void setProgress(final int done, final String status) {
+        SwingUtilities.invokeLater(new Runnable() {
+                public void run() {
+                    progress_bar.setValue(done);
+                    progress_bar.setString(String.format("%d of %d", done, total));
+                    if (!cancelled) {
+                        status_lbl.setText(status);
+                        eta_lbl.setText(estimateTimeRemaining(done));
+                    }
+                }
+            });
+    }
+
+    private void cancel() {
+        cancelled = true;
+        cancel_btn.setEnabled(false);
+        status_lbl.setText("Cancelling after the current file...");
+        eta_lbl.setText(" ");
+    }
+
+    // estimate time remaining from the average time taken so far
+    private String estimateTimeRemaining(int done) {
+        if (done <= 0 || done >= total) {
+            return " ";
+        }
+        long elapsed = System.currentTimeMillis() - start_time;
+        long remaining = (elapsed * (total - done) / done) / 1000;
+        if (remaining >= 3600) {
+            return String.format("About %d h %02d min remaining", remaining / 3600, (remaining % 3600) / 60);
+        }
+        if (remaining >= 60) {
+            return String.format("About %d min %02d s remaining", remaining / 60, remaining % 60);
+        }
+        return String.format("About %d s remaining", remaining);
+    }
+
+}
+
+// Local Variables:
+// mode: java
+// c-basic-offset: 4
+// tab-width: 4
+// End:
@@ -23,21 +23,12 @@ import net.sf.jabref.BasePanel;
 import net.sf.jabref.BibtexDatabase;
 import net.sf.jabref.BibtexEntry;
 import net.sf.jabref.GUIGlobals;
-import net.sf.jabref.Globals;
 import net.sf.jabref.JabRefFrame;
 import net.sf.jabref.MetaData;
 import net.sf.jabref.SidePaneComponent;
 import net.sf.jabref.SidePaneManager;
-import net.sf.jabref.external.ExternalFileType;
-import net.sf.jabref.gui.FileListEntry;
-import net.sf.jabref.gui.FileListTableModel;
-import net.sf.jabref.util.XMPUtil;
-
-import org.apache.pdfbox.exceptions.COSVisitorException;
-import org.apache.pdfbox.exceptions.CryptographyException;
-import org.apache.pdfbox.pdmodel.PDDocument;
-import org.apache.pdfbox.pdmodel.PDDocumentInformation;
-import org.apache.pdfbox.pdmodel.encryption.BadSecurityHandlerException;
+import net.sf.jabref.undo.NamedCompound;
+import net.sf.jabref.undo.UndoableFieldChange;
 
 import java.awt.BorderLayout;
 import java.awt.Component;
@@ -46,20 +37,29 @@ import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.io.File;
 import java.io.IOException;
-import java.util.HashMap;
-import java.util.LinkedList;
+import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
 import javax.swing.BoxLayout;
 import javax.swing.GroupLayout;
 import javax.swing.JButton;
 import javax.swing.JCheckBox;
+import javax.swing.JComboBox;
+import javax.swing.JLabel;
 import javax.swing.JOptionPane;
 import javax.swing.JPanel;
+import javax.swing.JScrollPane;
+import javax.swing.JSpinner;
+import javax.swing.JTextArea;
 import javax.swing.JTextField;
 import javax.swing.LayoutStyle.ComponentPlacement;
+import javax.swing.SpinnerNumberModel;
+import javax.swing.SwingUtilities;
 import javax.swing.event.ChangeEvent;
 import javax.swing.event.ChangeListener;
-import javax.xml.transform.TransformerException;
 
 // PDFTasks side pane class
 public class PDFTaskSidePane
@@ -72,11 +72,28 @@ public class PDFTaskSidePane
     private final JabRefFrame frame;
 
     private final JButton do_tasks;
+    private final JButton check_links;
+    private final JButton import_metadata;
+    private final JButton find_duplicates;
+    private final JButton reshard_pdfs;
     private final JCheckBox rename_pdfs_chk;
     private final JCheckBox move_to_pdf_dir_chk;
     private final JTextField pdf_dir_txt;
+    private final JComboBox<PDFTaskEngine.Layout> pdf_dir_layout_cmb;
     private final JCheckBox write_pdf_docinfo_chk;
     private final JCheckBox erase_pdf_docinfo_chk;
+    private final JCheckBox incremental_update_chk;
+    private final JCheckBox skip_up_to_date_chk;
+    private final JCheckBox skip_unchanged_chk;
+    private final JCheckBox parallel_chk;
+    private final JSpinner parallel_threads_spn;
+    private final JLabel link_health_lbl;
+
+    // histograms of where PDF files are stored, for each open database
+    private final Map<BibtexDatabase, PDFDirHistogram> pdf_dir_hists = new WeakHashMap<BibtexDatabase, PDFDirHistogram>();
+
+    // live indexes of which PDF file links resolve, for each open database
+    private final Map<BibtexDatabase, PDFLinkHealth> pdf_link_healths = new WeakHashMap<BibtexDatabase, PDFLinkHealth>();
 
     public PDFTaskSidePane(JabRefFrame frame, SidePaneManager manager) {
 
@@ -99,6 +116,11 @@ public class PDFTaskSidePane
             pdf_dir_txt.setPreferredSize(d);
         }
 
+        // create combo box for layout of PDFs in directory
+        pdf_dir_layout_cmb = new JComboBox<PDFTaskEngine.Layout>(PDFTaskEngine.Layout.values());
+        pdf_dir_layout_cmb.setToolTipText("Layout of PDFs in directory: all in the directory itself, " +
+                                          "or spread over subdirectories");
+
         // create check box for writing erasing PDF document info
         write_pdf_docinfo_chk = new JCheckBox("Write PDF document information", true);
         write_pdf_docinfo_chk.addChangeListener(this);
@@ -106,10 +128,47 @@ public class PDFTaskSidePane
         // create check box for erasing previous PDF document info
         erase_pdf_docinfo_chk = new JCheckBox("Erase previous document information", false);
 
+        // create check box for saving document information as an incremental update
+        incremental_update_chk = new JCheckBox("Append changes as incremental update", false);
+
+        // create check box for skipping PDFs whose document information is up to date
+        skip_up_to_date_chk = new JCheckBox("Skip PDFs already up to date", true);
+
+        // create check box for skipping PDFs unchanged since they were last processed
+        skip_unchanged_chk = new JCheckBox("Skip PDFs unchanged since last run", true);
+
+        // create check box and spinner for processing PDFs in parallel
+        parallel_chk = new JCheckBox("Process PDFs in parallel, threads:", false);
+        parallel_chk.addChangeListener(this);
+        {
+            int ncpu = Runtime.getRuntime().availableProcessors();
+            parallel_threads_spn = new JSpinner(new SpinnerNumberModel(ncpu, 1, 4 * ncpu, 1));
+            parallel_threads_spn.setEnabled(false);
+        }
+
+        // create label showing number of broken PDF file links
+        link_health_lbl = new JLabel(" ");
+
         // create do task button
         do_tasks = new JButton("Perform PDF Tasks");
         do_tasks.addActionListener(this);
 
+        // create check links button
+        check_links = new JButton("Check PDF Links");
+        check_links.addActionListener(this);
+
+        // create import metadata button
+        import_metadata = new JButton("Import PDF Metadata");
+        import_metadata.addActionListener(this);
+
+        // create find duplicates button
+        find_duplicates = new JButton("Find Duplicate PDFs");
+        find_duplicates.addActionListener(this);
+
+        // create re-shard button
+        reshard_pdfs = new JButton("Re-shard PDF Directory");
+        reshard_pdfs.addActionListener(this);
+
         // create pane and layout components
         JPanel pane = new JPanel();
         {
@@ -124,10 +183,36 @@ public class PDFTaskSidePane
                                              .addComponent(rename_pdfs_chk)
                                              .addComponent(move_to_pdf_dir_chk)
                                              .addComponent(pdf_dir_txt)
+                                             .addComponent(pdf_dir_layout_cmb,
+                                                           GroupLayout.PREFERRED_SIZE,
+                                                           GroupLayout.PREFERRED_SIZE,
+                                                           GroupLayout.PREFERRED_SIZE)
                                              .addComponent(write_pdf_docinfo_chk)
                                              .addComponent(erase_pdf_docinfo_chk)
+                                             .addComponent(incremental_update_chk)
+                                             .addComponent(skip_up_to_date_chk)
+                                             .addComponent(skip_unchanged_chk)
+                                             .addGroup(grp
+                                                       .createSequentialGroup()
+                                                       .addComponent(parallel_chk)
+                                                       .addComponent(parallel_threads_spn,
+                                                                     GroupLayout.PREFERRED_SIZE,
+                                                                     GroupLayout.PREFERRED_SIZE,
+                                                                     GroupLayout.PREFERRED_SIZE)
+                                                 )
+                                             .addComponent(link_health_lbl)
                                        )
                                    .addComponent(do_tasks)
+                                   .addGroup(grp
+                                             .createSequentialGroup()
+                                             .addComponent(check_links)
+                                             .addComponent(import_metadata)
+                                       )
+                                   .addGroup(grp
+                                             .createSequentialGroup()
+                                             .addComponent(find_duplicates)
+                                             .addComponent(reshard_pdfs)
+                                       )
                 );
             grp.setVerticalGroup(grp
                                  .createSequentialGroup()
@@ -141,6 +226,13 @@ public class PDFTaskSidePane
                                                   ComponentPlacement.RELATED)
                                  .addComponent(pdf_dir_txt)
                                  .addPreferredGap(pdf_dir_txt,
+                                                  pdf_dir_layout_cmb,
+                                                  ComponentPlacement.RELATED)
+                                 .addComponent(pdf_dir_layout_cmb,
+                                               GroupLayout.PREFERRED_SIZE,
+                                               GroupLayout.PREFERRED_SIZE,
+                                               GroupLayout.PREFERRED_SIZE)
+                                 .addPreferredGap(pdf_dir_layout_cmb,
                                                   write_pdf_docinfo_chk,
                                                   ComponentPlacement.UNRELATED)
                                  .addComponent(write_pdf_docinfo_chk)
@@ -149,10 +241,55 @@ public class PDFTaskSidePane
                                      erase_pdf_docinfo_chk,
                                      ComponentPlacement.RELATED)
                                  .addComponent(erase_pdf_docinfo_chk)
-                                 .addPreferredGap(erase_pdf_docinfo_chk,
+                                 .addPreferredGap(
+                                     erase_pdf_docinfo_chk,
+                                     incremental_update_chk,
+                                     ComponentPlacement.RELATED)
+                                 .addComponent(incremental_update_chk)
+                                 .addPreferredGap(
+                                     incremental_update_chk,
+                                     skip_up_to_date_chk,
+                                     ComponentPlacement.RELATED)
+                                 .addComponent(skip_up_to_date_chk)
+                                 .addPreferredGap(skip_up_to_date_chk,
+                                                  skip_unchanged_chk,
+                                                  ComponentPlacement.UNRELATED)
+                                 .addComponent(skip_unchanged_chk)
+                                 .addPreferredGap(skip_unchanged_chk,
+                                                  parallel_chk,
+                                                  ComponentPlacement.UNRELATED)
+                                 .addGroup(grp
+                                           .createParallelGroup(GroupLayout.Alignment.BASELINE)
+                                           .addComponent(parallel_chk)
+                                           .addComponent(parallel_threads_spn,
+                                                         GroupLayout.PREFERRED_SIZE,
+                                                         GroupLayout.PREFERRED_SIZE,
+                                                         GroupLayout.PREFERRED_SIZE)
+                                     )
+                                 .addPreferredGap(parallel_chk,
+                                                  link_health_lbl,
+                                                  ComponentPlacement.UNRELATED)
+                                 .addComponent(link_health_lbl)
+                                 .addPreferredGap(link_health_lbl,
                                                   do_tasks,
                                                   ComponentPlacement.UNRELATED)
                                  .addComponent(do_tasks)
+                                 .addPreferredGap(do_tasks,
+                                                  check_links,
+                                                  ComponentPlacement.RELATED)
+                                 .addGroup(grp
+                                           .createParallelGroup(GroupLayout.Alignment.BASELINE)
+                                           .addComponent(check_links)
+                                           .addComponent(import_metadata)
+                                     )
+                                 .addPreferredGap(check_links,
+                                                  find_duplicates,
+                                                  ComponentPlacement.RELATED)
+                                 .addGroup(grp
+                                           .createParallelGroup(GroupLayout.Alignment.BASELINE)
+                                           .addComponent(find_duplicates)
+                                           .addComponent(reshard_pdfs)
+                                     )
                 );
         }
         setLayout(new BoxLayout(this, BoxLayout.Y_AXIS));
@@ -184,14 +321,23 @@ public class PDFTaskSidePane
             updatePane();
         }
 
-        // enable pdf_dir_txt iff move_to_pdf_dir_chk is selected
+        // enable pdf_dir_txt and pdf_dir_layout_cmb iff move_to_pdf_dir_chk is selected
         if (e.getSource() == move_to_pdf_dir_chk) {
             pdf_dir_txt.setEnabled(move_to_pdf_dir_chk.isSelected());
+            pdf_dir_layout_cmb.setEnabled(move_to_pdf_dir_chk.isSelected());
         }
 
-        // enable erase_pdf_docinfo_chk iff write_pdf_docinfo_chk is selected
+        // enable erase_pdf_docinfo_chk, incremental_update_chk, and skip_up_to_date_chk
+        // iff write_pdf_docinfo_chk is selected
         if (e.getSource() == write_pdf_docinfo_chk) {
             erase_pdf_docinfo_chk.setEnabled(write_pdf_docinfo_chk.isSelected());
+            incremental_update_chk.setEnabled(write_pdf_docinfo_chk.isSelected());
+            skip_up_to_date_chk.setEnabled(write_pdf_docinfo_chk.isSelected());
+        }
+
+        // enable parallel_threads_spn iff parallel_chk is selected
+        if (e.getSource() == parallel_chk) {
+            parallel_threads_spn.setEnabled(parallel_chk.isSelected());
         }
 
     }
@@ -203,56 +349,44 @@ public class PDFTaskSidePane
             doTasks();
         }
 
+        // check PDF links
+        if (e.getSource() == check_links) {
+            checkLinks();
+        }
+
+        // import PDF metadata
+        if (e.getSource() == import_metadata) {
+            importMetadata();
+        }
+
+        // find duplicate PDF files
+        if (e.getSource() == find_duplicates) {
+            findDuplicates();
+        }
+
+        // re-shard PDF directory
+        if (e.getSource() == reshard_pdfs) {
+            reshardPDFs();
+        }
+
     }
 
     private void updatePane() {
 
-        // PDF file type representation
-        ExternalFileType pdf_type = Globals.prefs.getExternalFileTypeByExt("pdf");
-
         // get Bibtex database associated with the current tab
         BasePanel db_panel = frame.basePanel();
         BibtexDatabase db = db_panel.database();
 
-        // build a map of where PDF files are stored
-        HashMap<String, Integer> pdf_dir_count = new HashMap<String, Integer>();
-        for (BibtexEntry entry : db.getEntries()) {
-
-            // get table of file links for this Bibtex entry
-            FileListTableModel files = new FileListTableModel();
-            files.setContent(entry.getField(GUIGlobals.FILE_FIELD));
-
-            for (int i = 0; i < files.getRowCount(); ++i) {
-                FileListEntry file_entry = files.getEntry(i);
-
-                // skip if this is not a PDF file link
-                if (!file_entry.getType().equals(pdf_type))
-                    continue;
-
-                // parent directory of PDF file
-                String pdf_dir = new File(file_entry.getLink()).getParent();
-
-                // add to map and increment count
-                if (pdf_dir_count.containsKey(pdf_dir)) {
-                    pdf_dir_count.put(pdf_dir, pdf_dir_count.get(pdf_dir) + 1);
-                }
-                else {
-                    pdf_dir_count.put(pdf_dir, 1);
-                }
-
-            }
-
+        // get histogram of where PDF files are stored, which is built once per database
+        // and then kept up to date by listening for database changes
+        PDFDirHistogram pdf_dir_hist = pdf_dir_hists.get(db);
+        if (pdf_dir_hist == null) {
+            pdf_dir_hist = new PDFDirHistogram(db);
+            pdf_dir_hists.put(db, pdf_dir_hist);
         }
 
         // find directory where the majority of PDF files are stored
-        String pdf_dir_max = null;
-        int pdf_dir_max_count = 0;
-        for (String pdf_dir : pdf_dir_count.keySet()) {
-            if (pdf_dir_count.get(pdf_dir) > pdf_dir_max_count) {
-                pdf_dir_max_count = pdf_dir_count.get(pdf_dir);
-                pdf_dir_max = pdf_dir;
-            }
-        }
+        String pdf_dir_max = pdf_dir_hist.getMajorityDirectory();
 
         // set PDF file directory field to this directory
         if (pdf_dir_max == null) {
@@ -262,16 +396,58 @@ public class PDFTaskSidePane
             pdf_dir_txt.setText(pdf_dir_max);
         }
 
+        // get live index of which PDF file links resolve, which is rebuilt if the file directories change
+        File db_file = db_panel.getFile();
+        if (db_file == null || db_file.getParentFile() == null) {
+            link_health_lbl.setText(" ");
+            return;
+        }
+        List<File> db_dirs = PDFTaskEngine.fileDirectories(db_panel.metaData(), db_file);
+        PDFLinkHealth pdf_link_health = pdf_link_healths.get(db);
+        if (pdf_link_health != null && !pdf_link_health.getDirectories().equals(db_dirs)) {
+            pdf_link_health.close(db);
+            pdf_link_health = null;
+        }
+        if (pdf_link_health == null) {
+            pdf_link_health = new PDFLinkHealth(db, db_dirs, new Runnable() {
+                    public void run() {
+                        SwingUtilities.invokeLater(new Runnable() {
+                                public void run() {
+                                    updateLinkHealth();
+                                }
+                            });
+                    }
+                });
+            pdf_link_healths.put(db, pdf_link_health);
+        }
+        pdf_link_health.setTargetDirectory(PDFTaskEngine.absoluteFile(pdf_dir_txt.getText(), db_file.getParentFile()));
+        updateLinkHealth();
+
     }
 
-    private void doTasks() {
+    // show the number of broken PDF file links of the Bibtex database associated with the current tab
+    private void updateLinkHealth() {
+        BasePanel db_panel = frame.basePanel();
+        PDFLinkHealth pdf_link_health = db_panel == null ? null : pdf_link_healths.get(db_panel.database());
+        if (pdf_link_health == null) {
+            link_health_lbl.setText(" ");
+        }
+        else if (!pdf_link_health.isReady()) {
+            link_health_lbl.setText("Checking PDF links...");
+        }
+        else if (pdf_link_health.getBrokenCount() == 0) {
+            link_health_lbl.setText(String.format("All %d PDF links found", pdf_link_health.getLinkCount()));
+        }
+        else {
+            link_health_lbl.setText(String.format("%d of %d PDF links broken", pdf_link_health.getBrokenCount(),
+                                                  pdf_link_health.getLinkCount()));
+        }
+    }
 
-        // PDF file type representation
-        final ExternalFileType pdf_type = Globals.prefs.getExternalFileTypeByExt("pdf");
+    private void doTasks() {
 
         // get Bibtex database associated with the current tab
         final BasePanel db_panel = frame.basePanel();
-        final BibtexDatabase db = db_panel.database();
         final MetaData db_meta = db_panel.metaData();
 
         // get selected Bibtex entries from the current tab
@@ -287,13 +463,7 @@ public class PDFTaskSidePane
         }
 
         // get array of directories that PDF files could possibly be in
-        final List<File> db_dirs = new LinkedList<File>();
-        for (String dir : db_meta.getFileDirectory(GUIGlobals.FILE_FIELD)) {
-            db_dirs.add(new File(dir));
-        }
-        if (db_dirs.size() == 0 || !db_dirs.contains(db_file.getParentFile())) {
-            db_dirs.add(db_file.getParentFile());
-        }
+        final List<File> db_dirs = PDFTaskEngine.fileDirectories(db_meta, db_file);
 
         // return if no entries are selected
         if (db_entries.length == 0) {
@@ -303,30 +473,266 @@ public class PDFTaskSidePane
             return;
         }
 
-        // get PDF file directory
-        final File pdf_dir = absoluteFile(pdf_dir_txt.getText(), db_file.getParentFile());
+        // get selected tasks
+        PDFTaskEngine.Options options = new PDFTaskEngine.Options();
+        options.rename_pdfs = rename_pdfs_chk.isSelected();
+        options.move_to_pdf_dir = move_to_pdf_dir_chk.isSelected();
+        options.pdf_dir = PDFTaskEngine.absoluteFile(pdf_dir_txt.getText(), db_file.getParentFile());
+        options.write_pdf_docinfo = write_pdf_docinfo_chk.isSelected();
+        options.erase_pdf_docinfo = erase_pdf_docinfo_chk.isSelected();
+        options.incremental_update = incremental_update_chk.isSelected();
+        options.skip_up_to_date = skip_up_to_date_chk.isSelected();
+        options.skip_unchanged = skip_unchanged_chk.isSelected();
+        options.parallel_threads = parallel_chk.isSelected() ? (Integer) parallel_threads_spn.getValue() : 0;
+        options.pdf_dir_layout = (PDFTaskEngine.Layout) pdf_dir_layout_cmb.getSelectedItem();
+
+        // run PDF tasks
+        runTasks(db_panel, db_file, db_dirs, db_entries, options, "PDF Tasks");
+
+    }
+
+    private void reshardPDFs() {
+
+        // get Bibtex database associated with the current tab
+        final BasePanel db_panel = frame.basePanel();
+        final BibtexDatabase db = db_panel.database();
+
+        // get Bibtex database file for current tab
+        final File db_file = db_panel.getFile();
+        if (db_file == null || db_file.getParentFile() == null) {
+            JOptionPane.showMessageDialog(frame,
+                                          "Bibtex database must be saved before re-sharding the PDF directory.",
+                                          title, JOptionPane.INFORMATION_MESSAGE);
+            return;
+        }
+
+        // get PDF directory
+        File pdf_dir = pdf_dir_txt.getText().isEmpty() ? null :
+            PDFTaskEngine.absoluteFile(pdf_dir_txt.getText(), db_file.getParentFile());
+        if (pdf_dir == null || !pdf_dir.isDirectory()) {
+            JOptionPane.showMessageDialog(frame,
+                                          "PDF directory must exist before it can be re-sharded.",
+                                          title, JOptionPane.INFORMATION_MESSAGE);
+            return;
+        }
+
+        // move PDF files of all Bibtex entries which are in the PDF directory into the selected layout,
+        // without renaming them or doing anything else
+        PDFTaskEngine.Options options = new PDFTaskEngine.Options();
+        options.rename_pdfs = false;
+        options.move_to_pdf_dir = true;
+        options.pdf_dir = pdf_dir;
+        options.pdf_dir_layout = (PDFTaskEngine.Layout) pdf_dir_layout_cmb.getSelectedItem();
+        options.write_pdf_docinfo = false;
+        options.skip_unchanged = false;
+        options.reshard_only = true;
+        BibtexEntry[] db_entries = db.getEntries().toArray(new BibtexEntry[0]);
+
+        // run PDF tasks
+        runTasks(db_panel, db_file, PDFTaskEngine.fileDirectories(db_panel.metaData(), db_file),
+                 db_entries, options, "Re-shard PDF Directory");
+
+    }
+
+    // run the PDF tasks given by 'options' on 'db_entries', as the action 'action'
+    private void runTasks(final BasePanel db_panel, File db_file, List<File> db_dirs, BibtexEntry[] db_entries,
+                          PDFTaskEngine.Options options, final String action)
+    {
+        BibtexDatabase db = db_panel.database();
+        final boolean erase_pdf_docinfo = options.erase_pdf_docinfo;
+
+        // create progress dialog, which also allows the user to cancel tasks
+        final PDFTaskProgressDialog progress = new PDFTaskProgressDialog(frame, title, db_entries.length);
+
+        // resolve PDF file links with the live index of the database, if it is up to date
+        PDFLinkHealth pdf_link_health = pdf_link_healths.get(db);
+        PDFLinkResolver resolver = pdf_link_health != null && pdf_link_health.getDirectories().equals(db_dirs) ?
+            pdf_link_health.getResolver() : new PDFLinkResolver(db_dirs);
+
+        // changes to file links, which are undoable together with the moves of PDF files
+        final PDFTaskUndo edits = new PDFTaskUndo(action, db_panel, db_file);
+
+        // create engine, which interacts with the user through dialogs
+        final PDFTaskEngine engine = new PDFTaskEngine(db, db_file, db_dirs, db_entries, options, resolver,
+                                                       new PDFTaskEngine.Listener() {
+                public void progress(int done, String status) {
+                    output(status);
+                    progress.setProgress(done, status);
+                }
+                public void message(String message) {
+                    output(message);
+                }
+                public boolean isCancelled() {
+                    return progress.isCancelled();
+                }
+                public boolean isDryRun() {
+                    return false;
+                }
+                public PDFTaskEngine.Recovery chooseRecovery(int move_count, int write_count) {
+                    String message = String.format("A previous run of PDF Tasks on this database did not complete, " +
+                                                   "or its changes to file links were not saved.\n" +
+                                                   "It moved %d PDF files and wrote document information to %d PDF files.\n\n" +
+                                                   "Resume: update file links to the moved PDF files, and continue.\n" +
+                                                   "Roll back: move the PDF files back, and remove document information " +
+                                                   "where possible.",
+                                                   move_count, write_count);
+                    Object[] choices = { "Resume", "Roll back", "Cancel" };
+                    switch (showOptionDialog(message, title, choices)) {
+                    case 0:
+                        return PDFTaskEngine.Recovery.RESUME;
+                    case 1:
+                        return PDFTaskEngine.Recovery.ROLL_BACK;
+                    default:
+                        return PDFTaskEngine.Recovery.CANCEL;
+                    }
+                }
+                public PDFTaskEngine.Review reviewPlan(final PDFTaskPlan plan, final int move_count, final int write_count) {
+
+                    // no need for review if no PDF files will be moved or have their document information
+                    // erased, and there are no problems
+                    if (move_count == 0 && (write_count == 0 || !erase_pdf_docinfo) && plan.getProblemItems().isEmpty()) {
+                        return PDFTaskEngine.Review.PROCEED;
+                    }
+
+                    final PDFTaskEngine.Review[] review = { PDFTaskEngine.Review.CANCEL };
+                    invokeAndWait(new Runnable() {
+                            public void run() {
+                                PDFTaskPlanDialog dlg = new PDFTaskPlanDialog(frame, title, plan, move_count, write_count);
+                                dlg.setVisible(true);
+                                if (dlg.isProceed()) {
+                                    review[0] = dlg.isReplace() ? PDFTaskEngine.Review.PROCEED_REPLACE : PDFTaskEngine.Review.PROCEED;
+                                }
+                            }
+                        });
+                    return review[0];
+                }
+                public void setFields(List<PDFFieldChange> changes) {
+                    applyFieldChanges(edits, changes);
+                }
+            });
 
         // do tasks encapsulated in a worker-thread class
-        AbstractWorker tasks = new AbstractWorker()
+        final AbstractWorker tasks = new AbstractWorker()
             {
 
-                boolean cancelled = false;
-                boolean confirmed = false;
                 boolean erred = false;
 
-                // get user confirmation for PDF file modifications
-                private boolean getUserConfirmation() {
-                    if (!confirmed) {
-                        confirmed = JOptionPane.
-                            showConfirmDialog(frame,
-                                              "Are you sure you want to rename, move, and/or modify PDF files?\n" +
-                                              "This operations cannot be undone.",
-                                              title, JOptionPane.YES_NO_OPTION)
-                            == JOptionPane.YES_OPTION;
-                    }
-                    return confirmed;
+                public void init() {
+
+                    // block main window
+                    frame.block();
+
+                }
+
+                public void run() {
+
+                    // run engine
+                    engine.run();
+
+                    // report all errors at once
+                    List<String> errors = engine.getErrors();
+                    if (!errors.isEmpty()) {
+                        erred = true;
+                        StringBuilder errmsg = new StringBuilder();
+                        int i = 0;
+                        for (String error : errors) {
+                            if (++i > 20) {
+                                errmsg.append(String.format("(%d further errors occurred.)", errors.size() - 20));
+                                break;
+                            }
+                            errmsg.append(error).append('\n');
+                        }
+                        showMessageDialog(errmsg.toString(), title, JOptionPane.ERROR_MESSAGE);
+                    }
+
+                }
+
+                public void update() {
+
+                    // close progress dialog and unblock main window
+                    progress.dispose();
+                    frame.unblock();
+
+                    // make changes to file links, and moves of PDF files, undoable
+                    edits.setMoves(engine.getMoves());
+                    endFieldChanges(db_panel, edits, true);
+
+                    // print to status bar
+                    if (erred) {
+                        frame.output("An error occurred during " + action);
+                    }
+                    else if (engine.isRolledBack()) {
+                        frame.output("Rolled back previous PDF Tasks");
+                    }
+                    else if (engine.isCancelled()) {
+                        frame.output("Cancelled " + action);
+                    }
+                    else {
+                        StringBuilder status = new StringBuilder("Completed " + action);
+                        if (engine.getUnchangedCount() > 0 || engine.getUpToDateCount() > 0 || engine.getProblemCount() > 0) {
+                            status.append(String.format(" (%d PDF files unchanged since last run, " +
+                                                        "%d already up to date, %d skipped due to problems)",
+                                                        engine.getUnchangedCount(), engine.getUpToDateCount(),
+                                                        engine.getProblemCount()));
+                        }
+                        if (engine.getMovedCount() > 0) {
+                            long bytes = engine.getMovedBytes();
+                            long nanos = engine.getMovedNanos();
+                            status.append(String.format(" (moved %d PDF files, %.1f MB at %.1f MB/s)",
+                                                        engine.getMovedCount(), bytes / 1048576.0,
+                                                        nanos > 0 ? (bytes / 1048576.0) / (nanos / 1e9) : 0));
+                        }
+                        String times = engine.getStats().shortSummary();
+                        if (!times.isEmpty()) {
+                            status.append(" (").append(times).append(')');
+                        }
+                        frame.output(status.toString());
+                    }
+
                 }
 
+            };
+
+        // run task thread
+        runWorker(tasks, progress);
+
+    }
+
+    private void checkLinks() {
+
+        // get Bibtex database associated with the current tab
+        final BasePanel db_panel = frame.basePanel();
+        final BibtexDatabase db = db_panel.database();
+
+        // get Bibtex database file for current tab
+        final File db_file = db_panel.getFile();
+        if (db_file == null || db_file.getParentFile() == null) {
+            JOptionPane.showMessageDialog(frame,
+                                          "Bibtex database must be saved before checking PDF links.",
+                                          title, JOptionPane.INFORMATION_MESSAGE);
+            return;
+        }
+
+        // get array of directories that PDF files could possibly be in
+        final List<File> db_dirs = PDFTaskEngine.fileDirectories(db_panel.metaData(), db_file);
+
+        // check all Bibtex entries, with the live index of the database if it is up to date
+        final List<BibtexEntry> db_entries = new ArrayList<BibtexEntry>(db.getEntries());
+        PDFLinkHealth pdf_link_health = pdf_link_healths.get(db);
+        PDFLinkResolver resolver = pdf_link_health != null && pdf_link_health.getDirectories().equals(db_dirs) ?
+            pdf_link_health.getResolver() : new PDFLinkResolver(db_dirs);
+        final PDFLinkCheck check = new PDFLinkCheck(db_dirs, resolver, PDFLinkCheck.DEFAULT_THREADS);
+
+        // create progress dialog, which also allows the user to cancel the check
+        final PDFTaskProgressDialog progress = new PDFTaskProgressDialog(frame, title, check.countLinks(db_entries));
+
+        // check links encapsulated in a worker-thread class
+        final AbstractWorker checks = new AbstractWorker()
+            {
+
+                List<PDFLinkCheck.Result> results = null;
+                final StringBuilder report = new StringBuilder();
+
                 public void init() {
 
                     // block main window
@@ -336,383 +742,500 @@ public class PDFTaskSidePane
 
                 public void run() {
 
-                    // for debugging purposes
-                    final boolean modifyDatabase = true;
-
-                    // iterate over selected Bibtex entries
-                    int entry_count = 0;
-                    for (BibtexEntry entry : db_entries) {
-                        ++entry_count;
-
-                        // get Bibtex key, check is not null
-                        String key = entry.getCiteKey();
-                        if (key == null || key.length() == 0) {
-                            JOptionPane.showMessageDialog(frame,
-                                                          "BibTeX entry '" + entry.getId() + "' does not have a key!",
-                                                          title, JOptionPane.ERROR_MESSAGE);
-                            erred = true;
-                            return;
-                        }
+                    // check links
+                    results = check.check(db_entries, new PDFLinkCheck.Listener() {
+                            public void progress(int done, String status) {
+                                progress.setProgress(done, status);
+                            }
+                            public boolean isCancelled() {
+                                return progress.isCancelled();
+                            }
+                        });
+                    if (check.isCancelled()) {
+                        return;
+                    }
 
-                        // update status bar
-                        frame.output(String.format(
-                                         "Processing BibTeX entry: %s (%d of %d)...",
-                                         key, entry_count, db_entries.length
-                                         ));
-
-                        // get table of file links for this Bibtex entry
-                        FileListTableModel files = new FileListTableModel();
-                        files.setContent(entry.getField(GUIGlobals.FILE_FIELD));
-
-                        for (int fileindex = 0; fileindex < files.getRowCount(); ++fileindex) {
-                            FileListEntry file_entry = files.getEntry(fileindex);
-
-                            // skip if this is not a PDF file link
-                            if (!file_entry.getType().equals(pdf_type))
-                                continue;
-
-                            // get PDF file
-                            File pdf_file = null;
-                            for (File db_dir : db_dirs) {
-                                pdf_file = absoluteFile(file_entry.getLink(), db_dir);
-                                if (pdf_file.isFile()) {
-                                    break;
+                    // build report of problems, grouped by problem
+                    if (!results.isEmpty()) {
+                        for (PDFLinkCheck.Problem problem : PDFLinkCheck.Problem.values()) {
+                            int count = 0;
+                            for (PDFLinkCheck.Result result : results) {
+                                if (result.problem == problem) {
+                                    if (count++ == 0) {
+                                        report.append(report.length() > 0 ? "\n" : "").append(problem.description).append(":\n");
+                                    }
+                                    report.append("  ").append(result.key != null ? result.key : result.entry.getId());
+                                    report.append(": ").append(result.link).append('\n');
                                 }
-                                pdf_file = null;
                             }
-                            if (pdf_file == null) {
-                                String errmsg = "Could not find PDF file '" + file_entry.getLink() + "' in '" + db_dirs.get(0);
-                                for (int i = 1; i < db_dirs.size(); ++i) {
-                                    errmsg += "', '" + db_dirs.get(i);
-                                }
-                                errmsg += "'!";
-                                JOptionPane.showMessageDialog(frame, errmsg, title, JOptionPane.ERROR_MESSAGE);
-                                erred = true;
-                                return;
+                        }
+                    }
+
+                }
+
+                public void update() {
+
+                    // close progress dialog and unblock main window
+                    progress.dispose();
+                    frame.unblock();
+
+                    // print to status bar
+                    if (results == null) {
+                        frame.output("An error occurred while checking PDF links");
+                    }
+                    else if (check.isCancelled()) {
+                        frame.output("Cancelled checking PDF links");
+                    }
+                    else if (results.isEmpty()) {
+                        frame.output(String.format("Checked %d PDF links: no problems found", check.getLinkCount()));
+                    }
+                    else {
+                        int[] counts = new int[PDFLinkCheck.Problem.values().length];
+                        for (PDFLinkCheck.Result result : results) {
+                            ++counts[result.problem.ordinal()];
+                        }
+                        StringBuilder status = new StringBuilder(String.format("Checked %d PDF links:", check.getLinkCount()));
+                        String sep = " ";
+                        for (PDFLinkCheck.Problem problem : PDFLinkCheck.Problem.values()) {
+                            if (counts[problem.ordinal()] > 0) {
+                                status.append(sep).append(String.format("%d %s", counts[problem.ordinal()],
+                                                                        problem.name().toLowerCase()));
+                                sep = ", ";
                             }
+                        }
+                        frame.output(status.toString());
+                    }
 
-                            // get PDF file description
-                            String pdf_desc = file_entry.getDescription();
+                    // show report of problems
+                    if (report.length() > 0) {
+                        JTextArea report_txt = new JTextArea(report.toString(), 20, 60);
+                        report_txt.setEditable(false);
+                        JOptionPane.showMessageDialog(frame, new JScrollPane(report_txt), title, JOptionPane.WARNING_MESSAGE);
+                    }
 
-                            // new PDF file
-                            File new_pdf_file = pdf_file;
+                }
 
-                            // rename PDF file
-                            if (rename_pdfs_chk.isSelected()) {
+            };
 
-                                // build new PDF name
-                                String new_name = key;
-                                if (!pdf_desc.isEmpty()) {
-                                    new_name += "_" + pdf_desc.replace(" ", "_");
-                                }
-                                new_name += "." + pdf_type.getExtension();
+        // run check thread
+        runWorker(checks, progress);
 
-                                // set new PDF file
-                                new_pdf_file = absoluteFile(new_name, new_pdf_file.getParentFile());
+    }
 
-                            }
+    private void importMetadata() {
 
-                            // move PDF file
-                            if (move_to_pdf_dir_chk.isSelected()) {
-                                new_pdf_file = absoluteFile(new_pdf_file.getName(), pdf_dir);
-                            }
+        // get Bibtex database associated with the current tab
+        final BasePanel db_panel = frame.basePanel();
+        final BibtexDatabase db = db_panel.database();
 
-                            // if PDF file needs to be moved
-                            if (!new_pdf_file.equals(pdf_file)) {
+        // get selected Bibtex entries from the current tab
+        final List<BibtexEntry> db_entries = Arrays.asList(db_panel.getSelectedEntries());
 
-                                // get user confirmation
-                                if (!getUserConfirmation()) {
-                                    cancelled = true;
-                                    return;
-                                }
+        // get Bibtex database file for current tab
+        final File db_file = db_panel.getFile();
+        if (db_file == null || db_file.getParentFile() == null) {
+            JOptionPane.showMessageDialog(frame,
+                                          "Bibtex database must be saved before importing PDF metadata.",
+                                          title, JOptionPane.INFORMATION_MESSAGE);
+            return;
+        }
 
-                                // perform move/rename operations
-                                if (modifyDatabase) {
-                                    String errmsg = "";
-                                    try {
-
-                                        // create parent directories
-                                        File new_pdf_dir = new_pdf_file.getParentFile();
-                                        if (new_pdf_dir != null && !new_pdf_dir.isDirectory()) {
-                                            errmsg = "Could not create directory '" + new_pdf_file.getParentFile().getPath() + "'";
-                                            erred = !new_pdf_file.getParentFile().mkdirs();
-                                        }
-                                        if (!erred) {
-
-                                            // check if PDF file already exists, and ask for confirmation to replace it
-                                            if (new_pdf_file.isFile()) {
-                                                switch (JOptionPane.
-                                                        showConfirmDialog(frame,
-                                                                          "PDF file '" + new_pdf_file.getPath() + "' already exists.\n" +
-                                                                          "Are you sure you want to replace it with " +
-                                                                          "PDF file '" + pdf_file.getPath() + "'?\n" +
-                                                                          "This operation cannot be undone.",
-                                                                          title,
-                                                                          JOptionPane.YES_NO_CANCEL_OPTION)
-                                                    ) {
-                                                case JOptionPane.NO_OPTION:
-                                                    continue;
-                                                case JOptionPane.CANCEL_OPTION:
-                                                    cancelled = true;
-                                                    return;
-                                                case JOptionPane.YES_OPTION:
-                                                    errmsg = "Could not delete PDF file '" + new_pdf_file.getPath() + "'";
-                                                    erred = !new_pdf_file.delete();
-                                                }
-                                            }
-                                            // otherwise test that we can create the new PDF file
-                                            else {
-                                                errmsg = "Could not access PDF file '" + new_pdf_file.getPath() + "'";
-                                                erred = !new_pdf_file.createNewFile() || !new_pdf_file.delete();
-                                            }
-
-                                            if (!erred) {
-
-                                                // try to move/rename PDF file
-                                                errmsg = "Could not rename PDF file '" + pdf_file.getPath() +
-                                                    "' to '" + new_pdf_file.getPath() + "'";
-                                                erred = !pdf_file.renameTo(new_pdf_file);
-
-                                            }
-
-                                        }
-                                    }
+        // return if no entries are selected
+        if (db_entries.isEmpty()) {
+            JOptionPane.showMessageDialog(frame,
+                                          "No entries selected for importing PDF metadata.",
+                                          title, JOptionPane.INFORMATION_MESSAGE);
+            return;
+        }
 
-                                    // possible exceptions
-                                    catch (SecurityException e) {
-                                        erred = true;
-                                        errmsg += ": insufficient permissions";
-                                    }
-                                    catch (IOException e) {
-                                        e.printStackTrace();
-                                        erred = true;
-                                        errmsg += ": an I/O exception occurred";
-                                    }
-                                    if (erred) {
-                                        JOptionPane.showMessageDialog(frame, errmsg + ".", title, JOptionPane.ERROR_MESSAGE);
-                                        return;
-                                    }
+        // get array of directories that PDF files could possibly be in, and resolve PDF file links
+        // with the live index of the database if it is up to date
+        final List<File> db_dirs = PDFTaskEngine.fileDirectories(db_panel.metaData(), db_file);
+        PDFLinkHealth pdf_link_health = pdf_link_healths.get(db);
+        PDFLinkResolver resolver = pdf_link_health != null && pdf_link_health.getDirectories().equals(db_dirs) ?
+            pdf_link_health.getResolver() : new PDFLinkResolver(db_dirs);
+        final PDFMetadataImport metadata_import = new PDFMetadataImport(resolver, PDFLinkCheck.DEFAULT_THREADS);
 
-                                    // everything was successful
-                                    pdf_file = new_pdf_file;
+        // create progress dialog, which also allows the user to cancel the import
+        final PDFTaskProgressDialog progress = new PDFTaskProgressDialog(frame, title, db_entries.size());
 
-                                }
-                            }
+        // changes to fields, which are undoable together
+        final NamedCompound edits = new NamedCompound("Import PDF Metadata");
 
-                            // update file entry table and Bibtex entry
-                            file_entry.setLink(relativePath(pdf_file, db_dirs.get(0)));
-                            if (modifyDatabase) {
-                                String new_files = files.getStringRepresentation();
-                                if (!new_files.equals(entry.getField(GUIGlobals.FILE_FIELD))) {
-                                    entry.setField(GUIGlobals.FILE_FIELD, new_files);
-                                    db_panel.markNonUndoableBaseChanged();
-                                }
+        // import metadata encapsulated in a worker-thread class
+        final AbstractWorker imports = new AbstractWorker()
+            {
+
+                boolean completed = false;
+                final StringBuilder report = new StringBuilder();
+
+                public void init() {
+
+                    // block main window
+                    frame.block();
+
+                }
+
+                public void run() {
+
+                    // import metadata; fields are set in batches on the event thread
+                    metadata_import.run(db_entries, new PDFMetadataImport.Listener() {
+                            public void progress(int done, String status) {
+                                progress.setProgress(done, status);
                             }
+                            public boolean isCancelled() {
+                                return progress.isCancelled();
+                            }
+                            public void setFields(List<PDFFieldChange> changes) {
+                                applyFieldChanges(edits, changes);
+                            }
+                        });
+                    completed = true;
+
+                    // build report of differences and errors
+                    for (PDFMetadataImport.Difference difference : metadata_import.getDifferences()) {
+                        String key = difference.entry.getCiteKey();
+                        report.append(String.format("%s: %s: '%s' in entry, '%s' in PDF file '%s'\n",
+                                                    key != null ? key : difference.entry.getId(), difference.field,
+                                                    difference.entry_value, difference.pdf_value, difference.link));
+                    }
+                    for (String error : metadata_import.getErrors()) {
+                        report.append(error).append('\n');
+                    }
 
-                            // perform operations on PDF file contents
-                            if (write_pdf_docinfo_chk.isSelected()) {
+                }
 
-                                if (erase_pdf_docinfo_chk.isSelected()) {
+                public void update() {
 
-                                    // get user confirmation
-                                    if (!getUserConfirmation()) {
-                                        cancelled = true;
-                                        return;
-                                    }
+                    // close progress dialog and unblock main window
+                    progress.dispose();
+                    frame.unblock();
 
-                                    // open PDF file
-                                    PDDocument document = null;
-                                    try {
-                                        document = PDDocument.load(pdf_file);
-                                    }
-                                    catch (IOException e) {
-                                        e.printStackTrace();
-                                        erred = true;
-                                        JOptionPane.showMessageDialog(frame,
-                                                                      "Could not open PDF file '" + pdf_file.getPath() +
-                                                                      "': an I/O exception occurred.",
-                                                                      title, JOptionPane.ERROR_MESSAGE);
-                                        return;
-                                    }
+                    // make changes to fields undoable
+                    endFieldChanges(db_panel, edits, true);
 
-                                    // erase document information
-                                    document.setDocumentInformation(new PDDocumentInformation());
+                    // print to status bar
+                    if (!completed) {
+                        frame.output("An error occurred while importing PDF metadata");
+                    }
+                    else {
+                        frame.output(String.format("%s PDF metadata: filled %d fields of %d entries, " +
+                                                   "%d fields differ, %d errors",
+                                                   metadata_import.isCancelled() ? "Cancelled importing" : "Imported",
+                                                   metadata_import.getFilledCount(), metadata_import.getFilledEntryCount(),
+                                                   metadata_import.getDifferences().size(),
+                                                   metadata_import.getErrors().size()));
+                    }
 
-                                    // erase XML metadata
-                                    document.getDocumentCatalog().setMetadata(null);
+                    // show report of differences and errors
+                    if (report.length() > 0) {
+                        JTextArea report_txt = new JTextArea(report.toString(), 20, 60);
+                        report_txt.setEditable(false);
+                        JOptionPane.showMessageDialog(frame, new JScrollPane(report_txt), title, JOptionPane.WARNING_MESSAGE);
+                    }
 
-                                    // save and close PDF file
-                                    try {
-                                        document.save(pdf_file.getPath());
-                                        document.close();
-                                    }
-                                    catch (COSVisitorException e) {
-                                        e.printStackTrace();
-                                        erred = true;
-                                        JOptionPane.showMessageDialog(frame,
-                                                                      "Could not save PDF file '" + pdf_file.getPath() +
-                                                                      "': an exception occurred.",
-                                                                      title, JOptionPane.ERROR_MESSAGE);
-                                        return;
-                                    }
-                                    catch (IOException e) {
-                                        e.printStackTrace();
-                                        erred = true;
-                                        JOptionPane.showMessageDialog(frame,
-                                                                      "Could not save/close PDF file '" + pdf_file.getPath() +
-                                                                      "': an I/O exception occurred.",
-                                                                      title, JOptionPane.ERROR_MESSAGE);
-                                        return;
-                                    }
+                }
 
-                                }
+            };
 
-                                // write XMP / PDF document catalog metadata
-                                try {
-                                    XMPUtil.writeXMP(pdf_file, entry, db);
-                                }
-                                catch (IOException e) {
-                                    e.printStackTrace();
-                                    erred = true;
-                                    JOptionPane.showMessageDialog(frame,
-                                                                  "Could not write XMP to PDF file '" + pdf_file.getPath() +
-                                                                  "': an I/O exception occurred.",
-                                                                  title, JOptionPane.ERROR_MESSAGE);
-                                    return;
-                                }
-                                catch (TransformerException e) {
-                                    e.printStackTrace();
-                                    erred = true;
-                                    JOptionPane.showMessageDialog(frame,
-                                                                  "Could not write XMP to PDF file '" + pdf_file.getPath() +
-                                                                  "': an exception occurred.",
-                                                                  title, JOptionPane.ERROR_MESSAGE);
-                                    return;
+        // run import thread
+        runWorker(imports, progress);
+
+    }
+
+    private void findDuplicates() {
+
+        // get Bibtex database associated with the current tab
+        final BasePanel db_panel = frame.basePanel();
+        final BibtexDatabase db = db_panel.database();
+
+        // get Bibtex database file for current tab
+        final File db_file = db_panel.getFile();
+        if (db_file == null || db_file.getParentFile() == null) {
+            JOptionPane.showMessageDialog(frame,
+                                          "Bibtex database must be saved before finding duplicate PDF files.",
+                                          title, JOptionPane.INFORMATION_MESSAGE);
+            return;
+        }
+
+        // get array of directories that PDF files could possibly be in, and resolve PDF file links
+        // with the live index of the database if it is up to date
+        final List<File> db_dirs = PDFTaskEngine.fileDirectories(db_panel.metaData(), db_file);
+        PDFLinkHealth pdf_link_health = pdf_link_healths.get(db);
+        final PDFLinkResolver resolver = pdf_link_health != null && pdf_link_health.getDirectories().equals(db_dirs) ?
+            pdf_link_health.getResolver() : new PDFLinkResolver(db_dirs);
+
+        // search all Bibtex entries
+        final List<BibtexEntry> db_entries = new ArrayList<BibtexEntry>(db.getEntries());
+
+        // create progress dialog, which also allows the user to cancel the search
+        final PDFTaskProgressDialog progress = new PDFTaskProgressDialog(frame, title, PDFDuplicates.countLinks(db_entries));
+
+        // listener for progress, and for changes to links, which are not undoable since the PDF files
+        // they linked to are removed
+        final NamedCompound edits = new NamedCompound("Collapse Duplicate PDFs");
+        final PDFDuplicates.Listener listener = new PDFDuplicates.Listener() {
+                public void progress(int done, String status) {
+                    progress.setProgress(done, status);
+                }
+                public boolean isCancelled() {
+                    return progress.isCancelled();
+                }
+                public void setFields(List<PDFFieldChange> changes) {
+                    applyFieldChanges(edits, changes);
+                }
+            };
+
+        // find duplicates encapsulated in a worker-thread class
+        final AbstractWorker duplicates = new AbstractWorker()
+            {
+
+                PDFDuplicates dups = null;
+                List<PDFDuplicates.Group> groups = null;
+                int removed_count = -1;
+
+                public void init() {
+
+                    // block main window
+                    frame.block();
+
+                }
+
+                public void run() {
+
+                    // load processing index, which caches content hashes of PDF files
+                    PDFTaskIndex index = null;
+                    try {
+                        index = PDFTaskIndex.load(db_file);
+                    }
+                    catch (IOException e) {
+                        e.printStackTrace();
+                    }
+
+                    // find duplicate PDF files
+                    dups = new PDFDuplicates(db_dirs, resolver, index, PDFDuplicates.DEFAULT_THREADS);
+                    groups = dups.find(db_entries, listener);
+
+                    // save processing index
+                    if (index != null) {
+                        try {
+                            index.save();
+                        }
+                        catch (IOException e) {
+                            e.printStackTrace();
+                        }
+                    }
+                    if (dups.isCancelled() || groups.isEmpty()) {
+                        return;
+                    }
+
+                    // build report of duplicate PDF files
+                    final StringBuilder report = new StringBuilder();
+                    int identical_count = 0;
+                    for (PDFDuplicates.Group group : groups) {
+                        if (group.files.size() > 1) {
+                            ++identical_count;
+                        }
+                        report.append(String.format("%d identical PDF files (%d bytes):\n", group.files.size(), group.size));
+                        for (File pdf_file : group.files) {
+                            report.append(pdf_file == group.files.get(0) ? "  * " : "    ").append(pdf_file.getPath()).append('\n');
+                            for (PDFDuplicates.LinkRef ref : group.links) {
+                                if (ref.file.equals(pdf_file)) {
+                                    String key = ref.entry.getCiteKey();
+                                    report.append("      linked from ").append(key != null ? key : ref.entry.getId()).append('\n');
                                 }
+                            }
+                        }
+                        report.append('\n');
+                    }
+                    if (identical_count == 0) {
+                        report.append("No PDF files have identical contents; the PDF files above are linked from more than one entry.\n");
+                    }
+                    else {
+                        report.append(String.format("Collapse the %d groups of identical PDF files to the canonical PDF files (*)?\n" +
+                                                    "Links to the other PDF files will be changed, and the other PDF files removed.\n" +
+                                                    "This cannot be undone.\n",
+                                                    identical_count));
+                    }
 
+                    // ask user whether to collapse identical PDF files
+                    final int[] choice = { JOptionPane.CLOSED_OPTION };
+                    final Object[] options = identical_count == 0 ? new Object[] { "OK" } : new Object[] { "Collapse", "Cancel" };
+                    invokeAndWait(new Runnable() {
+                            public void run() {
+                                JTextArea report_txt = new JTextArea(report.toString(), 20, 60);
+                                report_txt.setEditable(false);
+                                choice[0] = JOptionPane.showOptionDialog(frame, new JScrollPane(report_txt), title,
+                                                                         JOptionPane.DEFAULT_OPTION, JOptionPane.WARNING_MESSAGE,
+                                                                         null, options, options[options.length - 1]);
                             }
+                        });
+                    if (identical_count == 0 || choice[0] != 0) {
+                        return;
+                    }
 
-                        }
+                    // collapse identical PDF files
+                    removed_count = dups.collapse(groups, listener);
 
+                    // show errors
+                    if (!dups.getErrors().isEmpty()) {
+                        StringBuilder errors = new StringBuilder();
+                        for (String error : dups.getErrors()) {
+                            errors.append(error).append('\n');
+                        }
+                        showMessageDialog(errors.toString(), title, JOptionPane.ERROR_MESSAGE);
                     }
 
                 }
 
                 public void update() {
 
-                    // unblock main window
+                    // close progress dialog and unblock main window
+                    progress.dispose();
                     frame.unblock();
 
+                    // mark changes to links as not undoable
+                    endFieldChanges(db_panel, edits, false);
+
                     // print to status bar
-                    if (erred) {
-                        frame.output("An error occurred during PDF Tasks");
+                    if (groups == null) {
+                        frame.output("An error occurred while finding duplicate PDF files");
+                    }
+                    else if (dups.isCancelled()) {
+                        frame.output("Cancelled finding duplicate PDF files");
                     }
-                    else if (cancelled) {
-                        frame.output("Cancelled PDF Tasks");
+                    else if (groups.isEmpty()) {
+                        frame.output(String.format("Compared %d PDF files: no duplicates found", dups.getHashedCount()));
+                    }
+                    else if (removed_count < 0) {
+                        frame.output(String.format("Compared %d PDF files: found %d groups of duplicates",
+                                                   dups.getHashedCount(), groups.size()));
                     }
                     else {
-                        frame.output("Completed PDF Tasks");
+                        frame.output(String.format("Compared %d PDF files: removed %d duplicate PDF files, %d errors",
+                                                   dups.getHashedCount(), removed_count, dups.getErrors().size()));
                     }
 
                 }
 
             };
 
-        // run task thread (based on code in BasePanel.runCommand())
+        // run find duplicates thread
+        runWorker(duplicates, progress);
+
+    }
+
+    // run 'worker' on a background thread, showing 'progress' (based on code in BasePanel.runCommand())
+    // - the worker is run on a background thread so that the event thread stays responsive;
+    //   the callback is run back on the event thread once the worker has finished
+    private void runWorker(final AbstractWorker worker, PDFTaskProgressDialog progress) {
         try {
-            tasks.init();
-            tasks.getWorker().run();
-            tasks.getCallBack().update();
+            worker.init();
         }
         catch (Throwable e) {
             frame.unblock();
             e.printStackTrace();
+            return;
         }
-
+        progress.setVisible(true);
+        Thread thread = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        worker.run();
+                    }
+                    catch (Throwable e) {
+                        e.printStackTrace();
+                    }
+                    finally {
+                        SwingUtilities.invokeLater(new Runnable() {
+                                public void run() {
+                                    worker.update();
+                                }
+                            });
+                    }
+                }
+            }, "PDFTasks");
+        thread.start();
     }
 
-    // return an absolute file for 'path' relative to 'base'
-    private File absoluteFile(String path, File base) {
-        File file = new File(path);
-        if (!file.isAbsolute()) {
-            file = new File(base, path);
+    // run 'runnable' on the event thread, and wait for it to complete
+    private static void invokeAndWait(Runnable runnable) {
+        if (SwingUtilities.isEventDispatchThread()) {
+            runnable.run();
+            return;
         }
         try {
-            return file.getCanonicalFile();
+            SwingUtilities.invokeAndWait(runnable);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
-        catch (IOException e) {
-            return null;
+        catch (InvocationTargetException e) {
+            throw new RuntimeException(e.getCause());
         }
     }
 
-    // determine the path of 'file' relative to 'base'
-    private String relativePath(File file, File base) {
-
-        // canonicalise input files, if possible
-        try {
-            if (file != null) {
-                file = file.getCanonicalFile();
-            }
-            if (base != null) {
-                base = base.getCanonicalFile();
-            }
-        }
-        catch (IOException e) {
-            return null;
-        }
-        if (file == null) {
-            return null;
-        }
+    // apply 'changes' to Bibtex entries on the event thread, from any thread, adding an undoable
+    // edit to 'compound' for each field which changes
+    private static void applyFieldChanges(final NamedCompound compound, final List<PDFFieldChange> changes) {
+        invokeAndWait(new Runnable() {
+                public void run() {
+                    for (PDFFieldChange change : changes) {
+                        if (change.isChange()) {
+                            compound.addEdit(new UndoableFieldChange(change.entry, change.field,
+                                                                     change.entry.getField(change.field), change.value));
+                            change.entry.setField(change.field, change.value);
+                        }
+                    }
+                }
+            });
+    }
 
-        // split 'file' and 'base' into path components
-        LinkedList<String> descend_path = new LinkedList<String>();
-        while (base != null) {
-            String name = base.getName();
-            if (!name.isEmpty()) {
-                descend_path.addFirst(name);
+    // end 'compound' and, if any fields were changed, mark the database as changed; if 'undoable', add
+    // 'compound' to the undo manager of 'db_panel' as a single edit, otherwise mark the change as not
+    // undoable, e.g. if undoing it would leave links to PDF files which were removed; must be called
+    // on the event thread
+    private static void endFieldChanges(BasePanel db_panel, NamedCompound compound, boolean undoable) {
+        compound.end();
+        if (compound.hasEdits()) {
+            if (undoable) {
+                db_panel.undoManager.addEdit(compound);
+                db_panel.markBaseChanged();
             }
-            base = base.getParentFile();
-        }
-        LinkedList<String> ascend_path = new LinkedList<String>();
-        while (file != null) {
-            String name = file.getName();
-            if (!name.isEmpty()) {
-                ascend_path.addFirst(name);
+            else {
+                db_panel.markNonUndoableBaseChanged();
             }
-            file = file.getParentFile();
-        }
-
-        // remove common path components
-        boolean common = false;
-        while (!descend_path.isEmpty() && !ascend_path.isEmpty() &&
-               descend_path.getFirst().equals(ascend_path.getFirst())) {
-            descend_path.removeFirst();
-            ascend_path.removeFirst();
-            common = true;
-        }
-
-        // cannot make relative path if there are no common path components
-        if (!common) {
-            return null;
         }
+    }
 
-        // build relative path string
-        StringBuffer rel_path = new StringBuffer();
-        for (int i = 0; i < descend_path.size(); ++i) {
-            if (rel_path.length() > 0) {
-                rel_path.append(File.separator);
-            }
-            rel_path.append("..");
-        }
-        for (String name : ascend_path) {
-            if (rel_path.length() > 0) {
-                rel_path.append(File.separator);
-            }
-            rel_path.append(name);
-        }
+    // print 'message' to the status bar, from any thread
+    private void output(final String message) {
+        SwingUtilities.invokeLater(new Runnable() {
+                public void run() {
+                    frame.output(message);
+                }
+            });
+    }
 
-        return rel_path.toString();
+    // show a message dialog on the event thread, from any thread
+    private void showMessageDialog(final Object message, final String dlg_title, final int type) {
+        invokeAndWait(new Runnable() {
+                public void run() {
+                    JOptionPane.showMessageDialog(frame, message, dlg_title, type);
+                }
+            });
+    }
 
+    // show an option dialog on the event thread, from any thread, and return the user's choice
+    private int showOptionDialog(final Object message, final String dlg_title, final Object[] options) {
+        final int[] choice = { JOptionPane.CLOSED_OPTION };
+        invokeAndWait(new Runnable() {
+                public void run() {
+                    choice[0] = JOptionPane.showOptionDialog(frame, message, dlg_title, JOptionPane.DEFAULT_OPTION,
+                                                             JOptionPane.WARNING_MESSAGE, null, options, options[0]);
+                }
+            });
+        return choice[0];
     }
 
 }
@@ -0,0 +1,260 @@
+//
+// JabRef PDFTasks Plugin
+// Copyright (C) 2011--2015  Karl Wette
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+//
+
+package net.sf.jabref.plugins.pdftasks;
+
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+// PDFTasks statistics class
+// - counts operations, and records their latencies in histograms with power-of-two buckets, for each
+//   phase of the PDF tasks, and counts bytes read and written, PDF files skipped, and errors
+// - may be registered as a JMX MBean while the PDF tasks are running
+// - may be used from multiple threads
+public final class PDFTaskStats
+    implements PDFTaskStatsMBean
+{
+
+    // phases of the PDF tasks
+    enum Phase {
+        RESOLVE("link resolution"),
+        CANONICALIZE("canonicalisation"),
+        MOVE("move/rename"),
+        LOAD("PDF load"),
+        ERASE("erase"),
+        XMP("XMP write"),
+        SAVE("PDF save");
+        final String description;
+        Phase(String description) {
+            this.description = description;
+        }
+    }
+
+    // latency histogram bucket 'i' counts latencies less than 2^i microseconds
+    private static final int BUCKETS = 40;
+
+    private final long start_nanos = System.nanoTime();
+    private final AtomicLongArray count = new AtomicLongArray(Phase.values().length);
+    private final AtomicLongArray total_nanos = new AtomicLongArray(Phase.values().length);
+    private final AtomicLongArray max_nanos = new AtomicLongArray(Phase.values().length);
+    private final AtomicLongArray histogram = new AtomicLongArray(Phase.values().length * BUCKETS);
+    private final AtomicLong bytes_read = new AtomicLong();
+    private final AtomicLong bytes_written = new AtomicLong();
+    private final AtomicLong files_skipped = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+
+    private ObjectName name = null;
+
+    // return the start time of an operation, to be passed to stop()
+    public long start() {
+        return System.nanoTime();
+    }
+
+    // record an operation of phase 'phase' which started at 'start'
+    public void stop(Phase phase, long start) {
+        long nanos = System.nanoTime() - start;
+        int p = phase.ordinal();
+        count.incrementAndGet(p);
+        total_nanos.addAndGet(p, nanos);
+        long max;
+        while (nanos > (max = max_nanos.get(p)) && !max_nanos.compareAndSet(p, max, nanos)) {
+        }
+        int bucket = 64 - Long.numberOfLeadingZeros(nanos / 1000);
+        histogram.incrementAndGet(p * BUCKETS + Math.min(bucket, BUCKETS - 1));
+    }
+
+    public void addBytesRead(long bytes) {
+        bytes_read.addAndGet(bytes);
+    }
+
+    public void addBytesWritten(long bytes) {
+        bytes_written.addAndGet(bytes);
+    }
+
+    public void addFileSkipped() {
+        files_skipped.incrementAndGet();
+    }
+
+    public void addError() {
+        errors.incrementAndGet();
+    }
+
+    public double getElapsedSeconds() {
+        return (System.nanoTime() - start_nanos) / 1e9;
+    }
+
+    public long getBytesRead() {
+        return bytes_read.get();
+    }
+
+    public long getBytesWritten() {
+        return bytes_written.get();
+    }
+
+    public long getFilesSkipped() {
+        return files_skipped.get();
+    }
+
+    public long getErrors() {
+        return errors.get();
+    }
+
+    public String[] getPhaseSummaries() {
+        Phase[] phases = Phase.values();
+        String[] summaries = new String[phases.length];
+        for (Phase phase : phases) {
+            summaries[phase.ordinal()] = summary(phase);
+        }
+        return summaries;
+    }
+
+    public long getCount(String phase) {
+        return getCount(Phase.valueOf(phase.toUpperCase()));
+    }
+
+    public double getTotalSeconds(String phase) {
+        return getTotalSeconds(Phase.valueOf(phase.toUpperCase()));
+    }
+
+    public double getPercentileMillis(String phase, double p) {
+        return getPercentileMillis(Phase.valueOf(phase.toUpperCase()), p);
+    }
+
+    public long getCount(Phase phase) {
+        return count.get(phase.ordinal());
+    }
+
+    public double getTotalSeconds(Phase phase) {
+        return total_nanos.get(phase.ordinal()) / 1e9;
+    }
+
+    // return an upper bound on latency percentile 'p' (between 0 and 100) of phase 'phase', in milliseconds
+    public double getPercentileMillis(Phase phase, double p) {
+        int ph = phase.ordinal();
+        long n = count.get(ph);
+        if (n == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(n * p / 100.0);
+        long cumulative = 0;
+        for (int i = 0; i < BUCKETS; ++i) {
+            cumulative += histogram.get(ph * BUCKETS + i);
+            if (cumulative >= rank) {
+                return Math.min((1L << i) / 1000.0, max_nanos.get(ph) / 1e6);
+            }
+        }
+        return max_nanos.get(ph) / 1e6;
+    }
+
+    // return a one-line summary of phase 'phase'
+    public String summary(Phase phase) {
+        int p = phase.ordinal();
+        long n = count.get(p);
+        return String.format("%-18s count=%d total=%.3fs mean=%.3fms p50<=%.3fms p90<=%.3fms p99<=%.3fms max=%.3fms",
+                             phase.description + ":", n, total_nanos.get(p) / 1e9,
+                             n > 0 ? total_nanos.get(p) / 1e6 / n : 0.0,
+                             getPercentileMillis(phase, 50), getPercentileMillis(phase, 90),
+                             getPercentileMillis(phase, 99), max_nanos.get(p) / 1e6);
+    }
+
+    // return a multi-line summary of all phases and counters
+    public String summary() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("elapsed: %.3fs, read: %.1f MB, written: %.1f MB, skipped: %d, errors: %d%n",
+                                getElapsedSeconds(), bytes_read.get() / 1048576.0, bytes_written.get() / 1048576.0,
+                                files_skipped.get(), errors.get()));
+        for (String summary : getPhaseSummaries()) {
+            sb.append(summary).append(String.format("%n"));
+        }
+        return sb.toString();
+    }
+
+    // return a short summary of the total time of each phase which occurred, for the status bar
+    public String shortSummary() {
+        StringBuilder sb = new StringBuilder();
+        for (Phase phase : Phase.values()) {
+            if (count.get(phase.ordinal()) > 0) {
+                sb.append(sb.length() > 0 ? ", " : "");
+                sb.append(String.format("%s %.1fs", phase.description, getTotalSeconds(phase)));
+            }
+        }
+        return sb.toString();
+    }
+
+    // register with the platform MBean server, under a name including 'db_name'
+    public void register(String db_name) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName("net.sf.jabref.plugins.pdftasks:type=PDFTaskStats,database=" +
+                                             ObjectName.quote(db_name));
+            if (!server.isRegistered(name)) {
+                server.registerMBean(this, name);
+                this.name = name;
+            }
+        }
+        catch (JMException e) {
+            e.printStackTrace();
+        }
+    }
+
+    // unregister from the platform MBean server, if registered
+    public void unregister() {
+        if (name != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+            }
+            catch (JMException e) {
+                e.printStackTrace();
+            }
+            name = null;
+        }
+    }
+
+    // append the summary, headed by 'header' and the current time, to 'log_file'
+    public void appendLog(File log_file, String header) throws IOException {
+        Writer writer = new OutputStreamWriter(new FileOutputStream(log_file, true), StandardCharsets.UTF_8);
+        try {
+            writer.write(String.format("# %s: %s%n", new SimpleDateFormat("yyyy-MM-dd HH:mm:ss").format(new Date()), header));
+            writer.write(summary());
+            writer.write(String.format("%n"));
+        }
+        finally {
+            writer.close();
+        }
+    }
+
+}
+
+// Local Variables:
+// mode: java
+// c-basic-offset: 4
+// tab-width: 4
+// End:
@@ -0,0 +1,51 @@
+//
+// JabRef PDFTasks Plugin
+// Copyright (C) 2011--2015  Karl Wette
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+//
+
+package net.sf.jabref.plugins.pdftasks;
+
+
+// PDFTasks statistics management interface
+// - counters and latency histograms of a run of the PDF tasks, exposed through JMX while the run is in progress
+public interface PDFTaskStatsMBean {
+
+    // seconds since the run started
+    double getElapsedSeconds();
+
+    // bytes of PDF files read and written
+    long getBytesRead();
+    long getBytesWritten();
+
+    // number of PDF files skipped, and number of errors
+    long getFilesSkipped();
+    long getErrors();
+
+    // one-line summary of each phase: count, total time, and latency percentiles
+    String[] getPhaseSummaries();
+
+    // number of operations, total time in seconds, and latency percentile 'p' in milliseconds, of phase 'phase'
+    long getCount(String phase);
+    double getTotalSeconds(String phase);
+    double getPercentileMillis(String phase, double p);
+
+}
+
+// Local Variables:
+// mode: java
+// c-basic-offset: 4
+// tab-width: 4
+// End:
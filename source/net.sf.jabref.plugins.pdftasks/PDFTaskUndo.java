@@ -0,0 +1,155 @@
+//
+// JabRef PDFTasks Plugin
+// Copyright (C) 2011--2015  Karl Wette
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+//
+
+package net.sf.jabref.plugins.pdftasks;
+
+
+import net.sf.jabref.BasePanel;
+import net.sf.jabref.undo.NamedCompound;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import javax.swing.JOptionPane;
+import javax.swing.undo.CannotRedoException;
+import javax.swing.undo.CannotUndoException;
+
+// PDFTasks undoable edit class
+// - an undoable edit of the changes to file links made by the PDF tasks, which also moves the PDF files
+//   whose file links were changed: back to where they were on undo, and forward again on redo
+// - PDF files are moved before file links are changed, and each move is recorded in the journal, as
+//   when running the PDF tasks, so that a crash during or after an undo or redo can be recovered from
+//   on the next run, whether or not the Bibtex database was saved
+// - if a PDF file cannot be moved, the PDF files already moved are moved back, the file links are left
+//   unchanged, and the change to the Bibtex database is marked as not undoable
+// - document information written to PDF files is not removed on undo
+final class PDFTaskUndo
+    extends NamedCompound
+{
+
+    private final String name;
+    private final BasePanel db_panel;
+    private final File db_file;
+    private List<PDFTaskJournal.Move> moves = Collections.emptyList();
+
+    public PDFTaskUndo(String name, BasePanel db_panel, File db_file) {
+        super(name);
+        this.name = name;
+        this.db_panel = db_panel;
+        this.db_file = db_file;
+    }
+
+    // set the moves of PDF files, in the order they were made, whose file links were changed by this edit
+    public void setMoves(List<PDFTaskJournal.Move> moves) {
+        this.moves = new ArrayList<PDFTaskJournal.Move>(moves);
+    }
+
+    public void undo() {
+        if (!moveFiles(reverseMoves(), moves)) {
+            throw new CannotUndoException();
+        }
+        super.undo();
+    }
+
+    public void redo() {
+        if (!moveFiles(moves, reverseMoves())) {
+            throw new CannotRedoException();
+        }
+        super.redo();
+    }
+
+    // the moves which undo the moves of PDF files, in the order they must be made
+    private List<PDFTaskJournal.Move> reverseMoves() {
+        List<PDFTaskJournal.Move> reverse_moves = new ArrayList<PDFTaskJournal.Move>(moves.size());
+        for (PDFTaskJournal.Move move : moves) {
+            reverse_moves.add(move.reverse());
+        }
+        Collections.reverse(reverse_moves);
+        return reverse_moves;
+    }
+
+    // make the PDF file moves 'todo', recording them in the journal; if a PDF file cannot be moved,
+    // move back those already moved, record the moves 'done' which were made before, report the
+    // error, and mark the change as not undoable; returns whether all PDF files were moved
+    // - must be called on the event thread
+    private boolean moveFiles(List<PDFTaskJournal.Move> todo, List<PDFTaskJournal.Move> done) {
+        if (todo.isEmpty()) {
+            return true;
+        }
+        List<String> errors = new ArrayList<String>();
+        PDFTaskJournal journal = null;
+        PDFTaskJournal.Move current = null;
+        try {
+            journal = PDFTaskJournal.create(db_file, null);
+            for (PDFTaskJournal.Move move : todo) {
+                current = move;
+                int id = journal.logMove(move.key, move.file_index, move.source, move.target,
+                                         move.old_link, move.new_link);
+                PDFFileMover.move(move.source, move.target, false);
+                journal.logDone(id);
+            }
+            current = null;
+            journal.end();
+            return true;
+        }
+        catch (IOException e) {
+            e.printStackTrace();
+            if (current != null) {
+                errors.add("Could not move PDF file '" + current.source.getPath() + "' to '" +
+                           current.target.getPath() + "': " + e + ".");
+            }
+            else {
+                errors.add("Could not record moves of PDF files in journal file '" +
+                           PDFTaskJournal.journalFile(db_file).getPath() + "': " + e + ".");
+            }
+        }
+
+        // move back PDF files already moved, and record that the PDF files are where they were before
+        if (journal != null) {
+            journal.rollback(errors);
+        }
+        try {
+            PDFTaskJournal.record(db_file, done);
+        }
+        catch (IOException e) {
+            e.printStackTrace();
+            errors.add("Could not record moves of PDF files in journal file '" +
+                       PDFTaskJournal.journalFile(db_file).getPath() + "': " + e + ".");
+        }
+
+        // report errors, and mark the change as not undoable
+        StringBuilder errmsg = new StringBuilder("Could not move PDF files for " + name +
+                                                 ", so file links were not changed, and this cannot be undone.\n");
+        for (String error : errors) {
+            errmsg.append(error).append('\n');
+        }
+        JOptionPane.showMessageDialog(db_panel, errmsg.toString(), "PDF Tasks", JOptionPane.ERROR_MESSAGE);
+        die();
+        db_panel.markNonUndoableBaseChanged();
+        return false;
+    }
+
+}
+
+// Local Variables:
+// mode: java
+// c-basic-offset: 4
+// tab-width: 4
+// End:
@@ -0,0 +1,102 @@
+//
+// JabRef PDFTasks Plugin
+// Copyright (C) 2011--2015  Karl Wette
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+//
+
+package net.sf.jabref.plugins.pdftasks;
+
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+
+// PDFTasks file field tests
+// - file fields are parsed as by FileListTableModel.setContent(), and serialised as by
+//   FileListTableModel.getStringRepresentation(), so a field written by JabRef must round trip exactly
+public class PDFFileFieldTest {
+
+    private static void assertLink(String description, String link, String type, PDFFileField.Link l) {
+        assertEquals(description, l.description);
+        assertEquals(link, l.link);
+        assertEquals(type, l.type);
+    }
+
+    private static void assertRoundTrip(String files_str) {
+        assertEquals(files_str, PDFFileField.serialize(PDFFileField.parse(files_str)));
+    }
+
+    @Test
+    public void parsesNothing() {
+        assertTrue(PDFFileField.parse(null).isEmpty());
+        assertTrue(PDFFileField.parse("").isEmpty());
+        assertEquals("", PDFFileField.serialize(PDFFileField.parse(null)));
+    }
+
+    @Test
+    public void parsesLinks() {
+        List<PDFFileField.Link> links = PDFFileField.parse("A paper:papers/a.pdf:PDF;:b.pdf:PDF");
+        assertEquals(2, links.size());
+        assertLink("A paper", "papers/a.pdf", "PDF", links.get(0));
+        assertLink("", "b.pdf", "PDF", links.get(1));
+        assertRoundTrip("A paper:papers/a.pdf:PDF;:b.pdf:PDF");
+    }
+
+    @Test
+    public void parsesMissingAndExtraFields() {
+        List<PDFFileField.Link> links = PDFFileField.parse("only");
+        assertEquals(1, links.size());
+        assertLink("only", "", "", links.get(0));
+        links = PDFFileField.parse(":a.pdf");
+        assertLink("", "a.pdf", "", links.get(0));
+        links = PDFFileField.parse(":a.pdf:PDF:extra:fields");
+        assertEquals(1, links.size());
+        assertLink("", "a.pdf", "PDF", links.get(0));
+        assertEquals(":a.pdf:PDF", PDFFileField.serialize(links));
+    }
+
+    @Test
+    public void parsesEscapedSeparators() {
+        List<PDFFileField.Link> links = PDFFileField.parse("a\\:b\\;c:C\\:\\\\papers\\\\a.pdf:PDF");
+        assertEquals(1, links.size());
+        assertLink("a:b;c", "C:\\papers\\a.pdf", "PDF", links.get(0));
+        assertRoundTrip("a\\:b\\;c:C\\:\\\\papers\\\\a.pdf:PDF");
+    }
+
+    @Test
+    public void parsesXMLCharacterReferences() {
+        List<PDFFileField.Link> links = PDFFileField.parse("one&#44; two:a&#59;b.pdf:PDF;:c & d.pdf:PDF");
+        assertEquals(2, links.size());
+        assertLink("one&#44; two", "a&#59;b.pdf", "PDF", links.get(0));
+        assertLink("", "c & d.pdf", "PDF", links.get(1));
+    }
+
+    @Test
+    public void serializesChangedLinks() {
+        List<PDFFileField.Link> links = PDFFileField.parse(":a.pdf:PDF;:b.pdf:PDF");
+        links.get(1).link = "moved/b;1.pdf";
+        assertEquals(":a.pdf:PDF;:moved/b\\;1.pdf:PDF", PDFFileField.serialize(links));
+    }
+
+}
+
+// Local Variables:
+// mode: java
+// c-basic-offset: 4
+// tab-width: 4
+// End:
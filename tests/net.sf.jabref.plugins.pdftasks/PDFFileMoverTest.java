@@ -0,0 +1,161 @@
+//
+// JabRef PDFTasks Plugin
+// Copyright (C) 2011--2015  Karl Wette
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+//
+
+package net.sf.jabref.plugins.pdftasks;
+
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.util.Random;
+
+// PDFTasks PDF file mover tests
+// - the copy-and-verify fallback, used between filesystems, is exercised through PDFFileMover.copy(),
+//   since the temporary directory is on a single filesystem
+public class PDFFileMoverTest {
+
+    private File dir;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = PDFTestFiles.tempDir();
+    }
+
+    @After
+    public void tearDown() {
+        PDFTestFiles.delete(dir);
+    }
+
+    private static byte[] contents(int size, long seed) {
+        byte[] bytes = new byte[size];
+        new Random(seed).nextBytes(bytes);
+        return bytes;
+    }
+
+    private static byte[] read(File file) throws IOException {
+        return Files.readAllBytes(file.toPath());
+    }
+
+    @Test
+    public void renamesOnSameFilesystem() throws IOException {
+        byte[] bytes = contents(1000, 1);
+        File source = PDFTestFiles.write(new File(dir, "a.pdf"), bytes);
+        File target = new File(dir, "sub/dir/b.pdf");
+        PDFFileMover.Result r = PDFFileMover.move(source, target, false);
+        assertFalse(r.copied);
+        assertEquals(bytes.length, r.bytes);
+        assertFalse(source.exists());
+        assertArrayEquals(bytes, read(target));
+    }
+
+    @Test
+    public void copiesAndVerifies() throws IOException {
+        byte[] bytes = contents(3 << 20, 2);
+        File source = PDFTestFiles.write(new File(dir, "a.pdf"), bytes);
+        assertTrue(source.setLastModified(1000000000000L));
+        File target = new File(dir, "sub/b.pdf");
+        PDFFileMover.Result r = PDFFileMover.copy(source, target, false);
+        assertTrue(r.copied);
+        assertEquals(bytes.length, r.bytes);
+        assertFalse(source.exists());
+        assertArrayEquals(bytes, read(target));
+        assertEquals(1000000000000L, target.lastModified());
+        assertFalse(PDFFileMover.temporaryFile(target).exists());
+        assertEquals(1, target.getParentFile().list().length);
+    }
+
+    @Test
+    public void copiesEmptyFile() throws IOException {
+        File source = PDFTestFiles.write(new File(dir, "a.pdf"), new byte[0]);
+        File target = new File(dir, "b.pdf");
+        PDFFileMover.Result r = PDFFileMover.copy(source, target, false);
+        assertTrue(r.copied);
+        assertEquals(0, target.length());
+        assertFalse(source.exists());
+    }
+
+    @Test
+    public void keepsExistingTarget() throws IOException {
+        byte[] bytes = contents(1000, 3);
+        byte[] existing = contents(500, 4);
+        File source = PDFTestFiles.write(new File(dir, "a.pdf"), bytes);
+        File target = PDFTestFiles.write(new File(dir, "b.pdf"), existing);
+        for (boolean copy : new boolean[] { false, true }) {
+            try {
+                if (copy) {
+                    PDFFileMover.copy(source, target, false);
+                }
+                else {
+                    PDFFileMover.move(source, target, false);
+                }
+                fail("target was replaced");
+            }
+            catch (FileAlreadyExistsException e) {
+                // expected
+            }
+            assertArrayEquals(bytes, read(source));
+            assertArrayEquals(existing, read(target));
+            assertFalse(PDFFileMover.temporaryFile(target).exists());
+        }
+    }
+
+    @Test
+    public void replacesExistingTarget() throws IOException {
+        byte[] bytes = contents(1000, 5);
+        File source = PDFTestFiles.write(new File(dir, "a.pdf"), bytes);
+        File target = PDFTestFiles.write(new File(dir, "b.pdf"), contents(500, 6));
+        PDFFileMover.Result r = PDFFileMover.copy(source, target, true);
+        assertTrue(r.copied);
+        assertFalse(source.exists());
+        assertArrayEquals(bytes, read(target));
+        assertFalse(PDFFileMover.temporaryFile(target).exists());
+    }
+
+    @Test
+    public void failsIfSourceDoesNotExist() throws IOException {
+        File source = new File(dir, "missing.pdf");
+        File target = new File(dir, "b.pdf");
+        try {
+            PDFFileMover.copy(source, target, false);
+            fail("missing source was copied");
+        }
+        catch (IOException e) {
+            // expected
+        }
+        assertFalse(target.exists());
+        assertFalse(PDFFileMover.temporaryFile(target).exists());
+    }
+
+}
+
+// Local Variables:
+// mode: java
+// c-basic-offset: 4
+// tab-width: 4
+// End:
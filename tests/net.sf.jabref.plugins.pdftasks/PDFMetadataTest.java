@@ -0,0 +1,284 @@
+//
+// JabRef PDFTasks Plugin
+// Copyright (C) 2011--2015  Karl Wette
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+//
+
+package net.sf.jabref.plugins.pdftasks;
+
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.Deflater;
+
+// PDFTasks PDF metadata reader tests
+// - PDF files are built byte by byte, so that the cross-reference tables, cross-reference streams,
+//   hybrid-reference sections, and incremental updates which are read are exactly those under test
+public class PDFMetadataTest {
+
+    private static final String XMP = "<?xpacket begin=''?><x:xmpmeta xmlns:x='adobe:ns:meta/'/><?xpacket end='r'?>";
+
+    // builds a PDF file, recording the offset of each object
+    private static final class Builder {
+
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        // cross-reference entries: object number -> { type, field 2, field 3 }
+        final Map<Integer, long[]> entries = new TreeMap<Integer, long[]>();
+
+        Builder() {
+            write("%PDF-1.5\n");
+        }
+
+        int offset() {
+            return out.size();
+        }
+
+        void write(String s) {
+            write(s.getBytes(StandardCharsets.ISO_8859_1));
+        }
+
+        void write(byte[] b) {
+            out.write(b, 0, b.length);
+        }
+
+        // write object 'num' with contents 'body'
+        void object(int num, String body) {
+            entries.put(num, new long[] { 1, offset(), 0 });
+            write(num + " 0 obj\n" + body + "\nendobj\n");
+        }
+
+        // write stream object 'num' with dictionary entries 'dict' and data 'data'
+        void stream(int num, String dict, byte[] data) {
+            entries.put(num, new long[] { 1, offset(), 0 });
+            write(num + " 0 obj\n<< " + dict + " /Length " + data.length + " >>\nstream\n");
+            write(data);
+            write("\nendstream\nendobj\n");
+        }
+
+        // write object stream 'num' containing objects 'nums' with contents 'bodies'
+        void objectStream(int num, int[] nums, String[] bodies) {
+            StringBuilder header = new StringBuilder();
+            StringBuilder objects = new StringBuilder();
+            for (int i = 0; i < nums.length; ++i) {
+                header.append(nums[i]).append(' ').append(objects.length()).append(' ');
+                objects.append(bodies[i]).append('\n');
+                entries.put(nums[i], new long[] { 2, num, i });
+            }
+            stream(num, "/Type /ObjStm /N " + nums.length + " /First " + header.length(),
+                   (header.toString() + objects).getBytes(StandardCharsets.ISO_8859_1));
+        }
+
+        // write a cross-reference table of objects 0 to 'size' - 1 with trailer entries 'trailer'; objects
+        // not written as plain objects are marked free, as in hybrid-reference files; returns its offset
+        int table(int size, String trailer) {
+            int offset = offset();
+            StringBuilder sb = new StringBuilder("xref\n0 " + size + "\n");
+            for (int n = 0; n < size; ++n) {
+                long[] entry = entries.get(n);
+                if (entry != null && entry[0] == 1) {
+                    sb.append(String.format("%010d %05d n \n", entry[1], 0));
+                }
+                else {
+                    sb.append(String.format("%010d %05d f \n", 0, 65535));
+                }
+            }
+            sb.append("trailer\n<< /Size ").append(size).append(' ').append(trailer).append(" >>\n");
+            write(sb.toString());
+            return offset;
+        }
+
+        // write a compressed cross-reference stream 'num' of objects 0 to 'size' - 1 with
+        // dictionary entries 'trailer'; returns its offset
+        int xrefStream(int num, int size, String trailer) {
+            int offset = offset();
+            entries.put(num, new long[] { 1, offset, 0 });
+            ByteArrayOutputStream data = new ByteArrayOutputStream();
+            for (int n = 0; n < size; ++n) {
+                long[] entry = entries.get(n);
+                if (entry == null) {
+                    entry = new long[] { 0, 0, 65535 };
+                }
+                data.write((int) entry[0]);
+                for (int shift = 24; shift >= 0; shift -= 8) {
+                    data.write((int) (entry[1] >> shift));
+                }
+                data.write((int) (entry[2] >> 8));
+                data.write((int) entry[2]);
+            }
+            Deflater deflater = new Deflater();
+            deflater.setInput(data.toByteArray());
+            deflater.finish();
+            byte[] buf = new byte[data.size() + 64];
+            int len = deflater.deflate(buf);
+            deflater.end();
+            stream(num, "/Type /XRef /Size " + size + " /W [1 4 2] /Filter /FlateDecode " + trailer,
+                   Arrays.copyOf(buf, len));
+            return offset;
+        }
+
+        // end the PDF file with a pointer to the last cross-reference section at 'xref_offset'
+        byte[] finish(int xref_offset) {
+            write("startxref\n" + xref_offset + "\n%%EOF\n");
+            return out.toByteArray();
+        }
+
+    }
+
+    private File dir;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = PDFTestFiles.tempDir();
+    }
+
+    @After
+    public void tearDown() {
+        PDFTestFiles.delete(dir);
+    }
+
+    private PDFMetadata read(byte[] pdf) throws IOException {
+        return PDFMetadata.read(PDFTestFiles.write(new File(dir, "test.pdf"), pdf));
+    }
+
+    private static byte[] xmp() {
+        return XMP.getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void readsXRefTable() throws IOException {
+        Builder b = new Builder();
+        b.object(1, "<< /Type /Catalog /Metadata 3 0 R >>");
+        b.object(2, "<< /Title (A Title) /Author (An Author) >>");
+        b.stream(3, "/Type /Metadata /Subtype /XML", xmp());
+        PDFMetadata m = read(b.finish(b.table(4, "/Root 1 0 R /Info 2 0 R")));
+        assertFalse(m.encrypted);
+        assertEquals("A Title", m.info.get("Title"));
+        assertEquals("An Author", m.info.get("Author"));
+        assertArrayEquals(xmp(), m.xmp);
+    }
+
+    @Test
+    public void readsXRefStreamAndObjectStream() throws IOException {
+        Builder b = new Builder();
+        b.object(1, "<< /Type /Catalog /Metadata 3 0 R >>");
+        b.objectStream(4, new int[] { 2 }, new String[] { "<< /Title (Compressed) >>" });
+        b.stream(3, "/Type /Metadata /Subtype /XML", xmp());
+        PDFMetadata m = read(b.finish(b.xrefStream(5, 6, "/Root 1 0 R /Info 2 0 R")));
+        assertEquals("Compressed", m.info.get("Title"));
+        assertArrayEquals(xmp(), m.xmp);
+    }
+
+    @Test
+    public void readsHybridReferenceFile() throws IOException {
+        // the Info dictionary is in an object stream, and marked free in the table
+        Builder b = new Builder();
+        b.object(1, "<< /Type /Catalog /Metadata 3 0 R >>");
+        b.objectStream(4, new int[] { 2 }, new String[] { "<< /Title (Hybrid) >>" });
+        b.stream(3, "/Type /Metadata /Subtype /XML", xmp());
+        int stm_offset = b.xrefStream(5, 6, "");
+        b.entries.remove(5);
+        PDFMetadata m = read(b.finish(b.table(6, "/Root 1 0 R /Info 2 0 R /XRefStm " + stm_offset)));
+        assertEquals("Hybrid", m.info.get("Title"));
+        assertArrayEquals(xmp(), m.xmp);
+    }
+
+    @Test
+    public void readsIncrementalUpdate() throws IOException {
+        Builder b = new Builder();
+        b.object(1, "<< /Type /Catalog >>");
+        b.object(2, "<< /Title (Old) /Author (Unchanged) >>");
+        int prev = b.table(3, "/Root 1 0 R /Info 2 0 R");
+        b.entries.clear();
+        b.object(3, "<< /Title (New) >>");
+        PDFMetadata m = read(b.finish(b.table(4, "/Root 1 0 R /Info 3 0 R /Prev " + prev)));
+        assertEquals("New", m.info.get("Title"));
+        assertNull(m.info.get("Author"));
+        assertNull(m.xmp);
+    }
+
+    @Test
+    public void readsStreamWhoseDictionaryEndsTheWindow() throws IOException {
+        // the dictionary of the metadata stream ends a few bytes before the end of the
+        // initial read window, so that 'stream' lies beyond it
+        Builder b = new Builder();
+        b.object(1, "<< /Type /Catalog /Metadata 2 0 R >>");
+        int offset = b.offset();
+        String head = "2 0 obj\n<< /Type /Metadata /Subtype /XML /Length " + xmp().length + " /Pad (";
+        String tail = ") >>\n";
+        int pad = 4096 - 3 - head.length() - tail.length();
+        StringBuilder sb = new StringBuilder(head);
+        for (int i = 0; i < pad; ++i) {
+            sb.append('x');
+        }
+        sb.append(tail);
+        b.entries.put(2, new long[] { 1, offset, 0 });
+        b.write(sb.toString() + "stream\n");
+        b.write(xmp());
+        b.write("\nendstream\nendobj\n");
+        assertEquals(4096 - 3, b.offset() - offset - "stream\n".length() - xmp().length - "\nendstream\nendobj\n".length());
+        PDFMetadata m = read(b.finish(b.table(3, "/Root 1 0 R")));
+        assertArrayEquals(xmp(), m.xmp);
+    }
+
+    @Test
+    public void readsEncryptedFile() throws IOException {
+        Builder b = new Builder();
+        b.object(1, "<< /Type /Catalog >>");
+        b.object(2, "<< /Filter /Standard /V 1 >>");
+        PDFMetadata m = read(b.finish(b.table(3, "/Root 1 0 R /Encrypt 2 0 R")));
+        assertTrue(m.encrypted);
+        assertNull(m.info);
+        assertNull(m.xmp);
+    }
+
+    @Test
+    public void rejectsObjectStreamWhichRefersToItself() throws IOException {
+        Builder b = new Builder();
+        b.object(1, "<< /Type /Catalog >>");
+        b.entries.put(2, new long[] { 2, 3, 0 });
+        b.entries.put(3, new long[] { 2, 3, 1 });
+        try {
+            read(b.finish(b.xrefStream(4, 5, "/Root 1 0 R /Info 2 0 R")));
+            fail("expected IOException");
+        }
+        catch (IOException e) {
+            // expected
+        }
+    }
+
+}
+
+// Local Variables:
+// mode: java
+// c-basic-offset: 4
+// tab-width: 4
+// End:
@@ -0,0 +1,158 @@
+//
+// JabRef PDFTasks Plugin
+// Copyright (C) 2011--2015  Karl Wette
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+//
+
+package net.sf.jabref.plugins.pdftasks;
+
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+// PDFTasks processing index tests
+// - the index is saved to and loaded from a temporary directory, so that every field of a record,
+//   including Bibtex keys and paths which must be escaped, survives a round trip
+public class PDFTaskIndexTest {
+
+    private File dir;
+    private File db_file;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = PDFTestFiles.tempDir();
+        db_file = new File(dir, "library.bib");
+    }
+
+    @After
+    public void tearDown() {
+        PDFTestFiles.delete(dir);
+    }
+
+    private File pdf(String name, String contents) throws IOException {
+        return PDFTestFiles.write(new File(dir, name), contents.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void escapesFields() {
+        String s = "a\tb\nc\rd\\e\\tf";
+        String escaped = PDFTaskIndex.escape(s);
+        assertEquals("a\\tb\\nc\\rd\\\\e\\\\tf", escaped);
+        assertFalse(escaped.contains("\t") || escaped.contains("\n") || escaped.contains("\r"));
+        assertEquals(s, PDFTaskIndex.unescape(escaped));
+        assertEquals("", PDFTaskIndex.unescape(PDFTaskIndex.escape("")));
+        assertEquals("trailing\\", PDFTaskIndex.unescape("trailing\\"));
+    }
+
+    @Test
+    public void loadsEmptyIndexIfNoneExists() throws IOException {
+        PDFTaskIndex index = PDFTaskIndex.load(db_file);
+        assertNull(index.get("key", "a.pdf"));
+        index.save();
+        assertFalse(PDFTaskIndex.indexFile(db_file).exists());
+    }
+
+    @Test
+    public void savesAndLoadsRecords() throws IOException {
+        File a = pdf("a.pdf", "first");
+        File b = pdf("tab\tand\nnewline.pdf", "second");
+        PDFTaskIndex index = PDFTaskIndex.load(db_file);
+        index.update("key\t1", "a.pdf", a, "0123abcd", "task1");
+        index.update("key2", b.getName(), b, null, "task2");
+        index.save();
+
+        PDFTaskIndex loaded = PDFTaskIndex.load(db_file);
+        PDFTaskIndex.Record ra = loaded.get("key\t1", "a.pdf");
+        assertNotNull(ra);
+        assertEquals(a.getPath(), ra.path);
+        assertEquals(a.length(), ra.size);
+        assertEquals(a.lastModified(), ra.mtime);
+        assertEquals("0123abcd", ra.content_hash);
+        assertEquals("task1", ra.task_hash);
+        PDFTaskIndex.Record rb = loaded.get("key2", b.getName());
+        assertNotNull(rb);
+        assertEquals(b.getPath(), rb.path);
+        assertEquals("", rb.content_hash);
+
+        assertTrue(loaded.isUnchanged("key\t1", "a.pdf", "task1"));
+        assertFalse(loaded.isUnchanged("key\t1", "a.pdf", "task2"));
+        assertEquals("0123abcd", loaded.getContentHash(a, a.length(), a.lastModified()));
+        assertNull(loaded.getContentHash(a, a.length() + 1, a.lastModified()));
+
+        // an empty content hash means that it is not known
+        assertNull(loaded.getContentHash(b, b.length(), b.lastModified()));
+    }
+
+    @Test
+    public void detectsChangedFiles() throws IOException {
+        File a = pdf("a.pdf", "first");
+        PDFTaskIndex index = PDFTaskIndex.load(db_file);
+        index.update("key", "a.pdf", a, null, "task");
+        assertTrue(index.isUnchanged("key", "a.pdf", "task"));
+        pdf("a.pdf", "first, changed");
+        assertFalse(index.isUnchanged("key", "a.pdf", "task"));
+        a.delete();
+        assertFalse(index.isUnchanged("key", "a.pdf", "task"));
+    }
+
+    @Test
+    public void recordsKnownContentHashes() throws IOException {
+        File a = pdf("a.pdf", "first");
+        String hash = PDFTaskIndex.contentHash(a);
+        PDFTaskIndex index = PDFTaskIndex.load(db_file);
+        index.putContentHash(a, a.length(), a.lastModified(), hash);
+        index.update("key", "a.pdf", a, null, "task");
+        assertEquals(hash, index.get("key", "a.pdf").content_hash);
+        assertEquals(hash, PDFTaskIndex.contentHash(pdf("b.pdf", "first")));
+    }
+
+    @Test
+    public void carriesRecordsOverMoves() throws IOException {
+        File a = pdf("a.pdf", "first");
+        PDFTaskIndex index = PDFTaskIndex.load(db_file);
+        index.update("key", "a.pdf", a, "0123abcd", "task");
+        File moved = new File(dir, "moved.pdf");
+        assertTrue(a.renameTo(moved));
+        index.move("key", "a.pdf", "moved.pdf", moved);
+        assertNull(index.get("key", "a.pdf"));
+        assertEquals(moved.getPath(), index.get("key", "moved.pdf").path);
+        assertEquals("0123abcd", index.get("key", "moved.pdf").content_hash);
+        assertTrue(index.isUnchanged("key", "moved.pdf", "task"));
+
+        // a PDF file which changed while being moved is no longer recorded
+        File changed = pdf("changed.pdf", "first, changed");
+        index.move("key", "moved.pdf", "changed.pdf", changed);
+        assertNull(index.get("key", "moved.pdf"));
+        assertNull(index.get("key", "changed.pdf"));
+    }
+
+}
+
+// Local Variables:
+// mode: java
+// c-basic-offset: 4
+// tab-width: 4
+// End:
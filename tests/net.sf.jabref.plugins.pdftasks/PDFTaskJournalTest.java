@@ -0,0 +1,192 @@
+//
+// JabRef PDFTasks Plugin
+// Copyright (C) 2011--2015  Karl Wette
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+//
+
+package net.sf.jabref.plugins.pdftasks;
+
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+// PDFTasks operation journal tests
+// - operations are logged and performed as by the PDF task engine, and the journal is then loaded
+//   from disk, as on the next run, before being resumed or rolled back
+public class PDFTaskJournalTest {
+
+    private File dir;
+    private File db_file;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = PDFTestFiles.tempDir();
+        db_file = new File(dir, "library.bib");
+    }
+
+    @After
+    public void tearDown() {
+        PDFTestFiles.delete(dir);
+    }
+
+    private File pdf(String name, String contents) throws IOException {
+        return PDFTestFiles.write(new File(dir, name), contents.getBytes(StandardCharsets.UTF_8));
+    }
+
+    // log and perform a move of 'source' to 'target', as the PDF task engine does
+    private static void move(PDFTaskJournal journal, String key, int file_index, File source, File target,
+                             String old_link, String new_link) throws IOException
+    {
+        int id = journal.logMove(key, file_index, source, target, old_link, new_link);
+        PDFFileMover.move(source, target, false);
+        journal.logDone(id);
+    }
+
+    @Test
+    public void loadsNoJournalIfNoneExists() throws IOException {
+        assertNull(PDFTaskJournal.load(db_file));
+    }
+
+    @Test
+    public void deletesJournalWithoutMoves() throws IOException {
+        File a = pdf("a.pdf", "first");
+        PDFTaskJournal journal = PDFTaskJournal.create(db_file, null);
+        journal.logDone(journal.logWrite("key", "a.pdf", a, true));
+        journal.end();
+        assertFalse(PDFTaskJournal.journalFile(db_file).exists());
+    }
+
+    @Test
+    public void resumesMoves() throws IOException {
+        File a = pdf("a.pdf", "first");
+        File b = pdf("b.pdf", "second");
+        File moved_a = new File(dir, "moved/key1.pdf");
+        PDFTaskJournal journal = PDFTaskJournal.create(db_file, null);
+        move(journal, "key1", 0, a, moved_a, "a.pdf", "moved/key1.pdf");
+        journal.logDone(journal.logWrite("key1", "moved/key1.pdf", moved_a, false));
+
+        // an interrupted move, which was logged but not performed
+        journal.logMove("key2", 1, b, new File(dir, "moved/key2.pdf"), "b.pdf", "moved/key2.pdf");
+
+        PDFTaskJournal loaded = PDFTaskJournal.load(db_file);
+        assertNotNull(loaded);
+        int[] counts = loaded.getCounts();
+        assertEquals(1, counts[0]);
+        assertEquals(1, counts[1]);
+        Set<String> done_writes = new HashSet<String>();
+        List<PDFTaskJournal.LinkChange> changes = loaded.resume(done_writes);
+        assertEquals(1, changes.size());
+        PDFTaskJournal.LinkChange change = changes.get(0);
+        assertEquals("key1", change.key);
+        assertEquals(0, change.file_index);
+        assertEquals("a.pdf", change.from);
+        assertEquals("moved/key1.pdf", change.to);
+        assertEquals(new HashSet<String>(Arrays.asList("key1\0moved/key1.pdf")), done_writes);
+        assertEquals(":moved/key1.pdf:PDF", PDFTaskJournal.apply(":a.pdf:PDF", change));
+        assertNull(PDFTaskJournal.apply(":other.pdf:PDF", change));
+        assertNull(PDFTaskJournal.apply(null, change));
+        journal.end();
+    }
+
+    @Test
+    public void rollsBackMoves() throws IOException {
+        File a = pdf("a.pdf", "first");
+        File moved_a = new File(dir, "moved/key1.pdf");
+        PDFTaskJournal journal = PDFTaskJournal.create(db_file, null);
+        move(journal, "key1", 2, a, moved_a, "a.pdf", "moved/key1.pdf");
+        journal.end();
+        assertTrue(PDFTaskJournal.journalFile(db_file).isFile());
+
+        List<String> errors = new ArrayList<String>();
+        List<PDFTaskJournal.LinkChange> changes = PDFTaskJournal.load(db_file).rollback(errors);
+        assertTrue(errors.isEmpty());
+        assertTrue(a.isFile());
+        assertFalse(moved_a.exists());
+        assertEquals(1, changes.size());
+        PDFTaskJournal.LinkChange change = changes.get(0);
+        assertEquals("key1", change.key);
+        assertEquals(2, change.file_index);
+        assertEquals("moved/key1.pdf", change.from);
+        assertEquals("a.pdf", change.to);
+        assertEquals(moved_a, change.move.source);
+        assertEquals(a, change.move.target);
+    }
+
+    @Test
+    public void rollsBackIncrementalWrites() throws IOException {
+        File a = pdf("a.pdf", "%PDF-1.4 original");
+        File b = pdf("b.pdf", "%PDF-1.4 original");
+        PDFTaskJournal journal = PDFTaskJournal.create(db_file, null);
+        int id = journal.logWrite("key1", "a.pdf", a, true);
+        FileOutputStream out = new FileOutputStream(a, true);
+        try {
+            out.write(" incremental update".getBytes(StandardCharsets.UTF_8));
+        }
+        finally {
+            out.close();
+        }
+        journal.logDone(id);
+        journal.logDone(journal.logWrite("key2", "b.pdf", b, false));
+
+        List<String> errors = new ArrayList<String>();
+        PDFTaskJournal.load(db_file).rollback(errors);
+        assertEquals("%PDF-1.4 original", new String(Files.readAllBytes(a.toPath()), StandardCharsets.UTF_8));
+
+        // document information which was not appended cannot be removed
+        assertEquals(1, errors.size());
+        journal.end();
+    }
+
+    @Test
+    public void carriesMovesOverToNewJournal() throws IOException {
+        File a = pdf("a.pdf", "first");
+        File moved_a = new File(dir, "moved/key1.pdf");
+        PDFTaskJournal journal = PDFTaskJournal.create(db_file, null);
+        move(journal, "key1", 0, a, moved_a, "a.pdf", "moved/key1.pdf");
+        journal.end();
+
+        PDFTaskJournal resumed = PDFTaskJournal.load(db_file);
+        PDFTaskJournal.create(db_file, resumed).end();
+        List<String> errors = new ArrayList<String>();
+        assertEquals(1, PDFTaskJournal.load(db_file).rollback(errors).size());
+        assertTrue(errors.isEmpty());
+        assertTrue(a.isFile());
+    }
+
+}
+
+// Local Variables:
+// mode: java
+// c-basic-offset: 4
+// tab-width: 4
+// End:
@@ -0,0 +1,67 @@
+//
+// JabRef PDFTasks Plugin
+// Copyright (C) 2011--2015  Karl Wette
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+//
+
+package net.sf.jabref.plugins.pdftasks;
+
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+// PDFTasks unit test data
+// - creates and removes temporary directories for tests which need files
+final class PDFTestFiles {
+
+    private PDFTestFiles() {
+    }
+
+    // create a temporary directory
+    static File tempDir() throws IOException {
+        return Files.createTempDirectory("pdftasks-test").toFile().getCanonicalFile();
+    }
+
+    // remove 'file', and its contents if it is a directory, without following symbolic links
+    static void delete(File file) {
+        if (file == null) {
+            return;
+        }
+        if (file.isDirectory() && !Files.isSymbolicLink(file.toPath())) {
+            File[] files = file.listFiles();
+            if (files != null) {
+                for (File f : files) {
+                    delete(f);
+                }
+            }
+        }
+        file.delete();
+    }
+
+    // write 'bytes' to 'file', creating its directory if needed
+    static File write(File file, byte[] bytes) throws IOException {
+        file.getParentFile().mkdirs();
+        Files.write(file.toPath(), bytes);
+        return file;
+    }
+
+}
+
+// Local Variables:
+// mode: java
+// c-basic-offset: 4
+// tab-width: 4
+// End: